@@ -19,6 +19,6 @@ LOCAL_MODULE := android-ex-camera2-portability
 LOCAL_MODULE_TAGS := optional
 LOCAL_SDK_VERSION := current
 LOCAL_SRC_FILES := $(call all-java-files-under, src)
-LOCAL_STATIC_JAVA_LIBRARIES := android-ex-camera2-utils
+LOCAL_STATIC_JAVA_LIBRARIES := android-ex-camera2-utils android-ex-camera2
 
 include $(BUILD_STATIC_JAVA_LIBRARY)
@@ -44,14 +44,19 @@ import android.os.Message;
 import android.view.Surface;
 
 import com.android.ex.camera2.portability.debug.Log;
+import com.android.ex.camera2.utils.Camera2DeltaRequestSettingsSet;
 import com.android.ex.camera2.utils.Camera2RequestSettingsSet;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A class to implement {@link CameraAgent} of the Android camera2 framework.
@@ -83,15 +88,51 @@ class AndroidCamera2AgentImpl extends CameraAgent {
      */
     private final List<String> mCameraDevices;
 
+    /**
+     * Static device properties, and what we parsed out of them, by camera ID. Filled on first
+     * use or by {@link #prewarm}, as querying and parsing them is a large part of opening.
+     */
+    private final ConcurrentHashMap<String, CameraCharacteristics> mCharacteristicsCache =
+            new ConcurrentHashMap<String, CameraCharacteristics>();
+    private final ConcurrentHashMap<String, AndroidCamera2Capabilities> mCapabilitiesCache =
+            new ConcurrentHashMap<String, AndroidCamera2Capabilities>();
+    /** The same facts across app starts, for as long as the build doesn't change. */
+    private final CapabilitiesCache mPersistentCache;
+    /**
+     * The camera IDs whose persistent cache entries were checked against the
+     * device, shared by all agents of the process.
+     */
+    private static final Set<String> sValidatedCameras =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Runnable mSavePersistentCache = new Runnable() {
+        @Override
+        public void run() {
+            mPersistentCache.save();
+        }
+    };
+
     AndroidCamera2AgentImpl(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param context The application context.
+     * @param lockFreeDispatch Whether to dispatch jobs through a
+     *                         {@link LockFreeDispatchThread}.
+     */
+    AndroidCamera2AgentImpl(Context context, boolean lockFreeDispatch) {
         mCameraHandlerThread = new HandlerThread("Camera2 Handler Thread");
         mCameraHandlerThread.start();
         mCameraHandler = new Camera2Handler(mCameraHandlerThread.getLooper());
         mExceptionHandler = new CameraExceptionHandler(mCameraHandler);
         mCameraState = new AndroidCamera2StateHolder();
-        mDispatchThread = new DispatchThread(mCameraHandler, mCameraHandlerThread);
+        mDispatchThread = lockFreeDispatch ?
+                new LockFreeDispatchThread(mCameraHandler, mCameraHandlerThread) :
+                new DispatchThread(mCameraHandler, mCameraHandlerThread);
         mDispatchThread.start();
         mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        mPersistentCache = CapabilitiesCache.getInstance(context);
         mNoisemaker = new MediaActionSound();
         mNoisemaker.load(MediaActionSound.SHUTTER_CLICK);
 
@@ -134,15 +175,116 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         }
     }
 
-    // TODO: Implement
+    /**
+     * @param cameraId The camera2 API ID of the device.
+     * @return The device's properties, which are only queried once.
+     */
+    private CameraCharacteristics getCameraCharacteristics(String cameraId)
+            throws CameraAccessException {
+        CameraCharacteristics props = mCharacteristicsCache.get(cameraId);
+        if (props == null) {
+            props = mCameraManager.getCameraCharacteristics(cameraId);
+            mCharacteristicsCache.put(cameraId, props);
+        }
+        return props;
+    }
+
+    /**
+     * @param cameraId The camera2 API ID of the device.
+     * @return The device's capabilities, which are only parsed once, and
+     *         preferably restored from the persistent cache instead.
+     */
+    private AndroidCamera2Capabilities getCapabilities(String cameraId)
+            throws CameraAccessException {
+        AndroidCamera2Capabilities capabilities = mCapabilitiesCache.get(cameraId);
+        if (capabilities != null) {
+            return capabilities;
+        }
+
+        CapabilitiesCache.Entry entry = getCacheEntry(cameraId);
+        if (entry.hasCapabilities()) {
+            try {
+                capabilities = new AndroidCamera2Capabilities(entry.openCapabilities());
+            } catch (IOException ex) {
+                Log.w(TAG, "Ignoring unreadable cached capabilities of camera '" + cameraId +
+                        '\'', ex);
+            }
+        }
+        if (capabilities == null) {
+            capabilities = new AndroidCamera2Capabilities(getCameraCharacteristics(cameraId));
+            mPersistentCache.put(CapabilitiesCache.key(2, cameraId),
+                    new CapabilitiesCache.Entry(entry.mLensFacing, entry.mSensorOrientation,
+                            entry.mCanDisableShutterSound, capabilities));
+            saveCacheLater();
+        }
+        mCapabilitiesCache.put(cameraId, capabilities);
+        return capabilities;
+    }
+
+    /**
+     * @param cameraId The camera2 API ID of the device.
+     * @return The device's persistently cached facts, which are queried from
+     *         the camera service if they weren't cached yet.
+     */
+    private CapabilitiesCache.Entry getCacheEntry(String cameraId)
+            throws CameraAccessException {
+        String key = CapabilitiesCache.key(2, cameraId);
+        CapabilitiesCache.Entry entry = mPersistentCache.get(key);
+        if (entry == null) {
+            CameraCharacteristics props = getCameraCharacteristics(cameraId);
+            entry = new CapabilitiesCache.Entry(props.get(CameraCharacteristics.LENS_FACING),
+                    props.get(CameraCharacteristics.SENSOR_ORIENTATION),
+                    /*canDisableShutterSound*/true, null);
+            mPersistentCache.put(key, entry);
+            saveCacheLater();
+        }
+        return entry;
+    }
+
+    /**
+     * Checks the persistently cached facts about a camera device against its
+     * actual properties, once per process, correcting the cache if needed.
+     * The correction only takes effect the next time the camera is opened.
+     */
+    private void validateCacheEntry(String cameraId, CameraCharacteristics props) {
+        if (!sValidatedCameras.add(cameraId)) {
+            return;
+        }
+        String key = CapabilitiesCache.key(2, cameraId);
+        AndroidCamera2Capabilities capabilities = new AndroidCamera2Capabilities(props);
+        CapabilitiesCache.Entry actual =
+                new CapabilitiesCache.Entry(props.get(CameraCharacteristics.LENS_FACING),
+                        props.get(CameraCharacteristics.SENSOR_ORIENTATION),
+                        /*canDisableShutterSound*/true, capabilities);
+        if (!actual.sameAs(mPersistentCache.get(key))) {
+            Log.i(TAG, "Updating cached capabilities of camera '" + cameraId + '\'');
+            mPersistentCache.put(key, actual);
+            mCapabilitiesCache.put(cameraId, capabilities);
+            saveCacheLater();
+        }
+    }
+
+    /**
+     * Writes the persistent cache out on the camera handler thread.
+     */
+    private void saveCacheLater() {
+        mCameraHandler.removeCallbacks(mSavePersistentCache);
+        mCameraHandler.post(mSavePersistentCache);
+    }
+
     @Override
-    public void recycle() {}
+    public void recycle() {
+        closeCamera(null, true);
+        mDispatchThread.end();
+        mCameraState.invalidate();
+        mNoisemaker.release();
+    }
 
     // TODO: Some indices may now be invalid; ensure everyone can handle that and update the docs
     @Override
     public CameraDeviceInfo getCameraDeviceInfo() {
         updateCameraDevices();
-        return new AndroidCamera2DeviceInfo(mCameraManager, mCameraDevices.toArray(new String[0]),
+        return new AndroidCamera2DeviceInfo(this, mCameraDevices.toArray(new String[0]),
                 mNumCameraDevices);
     }
 
@@ -173,7 +315,36 @@ class AndroidCamera2AgentImpl extends CameraAgent {
 
     private static abstract class CaptureAvailableListener
             extends CameraCaptureSession.CaptureCallback
-            implements ImageReader.OnImageAvailableListener {};
+            implements ImageReader.OnImageAvailableListener {
+        /**
+         * Offers a frame retained for zero shutter lag in place of a new
+         * capture. The frame is closed once this returns.
+         *
+         * @return Whether the frame was used, making a new capture unnecessary.
+         */
+        public boolean onZeroShutterLagFrame(Image frame, TotalCaptureResult result) {
+            return false;
+        }
+
+        /**
+         * Called when the capture won't be carried out, so no picture is
+         * coming.
+         */
+        public void onCaptureRejected(String reason) {
+        }
+    };
+
+    /** The number of still captures which may be in flight at once. */
+    private static final int CAPTURE_READER_MAX_IMAGES = 2;
+    /**
+     * The number of still captures which may be lent to clients at once. One image is kept back
+     * so the next capture can always be acquired; further pictures are delivered as copies.
+     */
+    private static final int CAPTURE_READER_MAX_LENT = CAPTURE_READER_MAX_IMAGES - 1;
+    /** The number of recent frames retained for zero shutter lag. */
+    private static final int ZSL_RING_SIZE = 3;
+    /** The number of preview frames held by the preview callback machinery. */
+    private static final int PREVIEW_READER_MAX_IMAGES = 3;
 
     private class Camera2Handler extends HistoryHandler {
         // Caller-provided when leaving CAMERA_UNOPENED state:
@@ -198,6 +369,27 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         private Surface mPreviewSurface;
         private CameraCaptureSession mSession;
         private ImageReader mCaptureReader;
+        // Owns mCaptureReader, whose images may be lent to clients as PictureBuffers:
+        private ImageLender mCaptureLender;
+        // Only while zero shutter lag is enabled:
+        private ImageReader mZslReader;
+        private ZslRingBuffer mZslRing;
+        // Only once a preview callback has been set:
+        private ImageReader mPreviewDataReader;
+        private ImageLender mPreviewDataLender;
+
+        // Applied when the next capture session is configured:
+        private boolean mZslEnabled;
+        private boolean mResumePreviewOnConfigure;
+
+        // Available in PREVIEW_ACTIVE state and above; the settings revision of the repeating request:
+        private long mRepeatingRevision = -1;
+        // Whether no frame has been completed since the repeating request was last replaced:
+        private boolean mAwaitingRepeatingFrame;
+        // Whether a settings change arrived while awaiting a frame, and still needs to be applied:
+        private boolean mRepeatingUpdatePending;
+        // Number of settings changes that were folded into a later repeating request update:
+        private final AtomicLong mCoalescedSettingsUpdates = new AtomicLong();
 
         // Available from the beginning of PREVIEW_ACTIVE until the first preview frame arrives:
         private CameraStartPreviewCallback mOneshotPreviewingCallback;
@@ -214,10 +406,30 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         // Gets reset on every state change
         private int mCurrentAeState = CaptureResult.CONTROL_AE_STATE_INACTIVE;
 
+        // Whether the device was opened (or is being opened) by prewarm() and hasn't been claimed:
+        private boolean mSpeculativeOpen;
+
+        private final Runnable mSpeculativeOpenExpiry = new Runnable() {
+            @Override
+            public void run() {
+                if (mSpeculativeOpen) {
+                    Log.i(TAG, "Closing unclaimed speculatively opened camera index " +
+                            mCameraIndex);
+                    mSpeculativeOpen = false;
+                    abandonSpeculativeOpen();
+                }
+            }
+        };
+
         Camera2Handler(Looper looper) {
             super(looper);
         }
 
+        @Override
+        protected int getMetricsCameraId() {
+            return mCameraId != null ? mCameraIndex : -1;
+        }
+
         @Override
         public void handleMessage(final Message msg) {
             super.handleMessage(msg);
@@ -230,6 +442,21 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                         CameraOpenCallback openCallback = (CameraOpenCallback) msg.obj;
                         int cameraIndex = msg.arg1;
 
+                        if (mSpeculativeOpen) {
+                            mSpeculativeOpen = false;
+                            removeCallbacks(mSpeculativeOpenExpiry);
+                            if (cameraIndex == mCameraIndex) {
+                                Log.i(TAG, "Adopting speculatively opened camera index " +
+                                        cameraIndex);
+                                mOpenCallback = openCallback;
+                                if (mCameraProxy != null) {
+                                    mOpenCallback.onCameraOpened(mCameraProxy);
+                                } // Otherwise, the device callback will tell the client
+                                break;
+                            }
+                            abandonSpeculativeOpen();
+                        }
+
                         if (mCameraState.getState() > AndroidCamera2StateHolder.CAMERA_UNOPENED) {
                             openCallback.onDeviceOpenedAlready(cameraIndex,
                                     generateHistoryString(cameraIndex));
@@ -253,35 +480,22 @@ class AndroidCamera2AgentImpl extends CameraAgent {
 
                     case CameraActions.RELEASE: {
                         if (mCameraState.getState() == AndroidCamera2StateHolder.CAMERA_UNOPENED) {
-                            Log.w(TAG, "Ignoring release at inappropriate time");
+                            if (mSpeculativeOpen) {
+                                // Nobody is going to claim it now (e.g. we're being recycled)
+                                mSpeculativeOpen = false;
+                                abandonSpeculativeOpen();
+                            } else {
+                                Log.w(TAG, "Ignoring release at inappropriate time");
+                            }
                             break;
                         }
 
-                        if (mSession != null) {
-                            closePreviewSession();
-                            mSession = null;
-                        }
-                        if (mCamera != null) {
-                            mCamera.close();
-                            mCamera = null;
-                        }
-                        mCameraProxy = null;
-                        mPersistentSettings = null;
-                        mActiveArray = null;
-                        if (mPreviewSurface != null) {
-                            mPreviewSurface.release();
-                            mPreviewSurface = null;
-                        }
-                        mPreviewTexture = null;
-                        if (mCaptureReader != null) {
-                            mCaptureReader.close();
-                            mCaptureReader = null;
-                        }
-                        mPreviewSize = null;
-                        mPhotoSize = null;
-                        mCameraIndex = 0;
-                        mCameraId = null;
-                        changeState(AndroidCamera2StateHolder.CAMERA_UNOPENED);
+                        releaseCamera();
+                        break;
+                    }
+
+                    case CameraActions.PREWARM: {
+                        prewarm(msg.arg1, msg.arg2 > 0);
                         break;
                     }
 
@@ -301,21 +515,21 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                     case CameraActions.START_PREVIEW_ASYNC: {
                         if (mCameraState.getState() !=
                                         AndroidCamera2StateHolder.CAMERA_PREVIEW_READY) {
-                            // TODO: Provide better feedback here?
                             Log.w(TAG, "Refusing to start preview at inappropriate time");
+                            reportRejection(msg.obj, "Preview can't be started in state " +
+                                    mCameraState.getState());
                             break;
                         }
 
                         mOneshotPreviewingCallback = (CameraStartPreviewCallback) msg.obj;
                         changeState(AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE);
                         try {
-                            mSession.setRepeatingRequest(
-                                    mPersistentSettings.createRequest(mCamera,
-                                            CameraDevice.TEMPLATE_PREVIEW, mPreviewSurface),
-                                    /*listener*/mCameraResultStateCallback, /*handler*/this);
+                            setRepeatingPreviewRequest();
                         } catch(CameraAccessException ex) {
                             Log.w(TAG, "Unable to start preview", ex);
                             changeState(AndroidCamera2StateHolder.CAMERA_PREVIEW_READY);
+                            reportRejection(mOneshotPreviewingCallback, "Unable to start preview");
+                            mOneshotPreviewingCallback = null;
                         }
                         break;
                     }
@@ -336,23 +550,19 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                         break;
                     }
 
-                    /*case CameraActions.SET_PREVIEW_CALLBACK_WITH_BUFFER: {
+                    case CameraActions.SET_PREVIEW_CALLBACK_WITH_BUFFER:
+                    case CameraActions.SET_PREVIEW_CALLBACK:
+                    case CameraActions.SET_ONE_SHOT_PREVIEW_CALLBACK: {
+                        setPreviewCallback((PreviewImageForward.Target) msg.obj);
                         break;
                     }
 
                     case CameraActions.ADD_CALLBACK_BUFFER: {
+                        mCameraProxy.getPreviewForward().addCallbackBuffer((byte[]) msg.obj);
                         break;
                     }
 
-                    case CameraActions.SET_PREVIEW_DISPLAY_ASYNC: {
-                        break;
-                    }
-
-                    case CameraActions.SET_PREVIEW_CALLBACK: {
-                        break;
-                    }
-
-                    case CameraActions.SET_ONE_SHOT_PREVIEW_CALLBACK: {
+                    /*case CameraActions.SET_PREVIEW_DISPLAY_ASYNC: {
                         break;
                     }
 
@@ -539,6 +749,8 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                         if (mCameraState.getState() <
                                         AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE) {
                             Log.e(TAG, "Photos may only be taken when a preview is active");
+                            ((CaptureAvailableListener) msg.obj).onCaptureRejected(
+                                    "Photos may only be taken when a preview is active");
                             break;
                         }
                         if (mCameraState.getState() !=
@@ -548,6 +760,30 @@ class AndroidCamera2AgentImpl extends CameraAgent {
 
                         final CaptureAvailableListener listener =
                                 (CaptureAvailableListener) msg.obj;
+                        // Ring frames were exposed without flash, and AE may report
+                        // convergence even though the flash is forced on.
+                        boolean flashForced = mPersistentSettings.matches(
+                                CaptureRequest.CONTROL_AE_MODE,
+                                CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH) ||
+                                mPersistentSettings.matches(CaptureRequest.FLASH_MODE,
+                                        CaptureRequest.FLASH_MODE_SINGLE);
+                        if (mZslRing != null && flashForced) {
+                            Log.i(TAG, "Flash forced on, skipping zero shutter lag");
+                        } else if (mZslRing != null) {
+                            ZslRingBuffer.Frame frame = mZslRing.takeNewestUsable();
+                            if (frame != null) {
+                                try {
+                                    if (listener.onZeroShutterLagFrame(frame.mImage,
+                                            frame.mResult)) {
+                                        Log.i(TAG, "Took zero shutter lag capture");
+                                        break;
+                                    }
+                                } finally {
+                                    frame.mImage.close();
+                                }
+                            }
+                            Log.i(TAG, "No usable zero shutter lag frame, capturing a new one");
+                        }
                         if (mLegacyDevice ||
                                 (mCurrentAeState == CaptureResult.CONTROL_AE_STATE_CONVERGED &&
                                 !mPersistentSettings.matches(CaptureRequest.CONTROL_AE_MODE,
@@ -572,6 +808,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                         listener, /*handler*/this);
                             } catch (CameraAccessException ex) {
                                 Log.e(TAG, "Unable to initiate immediate capture", ex);
+                                listener.onCaptureRejected("Unable to initiate capture");
                             }
                         } else {
                             // We need to let AE converge before capturing. Once our one-time
@@ -615,7 +852,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                                             CaptureFailure failure) {
                                     Log.e(TAG, "Autoexposure and capture failed with reason " +
                                             failure.getReason());
-                                    // TODO: Make an error callback?
+                                    listener.onCaptureRejected("Autoexposure failed");
                                 }};
 
                             // Set a one-time capture to trigger the camera driver's autoexposure:
@@ -630,11 +867,42 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                         /*listener*/deferredCallbackSetter, /*handler*/this);
                             } catch (CameraAccessException ex) {
                                 Log.e(TAG, "Unable to run autoexposure and perform capture", ex);
+                                listener.onCaptureRejected("Unable to initiate capture");
                             }
                         }
                         break;
                     }
 
+                    case CameraActions.CAPTURE_BURST: {
+                        if (mCameraState.getState() <
+                                AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE) {
+                            Log.e(TAG, "Bursts may only be taken when a preview is active");
+                            break;
+                        }
+
+                        // Every shot reuses the current exposure: no precapture sequence.
+                        CaptureAvailableListener listener = (CaptureAvailableListener) msg.obj;
+                        mCaptureReader.setOnImageAvailableListener(listener, /*handler*/this);
+                        try {
+                            CaptureRequest still = mPersistentSettings.createRequest(mCamera,
+                                    CameraDevice.TEMPLATE_STILL_CAPTURE,
+                                    mCaptureReader.getSurface());
+                            List<CaptureRequest> burst = new ArrayList<CaptureRequest>(msg.arg1);
+                            for (int i = 0; i < msg.arg1; ++i) {
+                                burst.add(still);
+                            }
+                            mSession.captureBurst(burst, listener, /*handler*/this);
+                        } catch (CameraAccessException ex) {
+                            Log.e(TAG, "Unable to initiate burst capture", ex);
+                        }
+                        break;
+                    }
+
+                    case CameraActions.ENABLE_ZERO_SHUTTER_LAG: {
+                        mZslEnabled = msg.arg1 > 0;
+                        break;
+                    }
+
                     default: {
                         // TODO: Rephrase once everything has been implemented
                         throw new RuntimeException("Unimplemented CameraProxy message=" + msg.what);
@@ -667,6 +935,102 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             }
         }
 
+        /**
+         * Parses the characteristics and capabilities of every camera device ahead of time and,
+         * if asked to, opens the given one with nobody waiting for it yet.
+         */
+        private void prewarm(int cameraIndex, boolean openSpeculatively) {
+            CameraDeviceInfo deviceInfo = getCameraDeviceInfo();
+            for (int index = 0; index < mCameraDevices.size(); ++index) {
+                String cameraId = mCameraDevices.get(index);
+                if (cameraId == null) {
+                    continue;
+                }
+                try {
+                    getCapabilities(cameraId);
+                } catch (CameraAccessException ex) {
+                    Log.w(TAG, "Unable to prewarm camera '" + cameraId + "'", ex);
+                }
+            }
+
+            if (!openSpeculatively || cameraIndex == CameraDeviceInfo.NO_DEVICE ||
+                    cameraIndex >= deviceInfo.getNumberOfCameras()) {
+                return;
+            }
+            if (mCameraState.getState() > AndroidCamera2StateHolder.CAMERA_UNOPENED ||
+                    mCameraId != null) {
+                Log.i(TAG, "Not opening camera index " + cameraIndex +
+                        " speculatively, a camera is already open");
+                return;
+            }
+            String cameraId = mCameraDevices.get(cameraIndex);
+            if (cameraId == null) {
+                return;
+            }
+            try {
+                mCameraManager.openCamera(cameraId, mCameraDeviceStateCallback, this);
+            } catch (CameraAccessException ex) {
+                // Nobody is waiting for this camera yet; openCamera() will retry.
+                Log.w(TAG, "Unable to open camera index " + cameraIndex + " speculatively", ex);
+                return;
+            }
+            mOpenCallback = null;
+            mCameraIndex = cameraIndex;
+            mCameraId = cameraId;
+            mSpeculativeOpen = true;
+            postDelayed(mSpeculativeOpenExpiry, SPECULATIVE_OPEN_TIMEOUT_MS);
+        }
+
+        /**
+         * Gives up on a speculatively opened device nobody claimed. If it's
+         * still opening, the device callback closes it once it arrives.
+         */
+        private void abandonSpeculativeOpen() {
+            if (mCamera != null) {
+                releaseCamera();
+            } else {
+                mCameraIndex = 0;
+                mCameraId = null;
+            }
+        }
+
+        private void releaseCamera() {
+            mSpeculativeOpen = false;
+            removeCallbacks(mSpeculativeOpenExpiry);
+            if (mSession != null) {
+                closePreviewSession();
+                mSession = null;
+            }
+            if (mCamera != null) {
+                mCamera.close();
+                mCamera = null;
+            }
+            closePreviewDataReader();
+            mCameraProxy = null;
+            if (mPersistentSettings != null) {
+                mPersistentSettings.clearCachedRequests();
+                mPersistentSettings = null;
+            }
+            mActiveArray = null;
+            if (mPreviewSurface != null) {
+                mPreviewSurface.release();
+                mPreviewSurface = null;
+            }
+            mPreviewTexture = null;
+            if (mCaptureLender != null) {
+                // Pictures still lent out keep the reader alive until they're released
+                mCaptureLender.close();
+                mCaptureLender = null;
+                mCaptureReader = null;
+            }
+            closeZslReader();
+            mPreviewSize = null;
+            mPhotoSize = null;
+            mCameraIndex = 0;
+            mCameraId = null;
+            changeState(AndroidCamera2StateHolder.CAMERA_UNOPENED);
+        }
+
         public CameraSettings buildSettings(AndroidCamera2Capabilities caps) {
             try {
                 return new AndroidCamera2Settings(mCamera, CameraDevice.TEMPLATE_PREVIEW,
@@ -694,14 +1058,19 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             mPhotoSize = settings.getCurrentPhotoSize();
 
             if (mCameraState.getState() >= AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE) {
-                // If we're already previewing, reflect most settings immediately
-                try {
-                    mSession.setRepeatingRequest(
-                            mPersistentSettings.createRequest(mCamera,
-                                    CameraDevice.TEMPLATE_PREVIEW, mPreviewSurface),
-                            /*listener*/mCameraResultStateCallback, /*handler*/this);
-                } catch (CameraAccessException ex) {
-                    Log.e(TAG, "Failed to apply updated request settings", ex);
+                // If we're already previewing, reflect most settings immediately, unless the
+                // union left them exactly as the repeating request already has them. Replacing the
+                // repeating request more than once per frame would only make the HAL drop work, so
+                // while one is outstanding just remember to pick up the latest settings afterwards.
+                if (mPersistentSettings.getRevision() != mRepeatingRevision) {
+                    if (mAwaitingRepeatingFrame) {
+                        if (mRepeatingUpdatePending) {
+                            mCoalescedSettingsUpdates.incrementAndGet();
+                        }
+                        mRepeatingUpdatePending = true;
+                    } else {
+                        updateRepeatingPreviewRequest();
+                    }
                 }
             } else if (mCameraState.getState() < AndroidCamera2StateHolder.CAMERA_PREVIEW_READY) {
                 // If we're already ready to preview, this doesn't regress our state
@@ -709,6 +1078,50 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             }
         }
 
+        /**
+         * Applies the latest settings to the repeating request, if they have
+         * changed since it was last set.
+         */
+        private void updateRepeatingPreviewRequest() {
+            mRepeatingUpdatePending = false;
+            if (mCameraState.getState() < AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE ||
+                    mPersistentSettings.getRevision() == mRepeatingRevision) {
+                return;
+            }
+            try {
+                setRepeatingPreviewRequest();
+            } catch (CameraAccessException ex) {
+                Log.e(TAG, "Failed to apply updated request settings", ex);
+            }
+        }
+
+        /**
+         * @return The number of settings changes applied during preview that
+         *         didn't get a repeating request of their own, because a newer
+         *         change superseded them before the next frame was delivered.
+         */
+        public long getCoalescedSettingsUpdateCount() {
+            return mCoalescedSettingsUpdates.get();
+        }
+
+        private void setRepeatingPreviewRequest() throws CameraAccessException {
+            List<Surface> targets = new ArrayList<Surface>(3);
+            targets.add(mPreviewSurface);
+            if (mZslReader != null) {
+                targets.add(mZslReader.getSurface());
+            }
+            if (mPreviewDataReader != null) {
+                targets.add(mPreviewDataReader.getSurface());
+            }
+            CaptureRequest request = mPersistentSettings.createRequest(mCamera,
+                    CameraDevice.TEMPLATE_PREVIEW, targets.toArray(new Surface[targets.size()]));
+            mSession.setRepeatingRequest(request,
+                    /*listener*/mCameraResultStateCallback, /*handler*/this);
+            mRepeatingRevision = mPersistentSettings.getRevision();
+            mAwaitingRepeatingFrame = true;
+            mRepeatingUpdatePending = false;
+        }
+
         private void setPreviewTexture(SurfaceTexture surfaceTexture) {
             // TODO: Must be called after providing a .*Settings populated with sizes
             // TODO: We don't technically offer a selection of sizes tailored to SurfaceTextures!
@@ -737,21 +1150,92 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             }
             mPreviewSurface = new Surface(surfaceTexture);
 
-            if (mCaptureReader != null) {
-                mCaptureReader.close();
+            // The JPEG reader only depends on the photo size, so keep it across textures
+            if (mCaptureReader != null && (mCaptureReader.getWidth() != mPhotoSize.width() ||
+                    mCaptureReader.getHeight() != mPhotoSize.height())) {
+                mCaptureLender.close();
+                mCaptureLender = null;
+                mCaptureReader = null;
+            }
+            if (mCaptureReader == null) {
+                mCaptureReader = ImageReader.newInstance(mPhotoSize.width(), mPhotoSize.height(),
+                        ImageFormat.JPEG, CAPTURE_READER_MAX_IMAGES);
+                mCaptureLender = new ImageLender(mCaptureReader, CAPTURE_READER_MAX_LENT);
+            }
+            configureSession();
+        }
+
+        /**
+         * Creates a capture session over the preview surface and whichever
+         * readers the current configuration calls for.
+         */
+        private void configureSession() {
+            List<Surface> outputs = new ArrayList<Surface>(3);
+            outputs.add(mPreviewSurface);
+            outputs.add(mCaptureReader.getSurface());
+            PreviewImageForward previewForward = mCameraProxy.getPreviewForward();
+
+            // No hardware level guarantees a fourth stream, so preview callbacks win over ZSL
+            closeZslReader();
+            if (mZslEnabled && previewForward.hasTarget()) {
+                Log.w(TAG, "Zero shutter lag is unavailable while a preview callback is set");
+            } else if (mZslEnabled) {
+                // PRIV PREVIEW + YUV PREVIEW + JPEG MAXIMUM is a guaranteed stream
+                // combination, unlike a maximum size YUV stream, so the ring is
+                // preview-sized. The ring holds on to ZSL_RING_SIZE images, plus
+                // the one being acquired.
+                mZslReader = ImageReader.newInstance(mPreviewSize.width(), mPreviewSize.height(),
+                        ImageFormat.YUV_420_888, ZSL_RING_SIZE + 1);
+                mZslRing = new ZslRingBuffer(ZSL_RING_SIZE);
+                mZslReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                    @Override
+                    public void onImageAvailable(ImageReader reader) {
+                        Image image = reader.acquireNextImage();
+                        if (image != null) {
+                            mZslRing.addImage(image);
+                        }
+                    }}, /*handler*/this);
+                outputs.add(mZslReader.getSurface());
+            }
+
+            closePreviewDataReader();
+            if (previewForward.hasTarget()) {
+                mPreviewDataReader = ImageReader.newInstance(mPreviewSize.width(),
+                        mPreviewSize.height(), ImageFormat.YUV_420_888,
+                        PREVIEW_READER_MAX_IMAGES);
+                mPreviewDataLender = new ImageLender(mPreviewDataReader, /*maxLent*/1);
+                previewForward.setLender(mPreviewDataLender);
+                mPreviewDataReader.setOnImageAvailableListener(previewForward, /*handler*/this);
+                outputs.add(mPreviewDataReader.getSurface());
             }
-            mCaptureReader = ImageReader.newInstance(
-                    mPhotoSize.width(), mPhotoSize.height(), ImageFormat.JPEG, 1);
 
             try {
-                mCamera.createCaptureSession(
-                        Arrays.asList(mPreviewSurface, mCaptureReader.getSurface()),
-                        mCameraPreviewStateCallback, this);
+                mCamera.createCaptureSession(outputs, mCameraPreviewStateCallback, this);
             } catch (CameraAccessException ex) {
                 Log.e(TAG, "Failed to create camera capture session", ex);
             }
         }
 
+        /**
+         * Hands a preview callback registration to the forwarder, and brings
+         * its reader into the capture session if there isn't one yet. The
+         * reader is kept once the callback goes away, to spare the preview a
+         * reconfiguration; frames nobody asked for are simply recycled.
+         */
+        private void setPreviewCallback(PreviewImageForward.Target target) {
+            PreviewImageForward previewForward = mCameraProxy.getPreviewForward();
+            previewForward.setTarget(target);
+            if (!previewForward.hasTarget() || mPreviewDataReader != null || mSession == null) {
+                return;
+            }
+
+            boolean wasPreviewing =
+                    mCameraState.getState() >= AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE;
+            closePreviewSession();
+            mResumePreviewOnConfigure = wasPreviewing;
+            configureSession();
+        }
+
         private void closePreviewSession() {
             try {
                 mSession.abortCaptures();
@@ -759,13 +1243,54 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             } catch (CameraAccessException ex) {
                 Log.e(TAG, "Failed to close existing camera capture session", ex);
             }
+            if (mZslRing != null) {
+                mZslRing.clear();
+            }
+            // Don't let remembered requests keep the old session's surfaces alive
+            mPersistentSettings.clearCachedRequests();
             changeState(AndroidCamera2StateHolder.CAMERA_CONFIGURED);
         }
 
+        /**
+         * @return The lender of {@code reader} if it is the current capture
+         *         reader, or {@code null} if it has been replaced since.
+         */
+        ImageLender getCaptureLender(ImageReader reader) {
+            return (mCaptureLender != null && mCaptureLender.getReader() == reader) ?
+                    mCaptureLender : null;
+        }
+
+        /**
+         * Closes the preview callback reader once the frame possibly still
+         * being delivered to the client has been handed back.
+         */
+        private void closePreviewDataReader() {
+            if (mPreviewDataLender != null) {
+                mCameraProxy.getPreviewForward().setLender(null);
+                mPreviewDataLender.close();
+                mPreviewDataLender = null;
+                mPreviewDataReader = null;
+            }
+        }
+
+        private void closeZslReader() {
+            if (mZslRing != null) {
+                mZslRing.clear();
+                mZslRing = null;
+            }
+            if (mZslReader != null) {
+                mZslReader.close();
+                mZslReader = null;
+            }
+        }
+
         private void changeState(int newState) {
             if (mCameraState.getState() != newState) {
                 mCameraState.setState(newState);
                 if (newState < AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE) {
+                    mRepeatingRevision = -1;
+                    mAwaitingRepeatingFrame = false;
+                    mRepeatingUpdatePending = false;
                     mCurrentAeState = CaptureResult.CONTROL_AE_STATE_INACTIVE;
                     mCameraResultStateCallback.resetState();
                 }
@@ -777,26 +1302,49 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                 new CameraDevice.StateCallback() {
             @Override
             public void onOpened(CameraDevice camera) {
+                if (!camera.getId().equals(mCameraId)) {
+                    // A speculative open which was abandoned while still in progress
+                    Log.i(TAG, "Closing abandoned camera device '" + camera.getId() + '\'');
+                    camera.close();
+                    return;
+                }
                 mCamera = camera;
-                if (mOpenCallback != null) {
+                if (mOpenCallback != null || mSpeculativeOpen) {
                     try {
-                        CameraCharacteristics props =
-                                mCameraManager.getCameraCharacteristics(mCameraId);
+                        CameraCharacteristics props = getCameraCharacteristics(mCameraId);
                         CameraDeviceInfo.Characteristics characteristics =
-                                getCameraDeviceInfo().getCharacteristics(mCameraIndex);
+                                new AndroidCamera2DeviceInfo.AndroidCharacteristics2(props);
+                        // Only FULL devices guarantee per-frame control, without which
+                        // a ring frame's result may not describe how it was exposed.
+                        boolean zslSupported =
+                                props.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL) ==
+                                        CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL;
                         mCameraProxy = new AndroidCamera2ProxyImpl(AndroidCamera2AgentImpl.this,
-                                mCameraIndex, mCamera, characteristics, props);
-                        mPersistentSettings = new Camera2RequestSettingsSet();
+                                mCameraIndex, mCamera, characteristics,
+                                getCapabilities(mCameraId), zslSupported);
+                        mPersistentSettings = new Camera2DeltaRequestSettingsSet();
                         mActiveArray =
                                 props.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
                         mLegacyDevice =
                                 props.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL) ==
                                         CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
                         changeState(AndroidCamera2StateHolder.CAMERA_UNCONFIGURED);
-                        mOpenCallback.onCameraOpened(mCameraProxy);
+                        if (mOpenCallback != null) {
+                            mOpenCallback.onCameraOpened(mCameraProxy);
+                        }
+                        final String cameraId = mCameraId;
+                        final CameraCharacteristics openedProps = props;
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                validateCacheEntry(cameraId, openedProps);
+                            }
+                        });
                     } catch (CameraAccessException ex) {
-                        mOpenCallback.onDeviceOpenFailure(mCameraIndex,
-                                generateHistoryString(mCameraIndex));
+                        if (mOpenCallback != null) {
+                            mOpenCallback.onDeviceOpenFailure(mCameraIndex,
+                                    generateHistoryString(mCameraIndex));
+                        }
                     }
                 }
             }
@@ -810,6 +1358,14 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             public void onError(CameraDevice camera, int error) {
                 Log.e(TAG, "Camera device '" + mCameraIndex + "' encountered error code '" +
                         error + '\'');
+                if (mSpeculativeOpen) {
+                    // Nobody is waiting for this camera yet; openCamera() will retry.
+                    if (mCamera == null) {
+                        camera.close();
+                    }
+                    releaseCamera();
+                    return;
+                }
                 if (mOpenCallback != null) {
                     mOpenCallback.onDeviceOpenFailure(mCameraIndex,
                             generateHistoryString(mCameraIndex));
@@ -823,10 +1379,21 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             public void onConfigured(CameraCaptureSession session) {
                 mSession = session;
                 changeState(AndroidCamera2StateHolder.CAMERA_PREVIEW_READY);
+                if (mResumePreviewOnConfigure) {
+                    mResumePreviewOnConfigure = false;
+                    changeState(AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE);
+                    try {
+                        setRepeatingPreviewRequest();
+                    } catch (CameraAccessException ex) {
+                        Log.w(TAG, "Unable to resume preview", ex);
+                        changeState(AndroidCamera2StateHolder.CAMERA_PREVIEW_READY);
+                    }
+                }
             }
 
             @Override
             public void onConfigureFailed(CameraCaptureSession session) {
+                mResumePreviewOnConfigure = false;
                 // TODO: Invoke a callback
                 Log.e(TAG, "Failed to configure the camera for capture");
             }
@@ -864,6 +1431,10 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
                                            TotalCaptureResult result) {
                 monitorControlStates(result);
+                if (mZslRing != null) {
+                    mZslRing.addResult(result);
+                }
+                onRepeatingFrameDelivered();
             }
 
             @Override
@@ -947,6 +1518,8 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                                 /*handler*/Camera2Handler.this);
                                     } catch (CameraAccessException ex) {
                                         Log.e(TAG, "Unable to initiate capture", ex);
+                                        mOneshotCaptureCallback.onCaptureRejected(
+                                                "Unable to initiate capture");
                                     } finally {
                                         mOneshotCaptureCallback = null;
                                     }
@@ -969,6 +1542,15 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
                                         CaptureFailure failure) {
                 Log.e(TAG, "Capture attempt failed with reason " + failure.getReason());
+                // The HAL is still making progress, so don't hold back any further updates
+                onRepeatingFrameDelivered();
+            }
+
+            private void onRepeatingFrameDelivered() {
+                mAwaitingRepeatingFrame = false;
+                if (mRepeatingUpdatePending) {
+                    updateRepeatingPreviewRequest();
+                }
             }};
     }
 
@@ -978,22 +1560,38 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         private final CameraDevice mCamera;
         private final CameraDeviceInfo.Characteristics mCharacteristics;
         private final AndroidCamera2Capabilities mCapabilities;
+        private final boolean mZslSupported;
         private CameraSettings mLastSettings;
+        /** Immutable counterpart of {@link #mLastSettings}, or {@code null} if stale. */
+        private CameraSettings.Snapshot mLastSnapshot;
         private boolean mShutterSoundEnabled;
+        private final PreviewImageForward mPreviewForward;
 
         public AndroidCamera2ProxyImpl(
                 AndroidCamera2AgentImpl agent,
                 int cameraIndex,
                 CameraDevice camera,
                 CameraDeviceInfo.Characteristics characteristics,
-                CameraCharacteristics properties) {
+                AndroidCamera2Capabilities capabilities,
+                boolean zslSupported) {
             mCameraAgent = agent;
             mCameraIndex = cameraIndex;
             mCamera = camera;
             mCharacteristics = characteristics;
-            mCapabilities = new AndroidCamera2Capabilities(properties);
+            mCapabilities = capabilities;
+            mZslSupported = zslSupported;
             mLastSettings = null;
+            mLastSnapshot = null;
             mShutterSoundEnabled = true;
+            mPreviewForward = new PreviewImageForward(this);
+        }
+
+        /**
+         * @return The forwarder for this camera's preview callbacks, which may
+         *         only be used on the camera handler thread.
+         */
+        PreviewImageForward getPreviewForward() {
+            return mPreviewForward;
         }
 
         // TODO: Implement
@@ -1043,26 +1641,62 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             super.setPreviewTexture(surfaceTexture);
         }
 
-        // TODO: Implement
         @Override
-        public void setPreviewDataCallback(Handler handler, CameraPreviewDataCallback cb) {}
+        public void setPreviewDataCallback(Handler handler, CameraPreviewDataCallback cb) {
+            sendPreviewCallback(CameraActions.SET_PREVIEW_CALLBACK, cb == null ? null :
+                    new PreviewImageForward.Target(handler, cb, PreviewImageForward.MODE_COPY));
+        }
 
-        // TODO: Implement
         @Override
-        public void setOneShotPreviewCallback(Handler handler, CameraPreviewDataCallback cb) {}
+        public void setOneShotPreviewCallback(Handler handler, CameraPreviewDataCallback cb) {
+            sendPreviewCallback(CameraActions.SET_ONE_SHOT_PREVIEW_CALLBACK, cb == null ? null :
+                    new PreviewImageForward.Target(handler, cb,
+                            PreviewImageForward.MODE_ONE_SHOT));
+        }
 
-        // TODO: Implement
         @Override
-        public void setPreviewDataCallbackWithBuffer(Handler handler, CameraPreviewDataCallback cb)
-                {}
+        public void setPreviewDataCallbackWithBuffer(Handler handler,
+                                                     CameraPreviewDataCallback cb) {
+            sendPreviewCallback(CameraActions.SET_PREVIEW_CALLBACK_WITH_BUFFER, cb == null ? null :
+                    new PreviewImageForward.Target(handler, cb,
+                            PreviewImageForward.MODE_WITH_BUFFER));
+        }
 
-        // TODO: Implement
-        public void addCallbackBuffer(final byte[] callbackBuffer) {}
+        @Override
+        public boolean setPreviewImageCallback(Handler handler, CameraPreviewImageCallback cb) {
+            sendPreviewCallback(CameraActions.SET_PREVIEW_CALLBACK, cb == null ? null :
+                    new PreviewImageForward.Target(handler, cb));
+            return true;
+        }
 
         @Override
-        public void autoFocus(final Handler handler, final CameraAFCallback cb) {
+        public long getDroppedPreviewFrameCount() {
+            return mPreviewForward.getDroppedFrameCount();
+        }
+
+        @Override
+        public long getCoalescedSettingsUpdateCount() {
+            return mCameraHandler.getCoalescedSettingsUpdateCount();
+        }
+
+        private void sendPreviewCallback(final int action,
+                                         final PreviewImageForward.Target target) {
             try {
                 mDispatchThread.runJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCameraHandler.obtainMessage(action, target).sendToTarget();
+                    }
+                });
+            } catch (RuntimeException ex) {
+                mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+        }
+
+        @Override
+        public void autoFocus(final Handler handler, final CameraAFCallback cb) {
+            try {
+                mDispatchThread.runUrgentJob(new Runnable() {
                     @Override
                     public void run() {
                         CameraAFCallback cbForward = null;
@@ -1131,11 +1765,114 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                 CameraPictureCallback postview,
                                 final CameraPictureCallback jpeg) {
             // TODO: We never call raw or postview
+            sendCapture(createCaptureListener(handler, shutter, jpeg, null));
+        }
+
+        @Override
+        public void takePicture(Handler handler, CameraShutterCallback shutter,
+                                CameraPictureBufferCallback jpeg) {
+            sendCapture(createCaptureListener(handler, shutter, null, jpeg));
+        }
+
+        private void sendCapture(final CaptureAvailableListener picListener) {
+            markShutterRequested();
+            try {
+                boolean queued = mDispatchThread.runUrgentJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Wait until PREVIEW_ACTIVE or better
+                        mCameraState.waitForStates(
+                                ~(AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE - 1));
+                        mCameraHandler.sendUrgentMessage(mCameraHandler.obtainMessage(
+                                CameraActions.CAPTURE_PHOTO, picListener));
+                    }
+                });
+                if (!queued) {
+                    picListener.onCaptureRejected("Camera master thread job queue full");
+                }
+            } catch (RuntimeException ex) {
+                mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+        }
+
+        @Override
+        public boolean takeBurst(final Handler handler, final int count,
+                                 final CameraShutterCallback shutter,
+                                 final CameraPictureCallback jpeg) {
+            if (count <= 0) {
+                Log.w(TAG, "Ignoring burst of " + count + " pictures");
+                return false;
+            }
             final CaptureAvailableListener picListener =
-                    new CaptureAvailableListener() {
+                    createCaptureListener(handler, shutter, jpeg, null);
+            markShutterRequested();
+            try {
+                mDispatchThread.runUrgentJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Wait until PREVIEW_ACTIVE or better
+                        mCameraState.waitForStates(
+                                ~(AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE - 1));
+                        mCameraHandler.sendUrgentMessage(mCameraHandler.obtainMessage(
+                                CameraActions.CAPTURE_BURST, count, 0, picListener));
+                    }
+                });
+            } catch (RuntimeException ex) {
+                mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean setZeroShutterLagEnabled(final boolean enable) {
+            if (enable && !mZslSupported) {
+                Log.w(TAG, "Zero shutter lag requires a FULL hardware level camera");
+                return false;
+            }
+            try {
+                mDispatchThread.runJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCameraHandler.obtainMessage(CameraActions.ENABLE_ZERO_SHUTTER_LAG,
+                                enable ? 1 : 0, 0).sendToTarget();
+                    }
+                });
+            } catch (RuntimeException ex) {
+                mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+            return true;
+        }
+
+        /**
+         * Creates a listener forwarding the shutter and JPEG data of each
+         * picture taken to the client's callbacks on {@code handler}. At most
+         * one of {@code jpeg}, which receives a copy of the data, and
+         * {@code jpegBuffer}, which is lent the capture buffer itself, may be
+         * non-null.
+         */
+        private CaptureAvailableListener createCaptureListener(final Handler handler,
+                final CameraShutterCallback shutter, final CameraPictureCallback jpeg,
+                final CameraPictureBufferCallback jpegBuffer) {
+            return new CaptureAvailableListener() {
                 @Override
                 public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
                                              long timestamp, long frameNumber) {
+                    postShutter();
+                }
+
+                @Override
+                public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
+                                            CaptureFailure failure) {
+                    onCaptureRejected("Capture failed with reason " + failure.getReason());
+                }
+
+                @Override
+                public void onCaptureRejected(String reason) {
+                    reportRejection(jpeg, reason);
+                    reportRejection(jpegBuffer, reason);
+                }
+
+                private void postShutter() {
                     if (shutter != null) {
                         handler.post(new Runnable() {
                             @Override
@@ -1143,6 +1880,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                 if (mShutterSoundEnabled) {
                                     mNoisemaker.play(MediaActionSound.SHUTTER_CLICK);
                                 }
+                                markShutterDelivered();
                                 shutter.onShutter(AndroidCamera2ProxyImpl.this);
                             }});
                     }
@@ -1150,33 +1888,82 @@ class AndroidCamera2AgentImpl extends CameraAgent {
 
                 @Override
                 public void onImageAvailable(ImageReader reader) {
-                    try (Image image = reader.acquireNextImage()) {
-                        if (jpeg != null) {
+                    final Image image;
+                    try {
+                        image = reader.acquireNextImage();
+                    } catch (IllegalStateException ex) {
+                        // Can't happen while lent images are capped below the reader's maximum
+                        Log.e(TAG, "Unable to acquire captured image", ex);
+                        return;
+                    }
+                    if (image == null) {
+                        return;
+                    }
+
+                    ImageLender lender = mCameraHandler.getCaptureLender(reader);
+                    if (jpegBuffer != null && lender != null && lender.canLend()) {
+                        // The image goes back to the reader only once the client releases it.
+                        final PictureBuffer buffer = new PictureBuffer(
+                                image.getPlanes()[0].getBuffer(), lender.lend(image));
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                jpegBuffer.onPictureTaken(buffer, AndroidCamera2ProxyImpl.this);
+                            }});
+                        return;
+                    }
+                    try {
+                        if (jpeg != null || jpegBuffer != null) {
+                            // Too many pictures are still lent out, so hand over a copy instead
                             ByteBuffer buffer = image.getPlanes()[0].getBuffer();
                             final byte[] pixels = new byte[buffer.remaining()];
                             buffer.get(pixels);
                             handler.post(new Runnable() {
                                 @Override
                                 public void run() {
-                                    jpeg.onPictureTaken(pixels, AndroidCamera2ProxyImpl.this);
+                                    if (jpeg != null) {
+                                        jpeg.onPictureTaken(pixels, AndroidCamera2ProxyImpl.this);
+                                    } else {
+                                        jpegBuffer.onPictureTaken(
+                                                new PictureBuffer(ByteBuffer.wrap(pixels), null),
+                                                AndroidCamera2ProxyImpl.this);
+                                    }
                                 }});
                         }
+                    } finally {
+                        image.close();
                     }
-                }};
-            try {
-                mDispatchThread.runJob(new Runnable() {
-                    @Override
-                    public void run() {
-                        // Wait until PREVIEW_ACTIVE or better
-                        mCameraState.waitForStates(
-                                ~(AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE - 1));
-                        mCameraHandler.obtainMessage(CameraActions.CAPTURE_PHOTO, picListener)
-                                .sendToTarget();
+                }
+
+                @Override
+                public boolean onZeroShutterLagFrame(Image frame, TotalCaptureResult result) {
+                    postShutter();
+                    if (jpeg != null || jpegBuffer != null) {
+                        // Copy out on the camera thread so the frame can be recycled right away,
+                        // but leave the slow compression to the client's thread.
+                        final byte[] nv21 = YuvConversions.copyToNv21(frame);
+                        final int width = frame.getWidth();
+                        final int height = frame.getHeight();
+                        Byte qualityMaybe = result.get(CaptureResult.JPEG_QUALITY);
+                        final int quality = qualityMaybe != null ? qualityMaybe : 95;
+                        Integer orientationMaybe = result.get(CaptureResult.JPEG_ORIENTATION);
+                        final int orientation = orientationMaybe != null ? orientationMaybe : 0;
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                byte[] data = YuvConversions.compressNv21(nv21, width, height,
+                                        quality, orientation);
+                                if (jpeg != null) {
+                                    jpeg.onPictureTaken(data, AndroidCamera2ProxyImpl.this);
+                                } else {
+                                    jpegBuffer.onPictureTaken(
+                                            new PictureBuffer(ByteBuffer.wrap(data), null),
+                                            AndroidCamera2ProxyImpl.this);
+                                }
+                            }});
                     }
-                });
-            } catch (RuntimeException ex) {
-                mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
-            }
+                    return true;
+                }};
         }
 
         // TODO: Implement
@@ -1207,11 +1994,22 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         @Override
         public CameraSettings getSettings() {
             if (mLastSettings == null) {
-                mLastSettings = mCameraHandler.buildSettings(mCapabilities);
+                mLastSettings = (mLastSnapshot != null ? mLastSnapshot.edit() :
+                        mCameraHandler.buildSettings(mCapabilities));
             }
+            // The caller may modify the returned instance
+            mLastSnapshot = null;
             return mLastSettings;
         }
 
+        @Override
+        public CameraSettings.Snapshot getSettingsSnapshot() {
+            if (mLastSnapshot == null) {
+                mLastSnapshot = getSettings().snapshot();
+            }
+            return mLastSnapshot;
+        }
+
         @Override
         public boolean applySettings(CameraSettings settings) {
             if (settings == null) {
@@ -1226,6 +2024,28 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             // Wait for any state that isn't OPENED
             if (applySettingsHelper(settings, ~AndroidCamera2StateHolder.CAMERA_UNOPENED)) {
                 mLastSettings = settings;
+                mLastSnapshot = null;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean applySettings(CameraSettings.Snapshot snapshot) {
+            if (snapshot == null) {
+                Log.w(TAG, "null parameters in applySettings()");
+                return false;
+            }
+            if (!(snapshot.getSettings() instanceof AndroidCamera2Settings)) {
+                Log.e(TAG, "Provided settings not compatible with the backing framework API");
+                return false;
+            }
+
+            // Wait for any state that isn't OPENED
+            if (applySettingsHelper(snapshot, ~AndroidCamera2StateHolder.CAMERA_UNOPENED)) {
+                // Only materialize a mutable copy if someone asks for one
+                mLastSettings = null;
+                mLastSnapshot = snapshot;
                 return true;
             }
             return false;
@@ -1287,15 +2107,15 @@ class AndroidCamera2AgentImpl extends CameraAgent {
     }
 
     private static class AndroidCamera2DeviceInfo implements CameraDeviceInfo {
-        private final CameraManager mCameraManager;
+        private final AndroidCamera2AgentImpl mAgent;
         private final String[] mCameraIds;
         private final int mNumberOfCameras;
         private final int mFirstBackCameraId;
         private final int mFirstFrontCameraId;
 
-        public AndroidCamera2DeviceInfo(CameraManager cameraManager,
+        public AndroidCamera2DeviceInfo(AndroidCamera2AgentImpl agent,
                                         String[] cameraIds, int numberOfCameras) {
-            mCameraManager = cameraManager;
+            mAgent = agent;
             mCameraIds = cameraIds;
             mNumberOfCameras = numberOfCameras;
 
@@ -1303,8 +2123,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             int firstFrontId = NO_DEVICE;
             for (int id = 0; id < cameraIds.length; ++id) {
                 try {
-                    int lensDirection = cameraManager.getCameraCharacteristics(cameraIds[id])
-                            .get(CameraCharacteristics.LENS_FACING);
+                    int lensDirection = agent.getCacheEntry(cameraIds[id]).mLensFacing;
                     if (firstBackId == NO_DEVICE &&
                             lensDirection == CameraCharacteristics.LENS_FACING_BACK) {
                         firstBackId = id;
@@ -1325,8 +2144,8 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         public Characteristics getCharacteristics(int cameraId) {
             String actualId = mCameraIds[cameraId];
             try {
-                CameraCharacteristics info = mCameraManager.getCameraCharacteristics(actualId);
-                return new AndroidCharacteristics2(info);
+                CapabilitiesCache.Entry info = mAgent.getCacheEntry(actualId);
+                return new AndroidCharacteristics2(info.mLensFacing, info.mSensorOrientation);
             } catch (CameraAccessException ex) {
                 return null;
             }
@@ -1348,27 +2167,32 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         }
 
         private static class AndroidCharacteristics2 extends Characteristics {
-            private CameraCharacteristics mCameraInfo;
+            private final int mLensFacing;
+            private final int mSensorOrientation;
 
             AndroidCharacteristics2(CameraCharacteristics cameraInfo) {
-                mCameraInfo = cameraInfo;
+                this(cameraInfo.get(CameraCharacteristics.LENS_FACING),
+                        cameraInfo.get(CameraCharacteristics.SENSOR_ORIENTATION));
+            }
+
+            AndroidCharacteristics2(int lensFacing, int sensorOrientation) {
+                mLensFacing = lensFacing;
+                mSensorOrientation = sensorOrientation;
             }
 
             @Override
             public boolean isFacingBack() {
-                return mCameraInfo.get(CameraCharacteristics.LENS_FACING)
-                        .equals(CameraCharacteristics.LENS_FACING_BACK);
+                return mLensFacing == CameraCharacteristics.LENS_FACING_BACK;
             }
 
             @Override
             public boolean isFacingFront() {
-                return mCameraInfo.get(CameraCharacteristics.LENS_FACING)
-                        .equals(CameraCharacteristics.LENS_FACING_FRONT);
+                return mLensFacing == CameraCharacteristics.LENS_FACING_FRONT;
             }
 
             @Override
             public int getSensorOrientation() {
-                return mCameraInfo.get(CameraCharacteristics.SENSOR_ORIENTATION);
+                return mSensorOrientation;
             }
 
             @Override
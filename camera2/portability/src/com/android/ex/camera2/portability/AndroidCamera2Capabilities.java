@@ -29,6 +29,8 @@ import android.util.Rational;
 
 import com.android.ex.camera2.portability.debug.Log;
 
+import java.io.DataInput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -104,6 +106,13 @@ public class AndroidCamera2Capabilities extends CameraCapabilities {
         // TODO: Detect other features
     }
 
+    /**
+     * Restores capabilities serialized by {@link #writeTo}.
+     */
+    AndroidCamera2Capabilities(DataInput in) throws IOException {
+        super(new Stringifier(), in);
+    }
+
     private void buildSceneModes(CameraCharacteristics p) {
         int[] scenes = p.get(CONTROL_AVAILABLE_SCENE_MODES);
         if (scenes != null) {
@@ -44,11 +44,17 @@ public class AndroidCamera2Settings extends CameraSettings {
     private static final Log.Tag TAG = new Log.Tag("AndCam2Set");
 
     private final Builder mTemplateSettings;
-    private final Camera2RequestSettingsSet mRequestSettings;
+    /** Regenerated in full by {@link #getRequestSettings}, so copies don't inherit it. */
+    private Camera2RequestSettingsSet mRequestSettings;
+    /** Whether this instance backs a snapshot, and so has its request settings built for good. */
+    private boolean mFrozen;
     /** Sensor's active array bounds. */
     private final Rect mActiveArray;
-    /** Crop rectangle for digital zoom (measured WRT the active array). */
-    private final Rect mCropRectangle;
+    /**
+     * Crop rectangle for digital zoom (measured WRT the active array). Replaced rather than
+     * modified, since it is shared with copies and with generated request settings.
+     */
+    private Rect mCropRectangle;
     /** Bounds of visible preview portion (measured WRT the active array). */
     private Rect mVisiblePreviewRectangle;
 
@@ -138,9 +144,8 @@ public class AndroidCamera2Settings extends CameraSettings {
     public AndroidCamera2Settings(AndroidCamera2Settings other) {
         super(other);
         mTemplateSettings = other.mTemplateSettings;
-        mRequestSettings = new Camera2RequestSettingsSet(other.mRequestSettings);
         mActiveArray = other.mActiveArray;
-        mCropRectangle = new Rect(other.mCropRectangle);
+        mCropRectangle = other.mCropRectangle;
     }
 
     @Override
@@ -148,6 +153,12 @@ public class AndroidCamera2Settings extends CameraSettings {
         return new AndroidCamera2Settings(this);
     }
 
+    @Override
+    protected void freeze() {
+        getRequestSettings();
+        mFrozen = true;
+    }
+
     private <T> T queryTemplateDefaultOrMakeOneUp(Key<T> key, T defaultDefault) {
         T val = mTemplateSettings.get(key);
         if (val != null) {
@@ -187,7 +198,7 @@ public class AndroidCamera2Settings extends CameraSettings {
         super.setZoomRatio(ratio);
 
         // Compute the crop rectangle to be passed to the framework
-        mCropRectangle.set(0, 0,
+        mCropRectangle = new Rect(0, 0,
                 toIntConstrained(
                         mActiveArray.width() / mCurrentZoomRatio, 0, mActiveArray.width()),
                 toIntConstrained(
@@ -249,7 +260,18 @@ public class AndroidCamera2Settings extends CameraSettings {
         mRequestSettings.set(setting, matchesTemplateDefault(setting) ? null : possibleChoice);
     }
 
+    /**
+     * @return The request settings reflecting the current state. For settings
+     *         backing a snapshot, this is the set built when the snapshot was
+     *         taken, which may be read from any thread but must not be modified.
+     */
     public Camera2RequestSettingsSet getRequestSettings() {
+        if (mFrozen) {
+            return mRequestSettings;
+        }
+        if (mRequestSettings == null) {
+            mRequestSettings = new Camera2RequestSettingsSet();
+        }
         updateRequestSettingOrForceToDefault(CONTROL_AE_REGIONS,
                 legacyAreasToMeteringRectangles(mMeteringAreas));
         updateRequestSettingOrForceToDefault(CONTROL_AF_REGIONS,
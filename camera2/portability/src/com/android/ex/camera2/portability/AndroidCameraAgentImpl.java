@@ -38,9 +38,15 @@ import android.view.SurfaceHolder;
 import com.android.ex.camera2.portability.debug.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A class to implement {@link CameraAgent} of the Android camera framework.
@@ -50,6 +56,21 @@ class AndroidCameraAgentImpl extends CameraAgent {
 
     private CameraDeviceInfo.Characteristics mCharacteristics;
     private AndroidCameraCapabilities mCapabilities;
+    private volatile AndroidCameraDeviceInfo mDeviceInfo;
+    private final CapabilitiesCache mPersistentCache;
+    private final Runnable mSavePersistentCache = new Runnable() {
+        @Override
+        public void run() {
+            mPersistentCache.save();
+        }
+    };
+
+    /**
+     * The cameras whose persistent cache entries were checked against the
+     * device, shared by all agents of the process.
+     */
+    private static final Set<Integer> sValidatedCameras =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
 
     private final CameraHandler mCameraHandler;
     private final HandlerThread mCameraHandlerThread;
@@ -78,12 +99,33 @@ class AndroidCameraAgentImpl extends CameraAgent {
     private CameraExceptionHandler mExceptionHandler = sDefaultExceptionHandler;
 
     AndroidCameraAgentImpl() {
+        this(false);
+    }
+
+    /**
+     * @param lockFreeDispatch Whether to dispatch jobs through a
+     *                         {@link LockFreeDispatchThread}.
+     */
+    AndroidCameraAgentImpl(boolean lockFreeDispatch) {
+        this(null, lockFreeDispatch);
+    }
+
+    /**
+     * @param persistentCache Where to keep device facts across app starts, or
+     *                        {@code null} not to.
+     * @param lockFreeDispatch Whether to dispatch jobs through a
+     *                         {@link LockFreeDispatchThread}.
+     */
+    AndroidCameraAgentImpl(CapabilitiesCache persistentCache, boolean lockFreeDispatch) {
+        mPersistentCache = persistentCache;
         mCameraHandlerThread = new HandlerThread("Camera Handler Thread");
         mCameraHandlerThread.start();
         mCameraHandler = new CameraHandler(this, mCameraHandlerThread.getLooper());
         mExceptionHandler = new CameraExceptionHandler(mCameraHandler);
         mCameraState = new AndroidCameraStateHolder();
-        mDispatchThread = new DispatchThread(mCameraHandler, mCameraHandlerThread);
+        mDispatchThread = lockFreeDispatch ?
+                new LockFreeDispatchThread(mCameraHandler, mCameraHandlerThread) :
+                new DispatchThread(mCameraHandler, mCameraHandlerThread);
         mDispatchThread.start();
     }
 
@@ -96,7 +138,69 @@ class AndroidCameraAgentImpl extends CameraAgent {
 
     @Override
     public CameraDeviceInfo getCameraDeviceInfo() {
-        return AndroidCameraDeviceInfo.create();
+        return getCachedDeviceInfo();
+    }
+
+    /**
+     * The camera1 device list is fixed for the lifetime of the process, so we
+     * only ever enumerate it once successfully.
+     */
+    private AndroidCameraDeviceInfo getCachedDeviceInfo() {
+        AndroidCameraDeviceInfo info = mDeviceInfo;
+        if (info == null) {
+            info = AndroidCameraDeviceInfo.create(mPersistentCache);
+            mDeviceInfo = info;
+            saveCacheLater();
+        }
+        return info;
+    }
+
+    /**
+     * @param cameraId The camera1 API ID of the device.
+     * @param params The device's current parameters.
+     * @return The device's capabilities, preferably restored from the
+     *         persistent cache instead of parsed from {@code params}.
+     */
+    private AndroidCameraCapabilities getCapabilities(int cameraId, Parameters params) {
+        CapabilitiesCache.Entry entry = mPersistentCache != null ?
+                mPersistentCache.get(CapabilitiesCache.key(1, Integer.toString(cameraId))) : null;
+        if (entry != null && entry.hasCapabilities()) {
+            try {
+                return new AndroidCameraCapabilities(entry.openCapabilities());
+            } catch (IOException ex) {
+                Log.w(TAG, "Ignoring unreadable cached capabilities of camera " + cameraId, ex);
+            }
+        }
+        return new AndroidCameraCapabilities(params);
+    }
+
+    /**
+     * Checks the persistently cached facts about a camera device against its
+     * actual parameters, correcting the cache if needed. The correction only
+     * takes effect the next time the camera is opened.
+     */
+    private void validateCacheEntry(int cameraId, Parameters params) {
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        Camera.getCameraInfo(cameraId, info);
+        CapabilitiesCache.Entry actual = new CapabilitiesCache.Entry(info.facing,
+                info.orientation, info.canDisableShutterSound,
+                new AndroidCameraCapabilities(params));
+        String key = CapabilitiesCache.key(1, Integer.toString(cameraId));
+        if (!actual.sameAs(mPersistentCache.get(key))) {
+            Log.i(TAG, "Updating cached capabilities of camera " + cameraId);
+            mPersistentCache.put(key, actual);
+            saveCacheLater();
+        }
+    }
+
+    /**
+     * Writes the persistent cache out on the camera handler thread.
+     */
+    private void saveCacheLater() {
+        if (mPersistentCache != null) {
+            mCameraHandler.removeCallbacks(mSavePersistentCache);
+            mCameraHandler.post(mSavePersistentCache);
+        }
     }
 
     @Override
@@ -140,7 +244,11 @@ class AndroidCameraAgentImpl extends CameraAgent {
             mFirstFrontCameraId = firstFrontCameraId;
         }
 
-        public static AndroidCameraDeviceInfo create() {
+        /**
+         * @param cache Where to look up and record the camera infos, or
+         *              {@code null} to always query them.
+         */
+        public static AndroidCameraDeviceInfo create(CapabilitiesCache cache) {
             int numberOfCameras;
             Camera.CameraInfo[] cameraInfos;
             try {
@@ -148,7 +256,20 @@ class AndroidCameraAgentImpl extends CameraAgent {
                 cameraInfos = new Camera.CameraInfo[numberOfCameras];
                 for (int i = 0; i < numberOfCameras; i++) {
                     cameraInfos[i] = new Camera.CameraInfo();
+                    String key = CapabilitiesCache.key(1, Integer.toString(i));
+                    CapabilitiesCache.Entry entry = cache != null ? cache.get(key) : null;
+                    if (entry != null) {
+                        cameraInfos[i].facing = entry.mLensFacing;
+                        cameraInfos[i].orientation = entry.mSensorOrientation;
+                        cameraInfos[i].canDisableShutterSound = entry.mCanDisableShutterSound;
+                        continue;
+                    }
                     Camera.getCameraInfo(i, cameraInfos[i]);
+                    if (cache != null) {
+                        cache.put(key, new CapabilitiesCache.Entry(cameraInfos[i].facing,
+                                cameraInfos[i].orientation,
+                                cameraInfos[i].canDisableShutterSound, null));
+                    }
                 }
             } catch (RuntimeException ex) {
                 Log.e(TAG, "Exception while creating CameraDeviceInfo", ex);
@@ -227,6 +348,8 @@ class AndroidCameraAgentImpl extends CameraAgent {
 
     private static class ParametersCache {
         private Parameters mParameters;
+        /** The flattened parameters as last read from the camera, while still current. */
+        private String mSnapshot;
         private Camera mCamera;
 
         public ParametersCache(Camera camera) {
@@ -235,6 +358,35 @@ class AndroidCameraAgentImpl extends CameraAgent {
 
         public synchronized void invalidate() {
             mParameters = null;
+            mSnapshot = null;
+        }
+
+        /**
+         * Sends the parameters to the camera, unless they don't differ from
+         * the ones it last reported. Setting parameters is slow on many HALs,
+         * and they tend to be reapplied wholesale even if only one changed.
+         *
+         * @param parameters The parameters to apply, usually the ones returned
+         *                   by {@link #getBlocking} with some modifications.
+         * @return Whether the camera had to be updated.
+         */
+        public synchronized boolean apply(Parameters parameters) {
+            String flattened = parameters.flatten();
+            if (mSnapshot != null) {
+                List<String> changedKeys = diffFlattened(mSnapshot, flattened);
+                if (changedKeys.isEmpty()) {
+                    Log.v(TAG, "Skipping redundant camera parameters update");
+                    return false;
+                }
+                Log.v(TAG, "Updating camera parameters " + changedKeys);
+            }
+            try {
+                mCamera.setParameters(parameters);
+            } finally {
+                // The camera may adjust what we asked for, so read them back next time
+                invalidate();
+            }
+            return true;
         }
 
         /**
@@ -249,9 +401,43 @@ class AndroidCameraAgentImpl extends CameraAgent {
                     Log.e(TAG, "Camera object returned null parameters!");
                     throw new IllegalStateException("camera.getParameters returned null");
                 }
+                mSnapshot = mParameters.flatten();
             }
             return mParameters;
         }
+
+        /**
+         * @return The keys whose values differ between the two flattened
+         *         parameter sets, including keys present in only one of them.
+         */
+        private static List<String> diffFlattened(String before, String after) {
+            if (before.equals(after)) {
+                return Collections.emptyList();
+            }
+            Map<String, String> beforeMap = unflatten(before);
+            Map<String, String> afterMap = unflatten(after);
+            List<String> changed = new ArrayList<String>();
+            for (Map.Entry<String, String> entry : afterMap.entrySet()) {
+                if (!entry.getValue().equals(beforeMap.remove(entry.getKey()))) {
+                    changed.add(entry.getKey());
+                }
+            }
+            changed.addAll(beforeMap.keySet());
+            return changed;
+        }
+
+        private static Map<String, String> unflatten(String flattened) {
+            Map<String, String> map = new HashMap<String, String>();
+            StringTokenizer tokenizer = new StringTokenizer(flattened, ";");
+            while (tokenizer.hasMoreTokens()) {
+                String pair = tokenizer.nextToken();
+                int separator = pair.indexOf('=');
+                if (separator > 0) {
+                    map.put(pair.substring(0, separator), pair.substring(separator + 1));
+                }
+            }
+            return map;
+        }
     }
 
     /**
@@ -263,6 +449,18 @@ class AndroidCameraAgentImpl extends CameraAgent {
         private int mCameraId = -1;
         private ParametersCache mParameterCache;
         private int mCancelAfPending = 0;
+        // Whether mCamera was opened by prewarm() and hasn't been claimed yet:
+        private boolean mSpeculativelyOpened;
+
+        private final Runnable mSpeculativeOpenExpiry = new Runnable() {
+            @Override
+            public void run() {
+                if (mSpeculativelyOpened) {
+                    Log.i(TAG, "Closing unclaimed speculatively opened camera " + mCameraId);
+                    releaseCamera();
+                }
+            }
+        };
 
         private class CaptureCallbacks {
             public final ShutterCallback mShutter;
@@ -284,6 +482,11 @@ class AndroidCameraAgentImpl extends CameraAgent {
             mAgent = agent;
         }
 
+        @Override
+        protected int getMetricsCameraId() {
+            return mCameraId;
+        }
+
         private void startFaceDetection() {
             mCamera.startFaceDetection();
         }
@@ -325,7 +528,7 @@ class AndroidCameraAgentImpl extends CameraAgent {
                 final PictureCallback postView,
                 final PictureCallback jpeg) {
             final CaptureCallbacks callbacks = new CaptureCallbacks(shutter, raw, postView, jpeg);
-            obtainMessage(CameraActions.CAPTURE_PHOTO, callbacks).sendToTarget();
+            sendUrgentMessage(obtainMessage(CameraActions.CAPTURE_PHOTO, callbacks));
         }
 
         @Override
@@ -341,6 +544,50 @@ class AndroidCameraAgentImpl extends CameraAgent {
             }
         }
 
+        /**
+         * Opens the camera device and reads everything we need to know about
+         * it, leaving the camera in the idle state.
+         *
+         * @return Whether the device could be opened.
+         */
+        private boolean openCameraDevice(int cameraId) {
+            Log.i(TAG, "Opening camera " + cameraId + " with camera1 API");
+            mCamera = android.hardware.Camera.open(cameraId);
+            if (mCamera == null) {
+                return false;
+            }
+            mCameraId = cameraId;
+            mParameterCache = new ParametersCache(mCamera);
+
+            mCharacteristics = getCachedDeviceInfo().getCharacteristics(cameraId);
+            final Parameters params = mParameterCache.getBlocking();
+            mCapabilities = getCapabilities(cameraId, params);
+            // Validating costs as much as the cache saves, so only do it once per process
+            if (mPersistentCache != null && sValidatedCameras.add(cameraId)) {
+                final int openedCameraId = cameraId;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        validateCacheEntry(openedCameraId, params);
+                    }
+                });
+            }
+
+            mCamera.setErrorCallback(this);
+
+            mCameraState.setState(AndroidCameraStateHolder.CAMERA_IDLE);
+            return true;
+        }
+
+        private void releaseCamera() {
+            mSpeculativelyOpened = false;
+            removeCallbacks(mSpeculativeOpenExpiry);
+            mCamera.release();
+            mCameraState.setState(AndroidCameraStateHolder.CAMERA_UNOPENED);
+            mCamera = null;
+            mCameraId = -1;
+        }
+
         /**
          * This method does not deal with the API level check.  Everyone should
          * check first for supported operations before sending message to this handler.
@@ -361,25 +608,24 @@ class AndroidCameraAgentImpl extends CameraAgent {
                     case CameraActions.OPEN_CAMERA: {
                         final CameraOpenCallback openCallback = (CameraOpenCallback) msg.obj;
                         final int cameraId = msg.arg1;
-                        if (mCameraState.getState() != AndroidCameraStateHolder.CAMERA_UNOPENED) {
+                        boolean adopted = false;
+                        if (mSpeculativelyOpened) {
+                            mSpeculativelyOpened = false;
+                            removeCallbacks(mSpeculativeOpenExpiry);
+                            if (cameraId == mCameraId) {
+                                Log.i(TAG, "Adopting speculatively opened camera " + cameraId);
+                                adopted = true;
+                            } else {
+                                releaseCamera();
+                            }
+                        }
+                        if (!adopted && mCameraState.getState() !=
+                                AndroidCameraStateHolder.CAMERA_UNOPENED) {
                             openCallback.onDeviceOpenedAlready(cameraId, generateHistoryString(cameraId));
                             break;
                         }
 
-                        Log.i(TAG, "Opening camera " + cameraId + " with camera1 API");
-                        mCamera = android.hardware.Camera.open(cameraId);
-                        if (mCamera != null) {
-                            mCameraId = cameraId;
-                            mParameterCache = new ParametersCache(mCamera);
-
-                            mCharacteristics =
-                                    AndroidCameraDeviceInfo.create().getCharacteristics(cameraId);
-                            mCapabilities = new AndroidCameraCapabilities(
-                                    mParameterCache.getBlocking());
-
-                            mCamera.setErrorCallback(this);
-
-                            mCameraState.setState(AndroidCameraStateHolder.CAMERA_IDLE);
+                        if (adopted || openCameraDevice(cameraId)) {
                             if (openCallback != null) {
                                 CameraProxy cameraProxy = new AndroidCameraProxyImpl(
                                         mAgent, cameraId, mCamera, mCharacteristics, mCapabilities);
@@ -395,16 +641,41 @@ class AndroidCameraAgentImpl extends CameraAgent {
 
                     case CameraActions.RELEASE: {
                         if (mCamera != null) {
-                            mCamera.release();
-                            mCameraState.setState(AndroidCameraStateHolder.CAMERA_UNOPENED);
-                            mCamera = null;
-                            mCameraId = -1;
+                            releaseCamera();
                         } else {
                             Log.w(TAG, "Releasing camera without any camera opened.");
                         }
                         break;
                     }
 
+                    case CameraActions.PREWARM: {
+                        final int cameraId = msg.arg1;
+                        AndroidCameraDeviceInfo deviceInfo = getCachedDeviceInfo();
+                        if (msg.arg2 == 0 || cameraId == CameraDeviceInfo.NO_DEVICE ||
+                                deviceInfo == null ||
+                                cameraId >= deviceInfo.getNumberOfCameras()) {
+                            break;
+                        }
+                        if (mCameraState.getState() != AndroidCameraStateHolder.CAMERA_UNOPENED) {
+                            Log.i(TAG, "Not opening camera " + cameraId +
+                                    " speculatively, a camera is already open");
+                            break;
+                        }
+                        try {
+                            if (openCameraDevice(cameraId)) {
+                                mSpeculativelyOpened = true;
+                                postDelayed(mSpeculativeOpenExpiry, SPECULATIVE_OPEN_TIMEOUT_MS);
+                            }
+                        } catch (RuntimeException ex) {
+                            // Nobody is waiting for this camera yet; openCamera() will retry.
+                            Log.w(TAG, "Unable to open camera " + cameraId + " speculatively", ex);
+                            if (mCamera != null) {
+                                releaseCamera();
+                            }
+                        }
+                        break;
+                    }
+
                     case CameraActions.RECONNECT: {
                         final CameraOpenCallbackForward cbForward =
                                 (CameraOpenCallbackForward) msg.obj;
@@ -527,16 +798,14 @@ class AndroidCameraAgentImpl extends CameraAgent {
                         Parameters parameters = mParameterCache.getBlocking();
                         parameters.setRotation(
                                 msg.arg2 > 0 ? mCharacteristics.getJpegOrientation(msg.arg1) : 0);
-                        mCamera.setParameters(parameters);
-                        mParameterCache.invalidate();
+                        mParameterCache.apply(parameters);
                         break;
                     }
 
                     case CameraActions.SET_JPEG_ORIENTATION: {
                         Parameters parameters = mParameterCache.getBlocking();
                         parameters.setRotation(msg.arg1);
-                        mCamera.setParameters(parameters);
-                        mParameterCache.invalidate();
+                        mParameterCache.apply(parameters);
                         break;
                     }
 
@@ -564,16 +833,14 @@ class AndroidCameraAgentImpl extends CameraAgent {
                         Parameters parameters = mParameterCache.getBlocking();
                         CameraSettings settings = (CameraSettings) msg.obj;
                         applySettingsToParameters(settings, parameters);
-                        mCamera.setParameters(parameters);
-                        mParameterCache.invalidate();
+                        mParameterCache.apply(parameters);
                         break;
                     }
 
                     case CameraActions.SET_PARAMETERS: {
                         Parameters parameters = mParameterCache.getBlocking();
                         parameters.unflatten((String) msg.obj);
-                        mCamera.setParameters(parameters);
-                        mParameterCache.invalidate();
+                        mParameterCache.apply(parameters);
                         break;
                     }
 
@@ -764,6 +1031,7 @@ class AndroidCameraAgentImpl extends CameraAgent {
         private final Camera mCamera;
         private final CameraDeviceInfo.Characteristics mCharacteristics;
         private final AndroidCameraCapabilities mCapabilities;
+        private final AtomicLong mDroppedPreviewFrames = new AtomicLong();
 
         private AndroidCameraProxyImpl(
                 CameraAgent cameraAgent,
@@ -815,7 +1083,8 @@ class AndroidCameraAgentImpl extends CameraAgent {
                 public void run() {
                     mCameraHandler.obtainMessage(CameraActions.SET_PREVIEW_CALLBACK,
                             PreviewCallbackForward.getNewInstance(
-                                    handler, AndroidCameraProxyImpl.this, cb))
+                                    handler, AndroidCameraProxyImpl.this, cb, false,
+                                    mDroppedPreviewFrames))
                             .sendToTarget();
                 }
             });
@@ -829,7 +1098,8 @@ class AndroidCameraAgentImpl extends CameraAgent {
                 public void run() {
                     mCameraHandler.obtainMessage(CameraActions.SET_ONE_SHOT_PREVIEW_CALLBACK,
                             PreviewCallbackForward
-                                    .getNewInstance(handler, AndroidCameraProxyImpl.this, cb))
+                                    .getNewInstance(handler, AndroidCameraProxyImpl.this, cb,
+                                            false, mDroppedPreviewFrames))
                             .sendToTarget();
                 }
             });
@@ -843,12 +1113,18 @@ class AndroidCameraAgentImpl extends CameraAgent {
                 public void run() {
                     mCameraHandler.obtainMessage(CameraActions.SET_PREVIEW_CALLBACK_WITH_BUFFER,
                             PreviewCallbackForward
-                                    .getNewInstance(handler, AndroidCameraProxyImpl.this, cb))
+                                    .getNewInstance(handler, AndroidCameraProxyImpl.this, cb,
+                                            true, mDroppedPreviewFrames))
                             .sendToTarget();
                 }
             });
         }
 
+        @Override
+        public long getDroppedPreviewFrameCount() {
+            return mDroppedPreviewFrames.get();
+        }
+
         @Override
         public void autoFocus(final Handler handler, final CameraAFCallback cb) {
             final AutoFocusCallback afCallback = new AutoFocusCallback() {
@@ -867,7 +1143,7 @@ class AndroidCameraAgentImpl extends CameraAgent {
                     });
                 }
             };
-            mDispatchThread.runJob(new Runnable() {
+            mDispatchThread.runUrgentJob(new Runnable() {
                 @Override
                 public void run() {
                     // Don't bother to wait since camera is in bad state.
@@ -923,8 +1199,9 @@ class AndroidCameraAgentImpl extends CameraAgent {
                 }
             };
 
+            markShutterRequested();
             try {
-                mDispatchThread.runJob(new Runnable() {
+                boolean queued = mDispatchThread.runUrgentJob(new Runnable() {
                     @Override
                     public void run() {
                         // Don't bother to wait since camera is in bad state.
@@ -943,6 +1220,9 @@ class AndroidCameraAgentImpl extends CameraAgent {
                         );
                     }
                 });
+                if (!queued) {
+                    reportRejection(jpeg, "Camera master thread job queue full");
+                }
             } catch (final RuntimeException ex) {
                 mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
             }
@@ -1035,6 +1315,12 @@ class AndroidCameraAgentImpl extends CameraAgent {
                     AndroidCameraStateHolder.CAMERA_UNLOCKED);
         }
 
+        @Override
+        public boolean applySettings(CameraSettings.Snapshot snapshot) {
+            return applySettingsHelper(snapshot, AndroidCameraStateHolder.CAMERA_IDLE |
+                    AndroidCameraStateHolder.CAMERA_UNLOCKED);
+        }
+
         @Override
         public String dumpDeviceSettings() {
             Parameters parameters = getParameters();
@@ -1210,6 +1496,7 @@ class AndroidCameraAgentImpl extends CameraAgent {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
+                    mCamera.markShutterDelivered();
                     mCallback.onShutter(mCamera);
                 }
             });
@@ -1262,45 +1549,91 @@ class AndroidCameraAgentImpl extends CameraAgent {
 
     /**
      * A helper class to forward PreviewCallback to another thread.
+     *
+     * <p>Only the latest frame is kept for delivery: a frame which arrives
+     * while the previous one still hasn't reached the callback supersedes it,
+     * and the superseded one is counted as dropped. A single runnable is
+     * reused for every delivery, so no allocation happens per frame.</p>
      */
-    private static class PreviewCallbackForward implements PreviewCallback {
+    private static class PreviewCallbackForward implements PreviewCallback, Runnable {
         private final Handler mHandler;
         private final CameraPreviewDataCallback mCallback;
         private final CameraProxy mCamera;
+        private final boolean mRecycleBuffers;
+        private final AtomicLong mDroppedFrames;
+
+        private final Object mLock = new Object();
+        // Guarded by mLock:
+        private byte[] mPendingFrame;
+        private boolean mPosted;
 
         /**
          * Returns a new instance of {@link PreviewCallbackForward}.
          *
-         * @param handler The handler in which the callback will be invoked in.
-         * @param camera  The {@link CameraProxy} which the callback is from.
-         * @param cb      The callback to be invoked.
-         * @return        The instance of the {@link PreviewCallbackForward},
-         *                or null if any parameters is null.
+         * @param handler        The handler in which the callback will be invoked in.
+         * @param camera         The {@link CameraProxy} which the callback is from.
+         * @param cb             The callback to be invoked.
+         * @param recycleBuffers Whether frames live in callback buffers, so that
+         *                       superseded ones should be handed back to the
+         *                       camera via {@code addCallbackBuffer}.
+         * @param droppedFrames  The counter of superseded frames.
+         * @return               The instance of the {@link PreviewCallbackForward},
+         *                       or null if any parameters is null.
          */
         public static PreviewCallbackForward getNewInstance(
-                Handler handler, CameraProxy camera, CameraPreviewDataCallback cb) {
+                Handler handler, CameraProxy camera, CameraPreviewDataCallback cb,
+                boolean recycleBuffers, AtomicLong droppedFrames) {
             if (handler == null || camera == null || cb == null) {
                 return null;
             }
-            return new PreviewCallbackForward(handler, camera, cb);
+            return new PreviewCallbackForward(handler, camera, cb, recycleBuffers,
+                    droppedFrames);
         }
 
         private PreviewCallbackForward(
-                Handler h, CameraProxy camera, CameraPreviewDataCallback cb) {
+                Handler h, CameraProxy camera, CameraPreviewDataCallback cb,
+                boolean recycleBuffers, AtomicLong droppedFrames) {
             mHandler = h;
             mCamera = camera;
             mCallback = cb;
+            mRecycleBuffers = recycleBuffers;
+            mDroppedFrames = droppedFrames;
         }
 
         @Override
         public void onPreviewFrame(
                 final byte[] data, android.hardware.Camera camera) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mCallback.onPreviewFrame(data, mCamera);
+            byte[] superseded;
+            boolean post;
+            synchronized (mLock) {
+                superseded = mPendingFrame;
+                mPendingFrame = data;
+                post = !mPosted;
+                mPosted = true;
+            }
+            if (superseded != null) {
+                mDroppedFrames.incrementAndGet();
+                if (mRecycleBuffers) {
+                    // Called back on the camera handler thread, so we may use the camera.
+                    camera.addCallbackBuffer(superseded);
                 }
-            });
+            }
+            if (post) {
+                mHandler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            byte[] data;
+            synchronized (mLock) {
+                data = mPendingFrame;
+                mPendingFrame = null;
+                mPosted = false;
+            }
+            if (data != null) {
+                mCallback.onPreviewFrame(data, mCamera);
+            }
         }
     }
 
@@ -20,6 +20,8 @@ import android.hardware.Camera;
 
 import com.android.ex.camera2.portability.debug.Log;
 
+import java.io.DataInput;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -86,6 +88,13 @@ class AndroidCameraCapabilities extends CameraCapabilities {
         super(src);
     }
 
+    /**
+     * Restores capabilities serialized by {@link #writeTo}.
+     */
+    AndroidCameraCapabilities(DataInput in) throws IOException {
+        super(new Stringifier(), in);
+    }
+
     private void buildPreviewFpsRange(Camera.Parameters p) {
         List<int[]> supportedPreviewFpsRange = p.getSupportedPreviewFpsRange();
         if (supportedPreviewFpsRange != null) {
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.util.SparseArray;
+
+/**
+ * Latency histograms of the {@link CameraActions} handled on a camera
+ * handler, kept separately for each action and camera.
+ *
+ * <p>Each action's latency is the time from the message becoming due on the
+ * camera handler to the handler finishing it. It is split into time spent
+ * waiting behind other messages and time spent handling it. Durations are
+ * bucketed by powers of two milliseconds, so percentiles are upper bounds
+ * accurate to within a factor of two.</p>
+ */
+public class CameraActionMetrics {
+    /** Bucket {@code i} counts latencies below {@code 2^i} ms; the last is unbounded. */
+    private static final int BUCKET_COUNT = 17;
+
+    private static class ActionStats {
+        final long[] mBuckets = new long[BUCKET_COUNT];
+        long mCount;
+        long mTotalWaitMs;
+        long mTotalRunMs;
+        long mMaxMs;
+
+        void add(long waitMs, long runMs) {
+            long latencyMs = waitMs + runMs;
+            mBuckets[bucketOf(latencyMs)]++;
+            mCount++;
+            mTotalWaitMs += waitMs;
+            mTotalRunMs += runMs;
+            mMaxMs = Math.max(mMaxMs, latencyMs);
+        }
+
+        long percentileMs(double fraction) {
+            long rank = (long) Math.ceil(fraction * mCount);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(1L << i, mMaxMs);
+                }
+            }
+            return mMaxMs;
+        }
+    }
+
+    /** Camera ID to action to stats. */
+    private final SparseArray<SparseArray<ActionStats>> mStats =
+            new SparseArray<SparseArray<ActionStats>>();
+
+    CameraActionMetrics() {
+    }
+
+    private static int bucketOf(long latencyMs) {
+        if (latencyMs <= 0) {
+            return 0;
+        }
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(latencyMs));
+    }
+
+    /**
+     * Records a handled action. Only allocates the first time an action is
+     * seen for a camera.
+     */
+    synchronized void record(int cameraId, int action, long waitMs, long runMs) {
+        SparseArray<ActionStats> perCamera = mStats.get(cameraId);
+        if (perCamera == null) {
+            perCamera = new SparseArray<ActionStats>();
+            mStats.put(cameraId, perCamera);
+        }
+        ActionStats stats = perCamera.get(action);
+        if (stats == null) {
+            stats = new ActionStats();
+            perCamera.put(action, stats);
+        }
+        stats.add(Math.max(0, waitMs), Math.max(0, runMs));
+    }
+
+    private ActionStats getStatsLocked(int cameraId, int action) {
+        SparseArray<ActionStats> perCamera = mStats.get(cameraId);
+        return perCamera == null ? null : perCamera.get(action);
+    }
+
+    /**
+     * @param cameraId The camera ID, or {@code -1} for actions handled while
+     *                 no camera was open.
+     * @param action The {@link CameraActions} code.
+     * @return How many times the action was handled.
+     */
+    public synchronized long getCount(int cameraId, int action) {
+        ActionStats stats = getStatsLocked(cameraId, action);
+        return stats == null ? 0 : stats.mCount;
+    }
+
+    /**
+     * @param cameraId The camera ID.
+     * @param action The {@link CameraActions} code.
+     * @param fraction The percentile as a fraction in {@code (0, 1]}.
+     * @return An upper bound on the latency, in milliseconds, below which
+     *         that fraction of the action's runs finished, or {@code 0} if
+     *         it never ran.
+     */
+    public synchronized long getPercentileMs(int cameraId, int action, double fraction) {
+        if (fraction <= 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction out of range: " + fraction);
+        }
+        ActionStats stats = getStatsLocked(cameraId, action);
+        return stats == null || stats.mCount == 0 ? 0 : stats.percentileMs(fraction);
+    }
+
+    /**
+     * @return The longest latency of the action in milliseconds.
+     */
+    public synchronized long getMaxMs(int cameraId, int action) {
+        ActionStats stats = getStatsLocked(cameraId, action);
+        return stats == null ? 0 : stats.mMaxMs;
+    }
+
+    /**
+     * @return The mean time, in milliseconds, the action waited behind other
+     *         messages before being handled.
+     */
+    public synchronized long getAverageWaitMs(int cameraId, int action) {
+        ActionStats stats = getStatsLocked(cameraId, action);
+        return stats == null || stats.mCount == 0 ? 0 : stats.mTotalWaitMs / stats.mCount;
+    }
+
+    /**
+     * @return The mean time, in milliseconds, the camera handler spent
+     *         handling the action.
+     */
+    public synchronized long getAverageRunMs(int cameraId, int action) {
+        ActionStats stats = getStatsLocked(cameraId, action);
+        return stats == null || stats.mCount == 0 ? 0 : stats.mTotalRunMs / stats.mCount;
+    }
+
+    /**
+     * Discards everything recorded so far.
+     */
+    public synchronized void reset() {
+        mStats.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder dump = new StringBuilder("CameraActionMetrics{");
+        for (int i = 0; i < mStats.size(); i++) {
+            SparseArray<ActionStats> perCamera = mStats.valueAt(i);
+            for (int j = 0; j < perCamera.size(); j++) {
+                ActionStats stats = perCamera.valueAt(j);
+                dump.append("\n  camera=").append(mStats.keyAt(i))
+                        .append(' ').append(CameraActions.stringify(perCamera.keyAt(j)))
+                        .append(" n=").append(stats.mCount)
+                        .append(" wait=").append(stats.mTotalWaitMs / stats.mCount)
+                        .append(" run=").append(stats.mTotalRunMs / stats.mCount)
+                        .append(" p50<=").append(stats.percentileMs(0.5))
+                        .append(" p90<=").append(stats.percentileMs(0.9))
+                        .append(" p99<=").append(stats.percentileMs(0.99))
+                        .append(" max=").append(stats.mMaxMs);
+            }
+        }
+        return dump.append('}').toString();
+    }
+}
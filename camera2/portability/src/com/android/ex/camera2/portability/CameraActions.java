@@ -23,6 +23,7 @@ class CameraActions {
     public static final int RECONNECT =   3;
     public static final int UNLOCK =      4;
     public static final int LOCK =        5;
+    public static final int PREWARM =     6;
     // Preview
     public static final int SET_PREVIEW_TEXTURE_ASYNC =        101;
     public static final int START_PREVIEW_ASYNC =              102;
@@ -53,6 +54,8 @@ class CameraActions {
     public static final int SET_JPEG_ORIENTATION = 503;
     // Capture
     public static final int CAPTURE_PHOTO = 601;
+    public static final int CAPTURE_BURST = 602;
+    public static final int ENABLE_ZERO_SHUTTER_LAG = 603;
 
     public static String stringify(int action) {
         switch (action) {
@@ -66,6 +69,8 @@ class CameraActions {
                 return "UNLOCK";
             case LOCK:
                 return "LOCK";
+            case PREWARM:
+                return "PREWARM";
             case SET_PREVIEW_TEXTURE_ASYNC:
                 return "SET_PREVIEW_TEXTURE_ASYNC";
             case START_PREVIEW_ASYNC:
@@ -112,6 +117,10 @@ class CameraActions {
                 return "SET_DISPLAY_ORIENTATION";
             case CAPTURE_PHOTO:
                 return "CAPTURE_PHOTO";
+            case CAPTURE_BURST:
+                return "CAPTURE_BURST";
+            case ENABLE_ZERO_SHUTTER_LAG:
+                return "ENABLE_ZERO_SHUTTER_LAG";
             default:
                 return "UNKNOWN(" + action + ")";
         }
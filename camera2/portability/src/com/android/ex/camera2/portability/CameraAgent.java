@@ -20,6 +20,7 @@ import android.annotation.TargetApi;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.OnZoomChangeListener;
+import android.media.Image;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
@@ -28,6 +29,8 @@ import android.view.SurfaceHolder;
 
 import com.android.ex.camera2.portability.debug.Log;
 
+import java.nio.ByteBuffer;
+
 /**
  * An interface which provides possible camera device operations.
  *
@@ -44,11 +47,13 @@ import com.android.ex.camera2.portability.debug.Log;
  */
 public abstract class CameraAgent {
     public static final long CAMERA_OPERATION_TIMEOUT_MS = 3500;
+    /** How long a speculatively opened camera is kept waiting for its client. */
+    protected static final long SPECULATIVE_OPEN_TIMEOUT_MS = 5000;
 
     private static final Log.Tag TAG = new Log.Tag("CamAgnt");
 
     public static class CameraStartPreviewCallbackForward
-            implements CameraStartPreviewCallback {
+            implements CameraStartPreviewCallback, CameraRejectionCallback {
         private final Handler mHandler;
         private final CameraStartPreviewCallback mCallback;
 
@@ -74,6 +79,11 @@ public abstract class CameraAgent {
                     mCallback.onPreviewStarted();
                 }});
         }
+
+        @Override
+        public void onRejected(String reason) {
+            reportRejection(mCallback, reason);
+        }
     }
 
     /**
@@ -178,6 +188,28 @@ public abstract class CameraAgent {
         public void onAutoFocusMoving(boolean moving, CameraProxy camera);
     }
 
+    /**
+     * Implemented by the callbacks behind the futures of asynchronous
+     * operations, so that an agent refusing a request can fail the future
+     * instead of leaving it pending forever.
+     */
+    interface CameraRejectionCallback {
+        /**
+         * @param reason Why the request was not carried out.
+         */
+        void onRejected(String reason);
+    }
+
+    /**
+     * Tells {@code callback} that its request was not carried out, if it
+     * cares about that.
+     */
+    static void reportRejection(Object callback, String reason) {
+        if (callback instanceof CameraRejectionCallback) {
+            ((CameraRejectionCallback) callback).onRejected(reason);
+        }
+    }
+
     /**
      * An interface which wraps
      * {@link android.hardware.Camera.ShutterCallback}.
@@ -194,6 +226,20 @@ public abstract class CameraAgent {
         public void onPictureTaken(byte[] data, CameraProxy camera);
     }
 
+    /**
+     * A variant of {@link CameraPictureCallback} which is lent the picture
+     * data instead of receiving a copy of it.
+     */
+    public static interface CameraPictureBufferCallback {
+        /**
+         * @param data   The picture data, which must be released once it is no
+         *               longer needed. It stays valid until then, even
+         *               across camera reconfiguration or release.
+         * @param camera The camera which took the picture.
+         */
+        public void onPictureTaken(PictureBuffer data, CameraProxy camera);
+    }
+
     /**
      * An interface which wraps
      * {@link android.hardware.Camera.PreviewCallback}.
@@ -202,6 +248,21 @@ public abstract class CameraAgent {
         public void onPreviewFrame(byte[] data, CameraProxy camera);
     }
 
+    /**
+     * A variant of {@link CameraPreviewDataCallback} which receives the
+     * preview frame in its native YUV_420_888 layout instead of an NV21 copy.
+     */
+    public static interface CameraPreviewImageCallback {
+        /**
+         * @param image  The preview frame, which is only valid until this
+         *               method returns and must not be closed by the callee.
+         *               Reconfiguring or releasing the camera meanwhile
+         *               doesn't invalidate it.
+         * @param camera The camera which the preview frame comes from.
+         */
+        public void onPreviewImage(Image image, CameraProxy camera);
+    }
+
     /**
      * An interface which wraps
      * {@link android.hardware.Camera.FaceDetectionListener}.
@@ -298,6 +359,33 @@ public abstract class CameraAgent {
         }
     }
 
+    /**
+     * Does ahead of time, on the camera handler thread, the work that opening
+     * a camera would otherwise start with: enumerating the devices and
+     * parsing their characteristics and capabilities. Optionally, the camera
+     * most likely to be used next is also opened, and a subsequent
+     * {@link #openCamera} for it adopts the device instead of opening it
+     * again. A speculatively opened camera which isn't claimed soon, or
+     * which another {@link #openCamera} call supersedes, is closed again.
+     *
+     * @param likelyCameraId The camera which will probably be opened next, or
+     *                       {@link CameraDeviceInfo#NO_DEVICE} if unknown.
+     * @param openSpeculatively Whether to open {@code likelyCameraId} already.
+     */
+    public void prewarm(final int likelyCameraId, final boolean openSpeculatively) {
+        try {
+            getDispatchThread().runJob(new Runnable() {
+                @Override
+                public void run() {
+                    getCameraHandler().obtainMessage(CameraActions.PREWARM, likelyCameraId,
+                            openSpeculatively ? 1 : 0).sendToTarget();
+                }
+            });
+        } catch (final RuntimeException ex) {
+            getCameraExceptionHandler().onDispatchThreadException(ex);
+        }
+    }
+
     /**
      * Closes the camera device.
      *
@@ -332,6 +420,117 @@ public abstract class CameraAgent {
         }
     }
 
+    /**
+     * Opens the camera of the specified ID asynchronously, without requiring a
+     * callback handler.
+     *
+     * @param cameraId The camera ID to open.
+     * @return A future yielding the opened camera. It fails if the camera is
+     *         disabled, already open or cannot be opened.
+     */
+    public CameraFuture<CameraProxy> openCameraAsync(final int cameraId) {
+        final CameraFuture<CameraProxy> future = new CameraFuture<CameraProxy>();
+        final CameraOpenCallback callback = new CameraOpenCallback() {
+            @Override
+            public void onCameraOpened(CameraProxy camera) {
+                future.set(camera);
+            }
+
+            @Override
+            public void onCameraDisabled(int cameraId) {
+                future.setException(
+                        new IllegalStateException("Camera " + cameraId + " is disabled"));
+            }
+
+            @Override
+            public void onDeviceOpenFailure(int cameraId, String info) {
+                future.setException(
+                        new RuntimeException("Failed to open camera " + cameraId + ": " + info));
+            }
+
+            @Override
+            public void onDeviceOpenedAlready(int cameraId, String info) {
+                future.setException(
+                        new IllegalStateException("Camera " + cameraId + " is already open"));
+            }
+
+            @Override
+            public void onReconnectionFailure(CameraAgent mgr, String info) {
+                future.setException(new RuntimeException("Failed to reconnect: " + info));
+            }
+        };
+        try {
+            boolean queued = getDispatchThread().runJob(new Runnable() {
+                @Override
+                public void run() {
+                    // The callback only completes the future, so let it run
+                    // right on the camera handler.
+                    getCameraHandler().obtainMessage(CameraActions.OPEN_CAMERA, cameraId, 0,
+                            callback).sendToTarget();
+                }
+            });
+            if (!queued) {
+                future.setException(new RuntimeException("Camera master thread job queue full"));
+            }
+        } catch (final RuntimeException ex) {
+            future.setException(ex);
+            getCameraExceptionHandler().onDispatchThreadException(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Closes the camera device without blocking the caller.
+     *
+     * @param camera The camera to close. {@code null} means all.
+     * @return A future which completes once the device has been released.
+     */
+    public CameraFuture<Void> closeCameraAsync(CameraProxy camera) {
+        final CameraFuture<Void> future = new CameraFuture<Void>();
+        // Don't bother to wait since camera is in bad state.
+        if (getCameraState().isInvalid()) {
+            future.set(null);
+            return future;
+        }
+        try {
+            boolean queued = getDispatchThread().runJob(new Runnable() {
+                @Override
+                public void run() {
+                    getCameraHandler().obtainMessage(CameraActions.RELEASE).sendToTarget();
+                    settleAfterHandler(getCameraHandler(), getCameraState(), future, true);
+                }});
+            if (!queued) {
+                future.setException(new RuntimeException("Camera master thread job queue full"));
+            }
+        } catch (final RuntimeException ex) {
+            future.setException(ex);
+            getCameraExceptionHandler().onDispatchThreadException(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Settles {@code future} once the camera handler has processed every
+     * message queued so far: it fails if one of them invalidated the camera,
+     * and otherwise completes with {@code null} if {@code complete} is set.
+     * Futures whose success is reported by a camera callback pass
+     * {@code false} to only have failures detected here.
+     */
+    private static void settleAfterHandler(Handler cameraHandler,
+            final CameraStateHolder cameraState, final CameraFuture<?> future,
+            final boolean complete) {
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (cameraState.isInvalid()) {
+                    future.setException(new IllegalStateException("Camera operation failed"));
+                } else if (complete) {
+                    future.set(null);
+                }
+            }
+        });
+    }
+
     /**
      * Sets a callback for handling camera api runtime exceptions on
      * a handler.
@@ -349,6 +548,20 @@ public abstract class CameraAgent {
      */
     public abstract CameraDeviceInfo getCameraDeviceInfo();
 
+    /**
+     * Returns the latency histograms of the camera operations this agent
+     * carried out, broken down by operation and camera ID.
+     *
+     * @return The metrics, or {@code null} if this agent does not keep any.
+     */
+    public CameraActionMetrics getActionMetrics() {
+        Handler handler = getCameraHandler();
+        if (handler instanceof HistoryHandler) {
+            return ((HistoryHandler) handler).getActionMetrics();
+        }
+        return null;
+    }
+
     /**
      * @return The handler to which camera tasks should be posted.
      */
@@ -375,6 +588,8 @@ public abstract class CameraAgent {
      * asynchronous by default except those mentioned specifically.
      */
     public abstract static class CameraProxy {
+        private volatile long mShutterRequestNs = -1;
+        private volatile long mLastShutterLagNs = -1;
 
         /**
          * Returns the underlying {@link android.hardware.Camera} object used
@@ -580,13 +795,16 @@ public abstract class CameraAgent {
          */
         public void startPreviewWithCallback(final Handler h, final CameraStartPreviewCallback cb) {
             try {
-            getDispatchThread().runJob(new Runnable() {
+            boolean queued = getDispatchThread().runJob(new Runnable() {
                 @Override
                 public void run() {
                     getCameraHandler().obtainMessage(CameraActions.START_PREVIEW_ASYNC,
                             CameraStartPreviewCallbackForward.getNewInstance(h, cb))
                                     .sendToTarget();
                 }});
+            if (!queued) {
+                reportRejection(cb, "Camera master thread job queue full");
+            }
             } catch (final RuntimeException ex) {
                 getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
             }
@@ -596,6 +814,7 @@ public abstract class CameraAgent {
          * Stops the camera preview synchronously.
          * {@code stopPreview()} must be synchronous to ensure that the caller can
          * continues to release resources related to camera preview.
+         * It is dispatched in the urgent lane of the dispatch thread.
          */
         public void stopPreview() {
             // Don't bother to wait since camera is in bad state.
@@ -604,7 +823,7 @@ public abstract class CameraAgent {
             }
             final WaitDoneBundle bundle = new WaitDoneBundle();
             try {
-                getDispatchThread().runJobSync(new Runnable() {
+                getDispatchThread().runUrgentJobSync(new Runnable() {
                     @Override
                     public void run() {
                         getCameraHandler().obtainMessage(CameraActions.STOP_PREVIEW, bundle)
@@ -646,7 +865,9 @@ public abstract class CameraAgent {
                                                               CameraPreviewDataCallback cb);
 
         /**
-         * Adds buffer for the preview callback.
+         * Adds buffer for the preview callback. A buffer too small for the
+         * preview frames is removed again, and reported by invoking the
+         * callback with {@code null} data.
          *
          * @param callbackBuffer The buffer allocated for the preview data.
          */
@@ -665,6 +886,37 @@ public abstract class CameraAgent {
             }
         }
 
+        /**
+         * Sets a callback which is lent each preview frame without copying
+         * it. Replaces any preview data callback.
+         *
+         * @param handler The handler in which the callback will be invoked.
+         * @param cb      The callback, or {@code null} to stop receiving frames.
+         * @return Whether the implementation supports this kind of callback.
+         */
+        public boolean setPreviewImageCallback(Handler handler, CameraPreviewImageCallback cb) {
+            Log.w(TAG, "Preview image callbacks are not supported by this camera API");
+            return false;
+        }
+
+        /**
+         * @return The number of preview frames which were not delivered to the
+         *         preview callback because it was still busy with an earlier
+         *         one or no callback buffer was available.
+         */
+        public long getDroppedPreviewFrameCount() {
+            return 0;
+        }
+
+        /**
+         * @return The number of settings applications during preview that were
+         *         folded into a later update of the device's repeating request,
+         *         because they arrived faster than preview frames.
+         */
+        public long getCoalescedSettingsUpdateCount() {
+            return 0;
+        }
+
         /**
          * Starts the auto-focus process. The result will be returned through the callback.
          *
@@ -698,6 +950,153 @@ public abstract class CameraAgent {
         @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
         public abstract void setAutoFocusMoveCallback(Handler handler, CameraAFMoveCallback cb);
 
+        /**
+         * Completes a future once the preview has started, or fails it if
+         * the request is refused.
+         */
+        private static class PreviewStartFuture
+                implements CameraStartPreviewCallback, CameraRejectionCallback {
+            final CameraFuture<Void> mFuture = new CameraFuture<Void>();
+
+            @Override
+            public void onPreviewStarted() {
+                mFuture.set(null);
+            }
+
+            @Override
+            public void onRejected(String reason) {
+                mFuture.setException(new IllegalStateException(reason));
+            }
+        }
+
+        /**
+         * Completes a future with the JPEG data of a picture, or fails it if
+         * the capture is refused.
+         */
+        private static class PictureFuture
+                implements CameraPictureCallback, CameraRejectionCallback {
+            final CameraFuture<byte[]> mFuture = new CameraFuture<byte[]>();
+
+            @Override
+            public void onPictureTaken(byte[] data, CameraProxy camera) {
+                mFuture.set(data);
+            }
+
+            @Override
+            public void onRejected(String reason) {
+                mFuture.setException(new IllegalStateException(reason));
+            }
+        }
+
+        /**
+         * Starts the camera preview without blocking the caller.
+         *
+         * @return A future which completes once the preview has started, and
+         *         fails if the camera refuses to start it.
+         * @see #startPreviewWithCallback(Handler, CameraStartPreviewCallback)
+         */
+        public CameraFuture<Void> startPreviewAsync() {
+            PreviewStartFuture callback = new PreviewStartFuture();
+            startPreviewWithCallback(getCameraHandler(), callback);
+            settleAfterQueuedJobs(callback.mFuture, false);
+            return callback.mFuture;
+        }
+
+        /**
+         * Takes a picture without blocking the caller.
+         *
+         * @param handler The handler on which {@code shutter} is invoked.
+         * @param shutter The callback for shutter action, may be null.
+         * @return A future yielding the JPEG data of the picture. It fails if
+         *         the camera refuses or fails to take the picture.
+         * @see #takePicture
+         */
+        public CameraFuture<byte[]> takePictureAsync(Handler handler,
+                CameraShutterCallback shutter) {
+            PictureFuture callback = new PictureFuture();
+            takePicture(handler != null ? handler : getCameraHandler(), shutter, null, null,
+                    callback);
+            settleAfterQueuedJobs(callback.mFuture, false);
+            return callback.mFuture;
+        }
+
+        /**
+         * Applies the settings to the camera device without blocking the
+         * caller.
+         *
+         * @param settings The settings to use on the device.
+         * @return A future which completes once the settings have been applied
+         *         or superseded by a later application. It fails right away if
+         *         the settings are not supported.
+         * @see #applySettings(CameraSettings)
+         */
+        public CameraFuture<Void> applySettingsAsync(CameraSettings settings) {
+            final CameraFuture<Void> future = new CameraFuture<Void>();
+            if (!applySettings(settings)) {
+                future.setException(
+                        new IllegalArgumentException("Settings cannot be applied"));
+                return future;
+            }
+            settleAfterQueuedJobs(future, true);
+            return future;
+        }
+
+        /**
+         * Settles {@code future} after the jobs queued so far have been
+         * handled by the camera handler.
+         */
+        private void settleAfterQueuedJobs(final CameraFuture<?> future,
+                final boolean complete) {
+            try {
+                boolean queued = getDispatchThread().runJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        settleAfterHandler(getCameraHandler(), getCameraState(), future,
+                                complete);
+                    }});
+                if (!queued) {
+                    future.setException(
+                            new RuntimeException("Camera master thread job queue full"));
+                }
+            } catch (final RuntimeException ex) {
+                future.setException(ex);
+                getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+        }
+
+        /**
+         * Returns the most recent shutter lag: the time from a call to
+         * {@link #takePicture} until its shutter callback was dispatched to the
+         * client's handler. Only captures with a shutter callback are measured.
+         *
+         * @return The shutter lag in nanoseconds, or {@code -1} if no capture
+         *         has been measured yet.
+         */
+        public long getLastShutterLagNs() {
+            return mLastShutterLagNs;
+        }
+
+        /**
+         * Records the start of a capture for {@link #getLastShutterLagNs}.
+         */
+        protected void markShutterRequested() {
+            mShutterRequestNs = System.nanoTime();
+        }
+
+        /**
+         * Records the delivery of the shutter callback of the pending capture
+         * for {@link #getLastShutterLagNs}.
+         */
+        protected void markShutterDelivered() {
+            long requestNs = mShutterRequestNs;
+            if (requestNs < 0) {
+                return;
+            }
+            mShutterRequestNs = -1;
+            mLastShutterLagNs = System.nanoTime() - requestNs;
+            Log.v(TAG, "Shutter lag: " + mLastShutterLagNs / 1000000 + "ms");
+        }
+
         /**
          * Instrument the camera to take a picture.
          *
@@ -718,6 +1117,75 @@ public abstract class CameraAgent {
                 CameraPictureCallback postview,
                 CameraPictureCallback jpeg);
 
+        /**
+         * Instrument the camera to take a picture, lending the JPEG data to
+         * the callback instead of copying it into a new array.
+         *
+         * <p>The default implementation wraps the array the framework hands
+         * out, which needs no release; implementations that can expose the
+         * capture buffer directly do so.</p>
+         *
+         * @param handler The handler in which the callbacks will be invoked.
+         * @param shutter The callback for shutter action, may be null.
+         * @param jpeg    The callback for the jpeg image data, may be null.
+         * @see #takePicture(Handler, CameraShutterCallback, CameraPictureCallback,
+         *         CameraPictureCallback, CameraPictureCallback)
+         */
+        public void takePicture(Handler handler, CameraShutterCallback shutter,
+                final CameraPictureBufferCallback jpeg) {
+            CameraPictureCallback jpegForward = null;
+            if (jpeg != null) {
+                jpegForward = new CameraPictureCallback() {
+                    @Override
+                    public void onPictureTaken(byte[] data, CameraProxy camera) {
+                        jpeg.onPictureTaken(new PictureBuffer(ByteBuffer.wrap(data), null),
+                                camera);
+                    }
+                };
+            }
+            takePicture(handler, shutter, null, null, jpegForward);
+        }
+
+        /**
+         * Instrument the camera to take several pictures back to back, without
+         * converging autoexposure before each of them.
+         *
+         * <p>Not every implementation supports bursts; the default one doesn't
+         * and returns {@code false}.</p>
+         *
+         * @param handler The handler in which the callbacks will be invoked.
+         * @param count   The number of pictures to take.
+         * @param shutter The callback for the shutter action of each picture,
+         *                may be null.
+         * @param jpeg    The callback for the jpeg image data of each picture,
+         *                may be null.
+         * @return Whether the burst was requested.
+         */
+        public boolean takeBurst(Handler handler, int count, CameraShutterCallback shutter,
+                CameraPictureCallback jpeg) {
+            Log.w(TAG, "Burst capture is not supported by this camera API");
+            return false;
+        }
+
+        /**
+         * Enables or disables zero shutter lag capture. While enabled, recent
+         * preview frames are retained at the preview resolution and
+         * {@link #takePicture} returns the newest well-exposed one instead of
+         * capturing a new frame, unless the flash is forced on. The choice
+         * takes effect the next time a preview texture is set, and zero
+         * shutter lag is suspended while a preview callback is set.
+         *
+         * <p>Not every implementation supports zero shutter lag; the default
+         * one doesn't and returns {@code false}, as do cameras whose hardware
+         * lacks the per-frame control it relies on.</p>
+         *
+         * @param enable Whether to enable zero shutter lag.
+         * @return Whether the request is supported.
+         */
+        public boolean setZeroShutterLagEnabled(boolean enable) {
+            return false;
+        }
+
         /**
          * Sets the display orientation for camera to adjust the preview and JPEG orientation.
          *
@@ -747,7 +1215,7 @@ public abstract class CameraAgent {
                                 .obtainMessage(CameraActions.SET_DISPLAY_ORIENTATION, degrees,
                                         capture ? 1 : 0)
                                 .sendToTarget();
-                    }});
+                    }}, CameraActions.SET_DISPLAY_ORIENTATION);
             } catch (final RuntimeException ex) {
                 getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
             }
@@ -838,6 +1306,20 @@ public abstract class CameraAgent {
          */
         public abstract CameraSettings getSettings();
 
+        /**
+         * Gets an immutable snapshot of the current camera settings.
+         *
+         * <p>Unlike {@link #getSettings}, implementations may return the same
+         * snapshot repeatedly for as long as the settings don't change, which
+         * makes this suitable for reading settings at frame rate.</p>
+         *
+         * @return The current settings.
+         */
+        public CameraSettings.Snapshot getSettingsSnapshot() {
+            CameraSettings settings = getSettings();
+            return (settings == null ? null : settings.snapshot());
+        }
+
         /**
          * Default implementation of {@link #applySettings(CameraSettings)}
          * that is only missing the set of states it needs to wait for
@@ -858,9 +1340,41 @@ public abstract class CameraAgent {
                 return false;
             }
 
-            final CameraSettings copyOfSettings = settings.copy();
+            return dispatchSettings(settings.copy(), statesToAwait);
+        }
+
+        /**
+         * Default implementation of {@link #applySettings(CameraSettings.Snapshot)}
+         * that is only missing the set of states it needs to wait for
+         * before applying the settings. Since the snapshot is immutable, it is
+         * handed to the camera handler without being copied.
+         *
+         * @param snapshot The settings to use on the device.
+         * @param statesToAwait Bitwise OR of the required camera states.
+         * @return Whether the settings can be applied.
+         */
+        protected boolean applySettingsHelper(CameraSettings.Snapshot snapshot,
+                                              final int statesToAwait) {
+            if (snapshot == null) {
+                Log.v(TAG, "null argument in applySettings()");
+                return false;
+            }
+            if (!getCapabilities().supports(snapshot.getSettings())) {
+                Log.w(TAG, "Unsupported settings in applySettings()");
+                return false;
+            }
+
+            return dispatchSettings(snapshot.getSettings(), statesToAwait);
+        }
+
+        /**
+         * @return Whether the settings were queued for the camera, rather than
+         *         dropped because the job queue was full.
+         */
+        private boolean dispatchSettings(final CameraSettings ownedSettings,
+                                         final int statesToAwait) {
             try {
-                getDispatchThread().runJob(new Runnable() {
+                boolean queued = getDispatchThread().runJob(new Runnable() {
                     @Override
                     public void run() {
                         CameraStateHolder cameraState = getCameraState();
@@ -869,26 +1383,50 @@ public abstract class CameraAgent {
                             return;
                         }
                         cameraState.waitForStates(statesToAwait);
-                        getCameraHandler().obtainMessage(CameraActions.APPLY_SETTINGS, copyOfSettings)
+                        getCameraHandler().obtainMessage(CameraActions.APPLY_SETTINGS, ownedSettings)
                                 .sendToTarget();
-                    }});
+                    }}, CameraActions.APPLY_SETTINGS);
+                if (!queued) {
+                    Log.w(TAG, "Settings dropped by a full job queue");
+                }
+                return queued;
             } catch (final RuntimeException ex) {
                 getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+                return false;
             }
-            return true;
         }
 
         /**
          * Applies the settings to the camera device.
          *
          * <p>If the camera is either focusing or capturing; settings applications
-         * will be (asynchronously) deferred until those operations complete.</p>
+         * will be (asynchronously) deferred until those operations complete.
+         * A deferred application that has not been dispatched yet is replaced
+         * by a newer one, unless other operations were requested in between.</p>
          *
          * @param settings The settings to use on the device.
          * @return Whether the settings can be applied.
          */
         public abstract boolean applySettings(CameraSettings settings);
 
+        /**
+         * Applies a settings snapshot to the camera device, with the same
+         * deferral behavior as {@link #applySettings(CameraSettings)}.
+         *
+         * <p>The default implementation copies the snapshot; implementations
+         * should override this to take advantage of its immutability.</p>
+         *
+         * @param snapshot The settings to use on the device.
+         * @return Whether the settings can be applied.
+         */
+        public boolean applySettings(CameraSettings.Snapshot snapshot) {
+            if (snapshot == null) {
+                Log.v(TAG, "null argument in applySettings()");
+                return false;
+            }
+            return applySettings(snapshot.edit());
+        }
+
         /**
          * Forces {@code CameraProxy} to update the cached version of the camera
          * settings regardless of the dirty bit.
@@ -899,7 +1437,7 @@ public abstract class CameraAgent {
                     @Override
                     public void run() {
                         getCameraHandler().sendEmptyMessage(CameraActions.REFRESH_PARAMETERS);
-                    }});
+                    }}, CameraActions.REFRESH_PARAMETERS);
             } catch (final RuntimeException ex) {
                 getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
             }
@@ -28,6 +28,15 @@ import com.android.ex.camera2.portability.util.SystemProperties;
  * <p>The choice of framework API to use can be made automatically based on the
  * system API level, explicitly forced by the client app, or overridden entirely
  * by setting the system property com.camera2.portability.fwk_api to 1 or 2.</p>
+ *
+ * <p>Setting the system property camera2.portability.dispatcher to
+ * {@code lockfree} makes newly created agents queue their jobs through a
+ * {@link LockFreeDispatchThread}.</p>
+ *
+ * <p>Agents returned by {@link #getAndroidCameraAgent} are shared, so they can
+ * only drive one camera at a time. To stream from several cameras at once, use
+ * {@link #createConcurrentCameraAgent} to give each camera an agent of its
+ * own.</p>
  */
 public class CameraAgentFactory {
     private static final Log.Tag TAG = new Log.Tag("CamAgntFact");
@@ -46,6 +55,12 @@ public class CameraAgentFactory {
     private static final String API_LEVEL_OVERRIDE_VALUE =
             SystemProperties.get(API_LEVEL_OVERRIDE_KEY, API_LEVEL_OVERRIDE_DEFAULT);
 
+    // Selects the camera job dispatcher implementation for newly created agents.
+    private static final String DISPATCHER_OVERRIDE_KEY = "camera2.portability.dispatcher";
+    private static final String DISPATCHER_LOCK_FREE = "lockfree";
+    private static final String DISPATCHER_OVERRIDE_VALUE =
+            SystemProperties.get(DISPATCHER_OVERRIDE_KEY, "");
+
     private static CameraAgent sAndroidCameraAgent;
     private static CameraAgent sAndroidCamera2Agent;
     private static int sAndroidCameraAgentClientCount;
@@ -74,6 +89,14 @@ public class CameraAgentFactory {
         }
     }
 
+    private static boolean useLockFreeDispatch() {
+        if (DISPATCHER_OVERRIDE_VALUE.equals(DISPATCHER_LOCK_FREE)) {
+            Log.d(TAG, "Using lock-free camera job dispatcher");
+            return true;
+        }
+        return false;
+    }
+
     private static CameraApi validateApiChoice(CameraApi choice) {
         if (API_LEVEL_OVERRIDE_VALUE.equals(API_LEVEL_OVERRIDE_API1)) {
             Log.d(TAG, "API level overridden by system property: forced to 1");
@@ -114,7 +137,8 @@ public class CameraAgentFactory {
 
         if (api == CameraApi.API_1) {
             if (sAndroidCameraAgent == null) {
-                sAndroidCameraAgent = new AndroidCameraAgentImpl();
+                sAndroidCameraAgent = new AndroidCameraAgentImpl(
+                        CapabilitiesCache.getInstance(context), useLockFreeDispatch());
                 sAndroidCameraAgentClientCount = 1;
             } else {
                 ++sAndroidCameraAgentClientCount;
@@ -126,7 +150,7 @@ public class CameraAgentFactory {
             }
 
             if (sAndroidCamera2Agent == null) {
-                sAndroidCamera2Agent = new AndroidCamera2AgentImpl(context);
+                sAndroidCamera2Agent = new AndroidCamera2AgentImpl(context, useLockFreeDispatch());
                 sAndroidCamera2AgentClientCount = 1;
             } else {
                 ++sAndroidCamera2AgentClientCount;
@@ -135,9 +159,92 @@ public class CameraAgentFactory {
         }
     }
 
+    /**
+     * Creates an android camera implementation of {@link CameraAgent} that
+     * isn't shared with any other client.
+     *
+     * <p>Each agent has its own camera handler thread, job dispatch queue and
+     * camera state, and can hold one open camera. Using one of these per camera
+     * lets several cameras (e.g. the front and back ones) be opened and stream
+     * concurrently, without their operations being serialized on one thread.
+     * Whether a given combination of cameras can actually be open at the same
+     * time is up to the device.</p>
+     *
+     * <p>Agents created this way are not reference counted: release each one
+     * by calling {@link CameraAgent#recycle} on it directly, rather than
+     * through {@link #recycle(CameraApi)}.</p>
+     *
+     * @param context The application context.
+     * @param api Which camera framework to use.
+     * @return A new {@link CameraAgent} to control one camera device.
+     *
+     * @throws UnsupportedOperationException If {@code CameraApi.API_2} was
+     *                                       requested on an unsupported device.
+     */
+    public static CameraAgent createConcurrentCameraAgent(Context context, CameraApi api) {
+        api = validateApiChoice(api);
+
+        if (api == CameraApi.API_1) {
+            return new AndroidCameraAgentImpl(
+                    CapabilitiesCache.getInstance(context), useLockFreeDispatch());
+        } else { // API_2
+            if (highestSupportedApi() == CameraApi.API_1) {
+                throw new UnsupportedOperationException("Camera API_2 unavailable on this device");
+            }
+            return new AndroidCamera2AgentImpl(context, useLockFreeDispatch());
+        }
+    }
+
+    /**
+     * Creates the android camera implementation of {@link CameraAgent} ahead
+     * of the first {@link #getAndroidCameraAgent} call and has it prepare for
+     * opening a camera on its own threads; see {@link CameraAgent#prewarm}.
+     *
+     * <p>This doesn't count as a client of the agent: it is handed out by the
+     * next {@link #getAndroidCameraAgent} call with the same {@code api}, and
+     * released by the matching {@link #recycle(CameraApi)} call. If no client
+     * ever gets the agent, a single {@link #recycle(CameraApi)} call releases
+     * it, along with any speculatively opened camera.</p>
+     *
+     * @param context The application context.
+     * @param api Which camera framework to use.
+     * @param likelyCameraId The camera which will probably be opened first,
+     *                       or {@link CameraDeviceInfo#NO_DEVICE} if unknown.
+     * @param openSpeculatively Whether to open {@code likelyCameraId} already.
+     *
+     * @throws UnsupportedOperationException If {@code CameraApi.API_2} was
+     *                                       requested on an unsupported device.
+     */
+    public static synchronized void prewarm(Context context, CameraApi api, int likelyCameraId,
+            boolean openSpeculatively) {
+        api = validateApiChoice(api);
+
+        CameraAgent agent;
+        if (api == CameraApi.API_1) {
+            if (sAndroidCameraAgent == null) {
+                sAndroidCameraAgent = new AndroidCameraAgentImpl(
+                        CapabilitiesCache.getInstance(context), useLockFreeDispatch());
+                sAndroidCameraAgentClientCount = 0;
+            }
+            agent = sAndroidCameraAgent;
+        } else { // API_2
+            if (highestSupportedApi() == CameraApi.API_1) {
+                throw new UnsupportedOperationException("Camera API_2 unavailable on this device");
+            }
+
+            if (sAndroidCamera2Agent == null) {
+                sAndroidCamera2Agent = new AndroidCamera2AgentImpl(context, useLockFreeDispatch());
+                sAndroidCamera2AgentClientCount = 0;
+            }
+            agent = sAndroidCamera2Agent;
+        }
+        agent.prewarm(likelyCameraId, openSpeculatively);
+    }
+
     /**
      * Recycles the resources. Always call this method when the activity is
-     * stopped.
+     * stopped. An agent with no clients left, including one that was only
+     * prewarmed, is released.
      *
      * @param api Which camera framework handle to recycle.
      *
@@ -148,7 +255,9 @@ public class CameraAgentFactory {
         api = validateApiChoice(api);
 
         if (api == CameraApi.API_1) {
-            if (--sAndroidCameraAgentClientCount == 0 && sAndroidCameraAgent != null) {
+            // A prewarmed agent that was never handed out has no clients
+            if (sAndroidCameraAgent != null && (sAndroidCameraAgentClientCount == 0 ||
+                    --sAndroidCameraAgentClientCount == 0)) {
                 sAndroidCameraAgent.recycle();
                 sAndroidCameraAgent = null;
             }
@@ -157,7 +266,8 @@ public class CameraAgentFactory {
                 throw new UnsupportedOperationException("Camera API_2 unavailable on this device");
             }
 
-            if (--sAndroidCamera2AgentClientCount == 0 && sAndroidCamera2Agent != null) {
+            if (sAndroidCamera2Agent != null && (sAndroidCamera2AgentClientCount == 0 ||
+                    --sAndroidCamera2AgentClientCount == 0)) {
                 sAndroidCamera2Agent.recycle();
                 sAndroidCamera2Agent = null;
             }
@@ -18,6 +18,9 @@ package com.android.ex.camera2.portability;
 
 import com.android.ex.camera2.portability.debug.Log;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashSet;
@@ -66,6 +69,11 @@ public class CameraCapabilities {
     protected float mVerticalViewAngle;
     private final Stringifier mStringifier;
 
+    // Built on first use, since the size lists never change once constructed:
+    private volatile SizeIndex mPreviewSizeIndex;
+    private volatile SizeIndex mPhotoSizeIndex;
+    private volatile SizeIndex mVideoSizeIndex;
+
     /**
      * Focus modes.
      */
@@ -467,6 +475,134 @@ public class CameraCapabilities {
         mStringifier = stringifier;
     }
 
+    /**
+     * Restores an instance serialized by {@link #writeTo}.
+     *
+     * @param stringifier The API-specific stringifier for this instance.
+     * @param in The serialized form.
+     * @throws IOException If the serialized form is truncated, or names a
+     *                     value this version of the class doesn't know.
+     */
+    CameraCapabilities(Stringifier stringifier, DataInput in) throws IOException {
+        mStringifier = stringifier;
+        int fpsRanges = in.readInt();
+        for (int i = 0; i < fpsRanges; ++i) {
+            mSupportedPreviewFpsRange.add(new int[] { in.readInt(), in.readInt() });
+        }
+        readSizes(in, mSupportedPreviewSizes);
+        readInts(in, mSupportedPreviewFormats);
+        readSizes(in, mSupportedVideoSizes);
+        readSizes(in, mSupportedPhotoSizes);
+        readInts(in, mSupportedPhotoFormats);
+        readEnums(in, mSupportedSceneModes, SceneMode.class);
+        readEnums(in, mSupportedFlashModes, FlashMode.class);
+        readEnums(in, mSupportedFocusModes, FocusMode.class);
+        readEnums(in, mSupportedWhiteBalances, WhiteBalance.class);
+        readEnums(in, mSupportedFeatures, Feature.class);
+        if (in.readBoolean()) {
+            mPreferredPreviewSizeForVideo = new Size(in.readInt(), in.readInt());
+        }
+        mMinExposureCompensation = in.readInt();
+        mMaxExposureCompensation = in.readInt();
+        mExposureCompensationStep = in.readFloat();
+        mMaxNumOfFacesSupported = in.readInt();
+        mMaxNumOfFocusAreas = in.readInt();
+        mMaxNumOfMeteringArea = in.readInt();
+        mMaxZoomRatio = in.readFloat();
+        mHorizontalViewAngle = in.readFloat();
+        mVerticalViewAngle = in.readFloat();
+    }
+
+    /**
+     * Serializes this instance in a compact binary form which the
+     * {@link #CameraCapabilities(Stringifier, DataInput)} constructor reads
+     * back. Enumerated values are written by name, so that reordering the
+     * enums doesn't silently change their meaning.
+     *
+     * @param out Where to write to.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(mSupportedPreviewFpsRange.size());
+        for (int[] range : mSupportedPreviewFpsRange) {
+            out.writeInt(range[0]);
+            out.writeInt(range[1]);
+        }
+        writeSizes(out, mSupportedPreviewSizes);
+        writeInts(out, mSupportedPreviewFormats);
+        writeSizes(out, mSupportedVideoSizes);
+        writeSizes(out, mSupportedPhotoSizes);
+        writeInts(out, mSupportedPhotoFormats);
+        writeEnums(out, mSupportedSceneModes);
+        writeEnums(out, mSupportedFlashModes);
+        writeEnums(out, mSupportedFocusModes);
+        writeEnums(out, mSupportedWhiteBalances);
+        writeEnums(out, mSupportedFeatures);
+        out.writeBoolean(mPreferredPreviewSizeForVideo != null);
+        if (mPreferredPreviewSizeForVideo != null) {
+            out.writeInt(mPreferredPreviewSizeForVideo.width());
+            out.writeInt(mPreferredPreviewSizeForVideo.height());
+        }
+        out.writeInt(mMinExposureCompensation);
+        out.writeInt(mMaxExposureCompensation);
+        out.writeFloat(mExposureCompensationStep);
+        out.writeInt(mMaxNumOfFacesSupported);
+        out.writeInt(mMaxNumOfFocusAreas);
+        out.writeInt(mMaxNumOfMeteringArea);
+        out.writeFloat(mMaxZoomRatio);
+        out.writeFloat(mHorizontalViewAngle);
+        out.writeFloat(mVerticalViewAngle);
+    }
+
+    private static void writeSizes(DataOutput out, List<Size> sizes) throws IOException {
+        out.writeInt(sizes.size());
+        for (Size size : sizes) {
+            out.writeInt(size.width());
+            out.writeInt(size.height());
+        }
+    }
+
+    private static void readSizes(DataInput in, List<Size> sizes) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            sizes.add(new Size(in.readInt(), in.readInt()));
+        }
+    }
+
+    private static void writeInts(DataOutput out, Set<Integer> values) throws IOException {
+        out.writeInt(values.size());
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void readInts(DataInput in, Set<Integer> values) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            values.add(in.readInt());
+        }
+    }
+
+    private static void writeEnums(DataOutput out, Set<? extends Enum<?>> values)
+            throws IOException {
+        out.writeInt(values.size());
+        for (Enum<?> value : values) {
+            out.writeUTF(value.name());
+        }
+    }
+
+    private static <E extends Enum<E>> void readEnums(DataInput in, Set<E> values, Class<E> type)
+            throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            String name = in.readUTF();
+            try {
+                values.add(Enum.valueOf(type, name));
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Unknown " + type.getSimpleName() + " " + name);
+            }
+        }
+    }
+
     /**
      * Copy constructor.
      * @param src The source instance.
@@ -543,6 +679,45 @@ public class CameraCapabilities {
         return new ArrayList<Size>(mSupportedPreviewSizes);
     }
 
+    /**
+     * @return An index over {@link #getSupportedPreviewSizes}, for picking a
+     *         size by aspect ratio and area without scanning the list.
+     */
+    public final SizeIndex getPreviewSizeIndex() {
+        SizeIndex index = mPreviewSizeIndex;
+        if (index == null) {
+            index = new SizeIndex(mSupportedPreviewSizes);
+            mPreviewSizeIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return An index over {@link #getSupportedPhotoSizes}, for picking a
+     *         size by aspect ratio and area without scanning the list.
+     */
+    public final SizeIndex getPhotoSizeIndex() {
+        SizeIndex index = mPhotoSizeIndex;
+        if (index == null) {
+            index = new SizeIndex(mSupportedPhotoSizes);
+            mPhotoSizeIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return An index over {@link #getSupportedVideoSizes}, for picking a
+     *         size by aspect ratio and area without scanning the list.
+     */
+    public final SizeIndex getVideoSizeIndex() {
+        SizeIndex index = mVideoSizeIndex;
+        if (index == null) {
+            index = new SizeIndex(mSupportedVideoSizes);
+            mVideoSizeIndex = index;
+        }
+        return index;
+    }
+
     public final Size getPreferredPreviewSizeForVideo() {
         return new Size(mPreferredPreviewSizeForVideo);
     }
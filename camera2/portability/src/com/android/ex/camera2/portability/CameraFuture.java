@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous camera operation.
+ *
+ * <p>Besides blocking through {@link #get}, clients can register callbacks
+ * which are invoked on an {@link Executor} or {@link Handler} of their choice
+ * once the operation finishes, so that operations can be chained without
+ * parking the calling thread.</p>
+ *
+ * @param <V> The type of the operation's result.
+ */
+public class CameraFuture<V> implements Future<V> {
+    /**
+     * Receives the outcome of a {@link CameraFuture}.
+     */
+    public static interface Callback<V> {
+        /**
+         * Called when the operation succeeded.
+         *
+         * @param result The result of the operation.
+         */
+        public void onSuccess(V result);
+
+        /**
+         * Called when the operation failed or was cancelled.
+         *
+         * @param cause The failure, or a {@link CancellationException}.
+         */
+        public void onFailure(Throwable cause);
+    }
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_SUCCEEDED = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    private int mState = STATE_PENDING;
+    private V mResult;
+    private Throwable mFailure;
+    private List<Runnable> mListeners = new ArrayList<Runnable>();
+
+    CameraFuture() {
+    }
+
+    /**
+     * Completes this future successfully.
+     *
+     * @return {@code false} if the future had already completed.
+     */
+    boolean set(V result) {
+        synchronized (this) {
+            if (mState != STATE_PENDING) {
+                return false;
+            }
+            mResult = result;
+            mState = STATE_SUCCEEDED;
+        }
+        onCompleted();
+        return true;
+    }
+
+    /**
+     * Completes this future with a failure.
+     *
+     * @return {@code false} if the future had already completed.
+     */
+    boolean setException(Throwable failure) {
+        synchronized (this) {
+            if (mState != STATE_PENDING) {
+                return false;
+            }
+            mFailure = failure;
+            mState = STATE_FAILED;
+        }
+        onCompleted();
+        return true;
+    }
+
+    /**
+     * Cancelling a camera operation only detaches this future from it; the
+     * operation itself may still be carried out.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mState != STATE_PENDING) {
+                return false;
+            }
+            mFailure = new CancellationException("Camera operation cancelled");
+            mState = STATE_CANCELLED;
+        }
+        onCompleted();
+        return true;
+    }
+
+    private void onCompleted() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            notifyAll();
+            listeners = mListeners;
+            mListeners = null;
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Registers a callback to be run on the given executor once this future
+     * completes. If it already has, the callback is dispatched right away.
+     *
+     * @param callback The callback to invoke.
+     * @param executor The executor on which to invoke it.
+     */
+    public void addCallback(final Callback<? super V> callback, final Executor executor) {
+        if (callback == null || executor == null) {
+            throw new IllegalArgumentException("null callback or executor");
+        }
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(callback);
+                    }
+                });
+            }
+        };
+        synchronized (this) {
+            if (mListeners != null) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Registers a callback to be run on the given handler once this future
+     * completes.
+     *
+     * @param callback The callback to invoke.
+     * @param handler The handler on which to invoke it.
+     */
+    public void addCallback(Callback<? super V> callback, final Handler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("null handler");
+        }
+        addCallback(callback, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        });
+    }
+
+    private void deliver(Callback<? super V> callback) {
+        V result;
+        Throwable failure;
+        synchronized (this) {
+            result = mResult;
+            failure = mFailure;
+        }
+        if (failure == null) {
+            callback.onSuccess(result);
+        } else {
+            callback.onFailure(failure);
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != STATE_PENDING;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (mState == STATE_PENDING) {
+            wait();
+        }
+        return getResultLocked();
+    }
+
+    @Override
+    public synchronized V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mState == STATE_PENDING) {
+            long remainingNs = deadline - System.nanoTime();
+            if (remainingNs <= 0) {
+                throw new TimeoutException("Timeout waiting " + timeout + " " + unit +
+                        " for camera operation");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+        }
+        return getResultLocked();
+    }
+
+    private V getResultLocked() throws ExecutionException {
+        switch (mState) {
+            case STATE_SUCCEEDED:
+                return mResult;
+            case STATE_CANCELLED:
+                throw (CancellationException) mFailure;
+            default:
+                throw new ExecutionException(mFailure);
+        }
+    }
+}
@@ -21,12 +21,19 @@ import android.hardware.Camera;
 import com.android.ex.camera2.portability.debug.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 /**
  * A class which stores the camera settings.
+ *
+ * <p>Copies are cheap: the general settings map and the metering and focus
+ * area lists are never modified in place, but replaced on write, so a copy
+ * shares them with its source until either side changes them. Sizes and
+ * {@link GpsData} are immutable and shared outright. For a value that can be
+ * handed between threads without copying at all, see {@link Snapshot}.</p>
  */
 public abstract class CameraSettings {
     private static final Log.Tag TAG = new Log.Tag("CamSet");
@@ -35,9 +42,11 @@ public abstract class CameraSettings {
     private static final int MIN_JPEG_COMPRESSION_QUALITY = 1;
     private static final int MAX_JPEG_COMPRESSION_QUALITY = 100;
 
-    protected final Map<String, String> mGeneralSetting = new TreeMap<>();
-    protected final List<Camera.Area> mMeteringAreas = new ArrayList<>();
-    protected final List<Camera.Area> mFocusAreas = new ArrayList<>();
+    // These three are copy-on-write and may be shared with other instances:
+    // replace them rather than modifying them.
+    protected Map<String, String> mGeneralSetting = Collections.emptyMap();
+    protected List<Camera.Area> mMeteringAreas = Collections.emptyList();
+    protected List<Camera.Area> mFocusAreas = Collections.emptyList();
     protected boolean mSizesLocked;
     protected int mPreviewFpsRangeMin;
     protected int mPreviewFpsRangeMax;
@@ -107,25 +116,153 @@ public abstract class CameraSettings {
     protected CameraSettings() {
     }
 
+    /**
+     * An immutable view of a {@link CameraSettings} instance.
+     *
+     * <p>Unlike {@link CameraSettings} itself, a snapshot can be read from any
+     * thread and passed to {@link CameraAgent.CameraProxy#applySettings(Snapshot)}
+     * without being copied. To change a setting, obtain a mutable copy with
+     * {@link #edit}, modify it, and take a new snapshot of it with
+     * {@link CameraSettings#snapshot}.</p>
+     */
+    public static final class Snapshot {
+        private final CameraSettings mSettings;
+
+        private Snapshot(CameraSettings settings) {
+            mSettings = settings;
+        }
+
+        /**
+         * @return A new mutable copy of these settings, sharing their
+         *         collections until they are modified.
+         */
+        public CameraSettings edit() {
+            return mSettings.copy();
+        }
+
+        /**
+         * @return The frozen settings. Must not be modified or leaked to
+         *         clients.
+         */
+        /*package*/ CameraSettings getSettings() {
+            return mSettings;
+        }
+
+        public int getPreviewFpsRangeMin() {
+            return mSettings.mPreviewFpsRangeMin;
+        }
+
+        public int getPreviewFpsRangeMax() {
+            return mSettings.mPreviewFpsRangeMax;
+        }
+
+        public int getPreviewFrameRate() {
+            return mSettings.mPreviewFrameRate;
+        }
+
+        public Size getCurrentPreviewSize() {
+            return mSettings.mCurrentPreviewSize;
+        }
+
+        public int getCurrentPreviewFormat() {
+            return mSettings.mCurrentPreviewFormat;
+        }
+
+        public Size getCurrentPhotoSize() {
+            return mSettings.mCurrentPhotoSize;
+        }
+
+        public int getCurrentPhotoFormat() {
+            return mSettings.mCurrentPhotoFormat;
+        }
+
+        public int getPhotoJpegCompressionQuality() {
+            return mSettings.mJpegCompressQuality;
+        }
+
+        public float getCurrentZoomRatio() {
+            return mSettings.mCurrentZoomRatio;
+        }
+
+        public int getExposureCompensationIndex() {
+            return mSettings.mExposureCompensationIndex;
+        }
+
+        public boolean isAutoExposureLocked() {
+            return mSettings.mAutoExposureLocked;
+        }
+
+        /**
+         * @return An unmodifiable list of the metering areas.
+         */
+        public List<Camera.Area> getMeteringAreas() {
+            return Collections.unmodifiableList(mSettings.mMeteringAreas);
+        }
+
+        public CameraCapabilities.FlashMode getCurrentFlashMode() {
+            return mSettings.mCurrentFlashMode;
+        }
+
+        public CameraCapabilities.FocusMode getCurrentFocusMode() {
+            return mSettings.mCurrentFocusMode;
+        }
+
+        /**
+         * @return An unmodifiable list of the focus areas.
+         */
+        public List<Camera.Area> getFocusAreas() {
+            return Collections.unmodifiableList(mSettings.mFocusAreas);
+        }
+
+        public CameraCapabilities.WhiteBalance getWhiteBalance() {
+            return mSettings.mWhiteBalance;
+        }
+
+        public boolean isAutoWhiteBalanceLocked() {
+            return mSettings.mAutoWhiteBalanceLocked;
+        }
+
+        public CameraCapabilities.SceneMode getCurrentSceneMode() {
+            return mSettings.mCurrentSceneMode;
+        }
+
+        public boolean isVideoStabilizationEnabled() {
+            return mSettings.mVideoStabilizationEnabled;
+        }
+
+        public boolean isRecordingHintEnabled() {
+            return mSettings.mRecordingHintEnabled;
+        }
+
+        public GpsData getGpsData() {
+            return mSettings.mGpsData;
+        }
+
+        public Size getExifThumbnailSize() {
+            return mSettings.mExifThumbnailSize;
+        }
+    }
+
     /**
      * Copy constructor.
      *
+     * <p>The copy shares the source's collections and immutable members; see
+     * the class documentation.</p>
+     *
      * @param src The source settings.
      * @return The copy of the source.
      */
     protected CameraSettings(CameraSettings src) {
-        mGeneralSetting.putAll(src.mGeneralSetting);
-        mMeteringAreas.addAll(src.mMeteringAreas);
-        mFocusAreas.addAll(src.mFocusAreas);
+        mGeneralSetting = src.mGeneralSetting;
+        mMeteringAreas = src.mMeteringAreas;
+        mFocusAreas = src.mFocusAreas;
         mSizesLocked = src.mSizesLocked;
         mPreviewFpsRangeMin = src.mPreviewFpsRangeMin;
         mPreviewFpsRangeMax = src.mPreviewFpsRangeMax;
         mPreviewFrameRate = src.mPreviewFrameRate;
-        mCurrentPreviewSize =
-                (src.mCurrentPreviewSize == null ? null : new Size(src.mCurrentPreviewSize));
+        mCurrentPreviewSize = src.mCurrentPreviewSize;
         mCurrentPreviewFormat = src.mCurrentPreviewFormat;
-        mCurrentPhotoSize =
-                (src.mCurrentPhotoSize == null ? null : new Size(src.mCurrentPhotoSize));
+        mCurrentPhotoSize = src.mCurrentPhotoSize;
         mJpegCompressQuality = src.mJpegCompressQuality;
         mCurrentPhotoFormat = src.mCurrentPhotoFormat;
         mCurrentZoomRatio = src.mCurrentZoomRatio;
@@ -147,10 +284,30 @@ public abstract class CameraSettings {
      */
     public abstract CameraSettings copy();
 
+    /**
+     * @return An immutable snapshot of the current state of these settings,
+     *         which later changes to this object do not affect.
+     */
+    public Snapshot snapshot() {
+        CameraSettings frozen = copy();
+        frozen.freeze();
+        return new Snapshot(frozen);
+    }
+
+    /**
+     * Called on the copy backing a {@link Snapshot} before it is shared, so
+     * that anything otherwise built lazily can be built while only one thread
+     * sees it. The copy is never modified afterwards.
+     */
+    protected void freeze() {
+    }
+
     /** General setting **/
     @Deprecated
     public void setSetting(String key, String value) {
-        mGeneralSetting.put(key, value);
+        Map<String, String> generalSetting = new TreeMap<>(mGeneralSetting);
+        generalSetting.put(key, value);
+        mGeneralSetting = generalSetting;
     }
 
     /**
@@ -367,10 +524,8 @@ public abstract class CameraSettings {
      *              being passed into this method.
      */
     public void setMeteringAreas(List<Camera.Area> areas) {
-        mMeteringAreas.clear();
-        if (areas != null) {
-            mMeteringAreas.addAll(areas);
-        }
+        mMeteringAreas = (areas == null || areas.isEmpty()) ?
+                Collections.<Camera.Area>emptyList() : new ArrayList<Camera.Area>(areas);
     }
 
     public List<Camera.Area> getMeteringAreas() {
@@ -413,10 +568,8 @@ public abstract class CameraSettings {
      *              passed into this method.
      */
     public void setFocusAreas(List<Camera.Area> areas) {
-        mFocusAreas.clear();
-        if (areas != null) {
-            mFocusAreas.addAll(areas);
-        }
+        mFocusAreas = (areas == null || areas.isEmpty()) ?
+                Collections.<Camera.Area>emptyList() : new ArrayList<Camera.Area>(areas);
     }
 
     public List<Camera.Area> getFocusAreas() {
@@ -479,11 +632,12 @@ public abstract class CameraSettings {
     }
 
     public void setGpsData(GpsData data) {
-        mGpsData = new GpsData(data);
+        mGpsData = data;
     }
 
     public GpsData getGpsData() {
-        return (mGpsData == null ? null : new GpsData(mGpsData));
+        // GpsData is immutable, so there's no need to copy it.
+        return mGpsData;
     }
 
     public void clearGpsData() {
@@ -16,13 +16,95 @@
 
 package com.android.ex.camera2.portability;
 
+import android.os.Handler;
 import android.os.SystemClock;
 
 import com.android.ex.camera2.portability.debug.Log;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Holds the state of a camera device as a bitmask.
+ *
+ * <p>Threads and callbacks waiting for the state register a waiter against a
+ * set of states. A state change only wakes the waiters whose condition it
+ * satisfies, instead of every waiter re-checking its condition on each
+ * change.</p>
+ */
 public abstract class CameraStateHolder {
     private static final Log.Tag TAG = new Log.Tag("CamStateHolder");
 
+    /**
+     * Notified without blocking once the state satisfies a condition
+     * registered via {@link #whenStates} or {@link #whenAvoidingStates}.
+     */
+    public static interface StateCallback {
+        /**
+         * @param state The state which satisfied the condition.
+         */
+        public void onStateReached(int state);
+
+        /**
+         * The state holder was invalidated before the condition was met.
+         */
+        public void onInvalidated();
+    }
+
+    private static class Waiter {
+        final int mStates;
+        final boolean mAvoid;
+        final StateCallback mCallback;
+        final Handler mHandler;
+        /** Guarded by the waiter itself. */
+        boolean mWoken;
+
+        Waiter(int states, boolean avoid, StateCallback callback, Handler handler) {
+            mStates = states;
+            mAvoid = avoid;
+            mCallback = callback;
+            mHandler = handler;
+        }
+
+        boolean isSatisfiedBy(int state) {
+            return mAvoid ? (mStates & state) == 0 : (mStates | state) == mStates;
+        }
+
+        /**
+         * Wakes a blocked thread or dispatches the callback. Must be called
+         * without holding the state holder's lock.
+         */
+        void wake(final int state, final boolean invalidated) {
+            if (mCallback == null) {
+                synchronized (this) {
+                    mWoken = true;
+                    notify();
+                }
+                return;
+            }
+            Runnable notification = new Runnable() {
+                @Override
+                public void run() {
+                    if (invalidated) {
+                        mCallback.onInvalidated();
+                    } else {
+                        mCallback.onStateReached(state);
+                    }
+                }
+            };
+            if (mHandler != null) {
+                mHandler.post(notification);
+            } else {
+                notification.run();
+            }
+        }
+    }
+
+    private final List<Waiter> mWaiters = new ArrayList<Waiter>();
+    /** Total time spent in each single-bit state, indexed by bit position. */
+    private final long[] mTimeInStateMs = new long[Integer.SIZE];
+    private long mStateEnteredMs;
     private int mState;
     private boolean mInvalid;
 
@@ -32,6 +114,7 @@ public abstract class CameraStateHolder {
      * @param state The initial state.
      */
     public CameraStateHolder(int state) {
+        mStateEnteredMs = SystemClock.uptimeMillis();
         setState(state);
         mInvalid = false;
     }
@@ -41,12 +124,38 @@ public abstract class CameraStateHolder {
      *
      * @param state The new state.
      */
-    public synchronized void setState(int state) {
-        if (mState != state) {
-            Log.v(TAG, "setState - state = " + Integer.toBinaryString(state));
+    public void setState(int state) {
+        List<Waiter> woken = null;
+        synchronized (this) {
+            if (mState != state) {
+                Log.v(TAG, "setState - state = " + Integer.toBinaryString(state));
+                long now = SystemClock.uptimeMillis();
+                accumulateTimeInStateLocked(now);
+                mStateEnteredMs = now;
+            }
+            mState = state;
+            for (Iterator<Waiter> it = mWaiters.iterator(); it.hasNext(); ) {
+                Waiter waiter = it.next();
+                if (waiter.isSatisfiedBy(state)) {
+                    it.remove();
+                    if (woken == null) {
+                        woken = new ArrayList<Waiter>();
+                    }
+                    woken.add(waiter);
+                }
+            }
+        }
+        if (woken != null) {
+            for (Waiter waiter : woken) {
+                waiter.wake(state, false);
+            }
+        }
+    }
+
+    private void accumulateTimeInStateLocked(long now) {
+        if (Integer.bitCount(mState) == 1) {
+            mTimeInStateMs[Integer.numberOfTrailingZeros(mState)] += now - mStateEnteredMs;
         }
-        mState = state;
-        this.notifyAll();
     }
 
     /**
@@ -58,11 +167,48 @@ public abstract class CameraStateHolder {
         return mState;
     }
 
+    /**
+     * @return How long, in milliseconds, the holder has been in its current
+     *         state.
+     */
+    public synchronized long getTimeInCurrentStateMs() {
+        return SystemClock.uptimeMillis() - mStateEnteredMs;
+    }
+
+    /**
+     * Returns the total time spent in a state since this holder was created,
+     * including the ongoing stay if it is the current state.
+     *
+     * @param state A single state bit.
+     * @return The accumulated time in milliseconds.
+     */
+    public synchronized long getTotalTimeInStateMs(int state) {
+        if (Integer.bitCount(state) != 1) {
+            throw new IllegalArgumentException("Not a single state: " +
+                    Integer.toBinaryString(state));
+        }
+        long total = mTimeInStateMs[Integer.numberOfTrailingZeros(state)];
+        if (mState == state) {
+            total += SystemClock.uptimeMillis() - mStateEnteredMs;
+        }
+        return total;
+    }
+
     /**
      * Change the state to be invalid. Once invalidated, the state will be invalid forever.
+     * Threads blocked waiting for a state give up and pending callbacks are
+     * told through {@link StateCallback#onInvalidated}.
      */
-    public synchronized void invalidate() {
-        mInvalid = true;
+    public void invalidate() {
+        List<Waiter> aborted;
+        synchronized (this) {
+            mInvalid = true;
+            aborted = new ArrayList<Waiter>(mWaiters);
+            mWaiters.clear();
+        }
+        for (Waiter waiter : aborted) {
+            waiter.wake(0, true);
+        }
     }
 
     /**
@@ -74,40 +220,55 @@ public abstract class CameraStateHolder {
         return mInvalid;
     }
 
-    private static interface ConditionChecker {
-        /**
-         * @return Whether the condition holds.
-         */
-        boolean success();
+    /**
+     * Registers {@code waiter} unless its condition already holds. The caller
+     * must hold the lock on this holder.
+     *
+     * @return Whether the waiter was registered.
+     */
+    private boolean registerLocked(Waiter waiter) {
+        if (waiter.isSatisfiedBy(mState) || mInvalid) {
+            return false;
+        }
+        mWaiters.add(waiter);
+        return true;
     }
 
     /**
-     * A helper method used by {@link #waitToAvoidStates(int)} and
-     * {@link #waitForStates(int)}. This method will wait until the
-     * condition is successful.
+     * Blocks until the condition of {@code waiter} holds.
      *
-     * @param stateChecker The state checker to be used.
      * @param timeoutMs The timeout limit in milliseconds.
-     * @return {@code false} if the wait is interrupted or timeout limit is
-     *         reached.
+     * @return {@code false} if the wait is interrupted, the timeout limit is
+     *         reached, or the holder is invalidated.
      */
-    private boolean waitForCondition(ConditionChecker stateChecker,
-            long timeoutMs) {
+    private boolean waitFor(Waiter waiter, long timeoutMs) {
+        synchronized (this) {
+            if (!registerLocked(waiter)) {
+                return !mInvalid || waiter.isSatisfiedBy(mState);
+            }
+        }
         long timeBound = SystemClock.uptimeMillis() + timeoutMs;
+        synchronized (waiter) {
+            try {
+                long remainingMs = timeoutMs;
+                while (!waiter.mWoken && remainingMs > 0) {
+                    waiter.wait(remainingMs);
+                    remainingMs = timeBound - SystemClock.uptimeMillis();
+                }
+            } catch (InterruptedException ex) {
+                Log.w(TAG, "Interrupted waiting for state.");
+            }
+        }
         synchronized (this) {
-            while (!stateChecker.success()) {
-                try {
-                    this.wait(timeoutMs);
-                } catch (InterruptedException ex) {
-                    if (SystemClock.uptimeMillis() > timeBound) {
-                        // Timeout.
-                        Log.w(TAG, "Timeout waiting.");
-                    }
-                    return false;
+            // Still registered means nobody woke us: timeout or interrupt.
+            if (mWaiters.remove(waiter)) {
+                if (SystemClock.uptimeMillis() >= timeBound) {
+                    Log.w(TAG, "Timeout waiting.");
                 }
+                return false;
             }
+            return !mInvalid;
         }
-        return true;
     }
 
     /**
@@ -120,12 +281,8 @@ public abstract class CameraStateHolder {
      */
     public boolean waitForStates(final int states) {
         Log.v(TAG, "waitForStates - states = " + Integer.toBinaryString(states));
-        return waitForCondition(new ConditionChecker() {
-            @Override
-            public boolean success() {
-                return (states | getState()) == states;
-            }
-        }, CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
+        return waitFor(new Waiter(states, false, null, null),
+                CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
     }
 
     /**
@@ -138,11 +295,67 @@ public abstract class CameraStateHolder {
      */
     public boolean waitToAvoidStates(final int states) {
         Log.v(TAG, "waitToAvoidStates - states = " + Integer.toBinaryString(states));
-        return waitForCondition(new ConditionChecker() {
-            @Override
-            public boolean success() {
-                return (states & getState()) == 0;
+        return waitFor(new Waiter(states, true, null, null),
+                CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
+    }
+
+    /**
+     * Notifies {@code callback} once the state becomes one of the specified,
+     * without blocking. If it already is, the callback is dispatched right
+     * away.
+     *
+     * @param states Expected states.
+     * @param callback The callback to notify.
+     * @param handler The handler to notify it on, or {@code null} to notify it
+     *                on the thread changing the state.
+     */
+    public void whenStates(int states, StateCallback callback, Handler handler) {
+        addCallbackWaiter(new Waiter(states, false, callback, handler));
+    }
+
+    /**
+     * Notifies {@code callback} once the state becomes NOT one of the
+     * specified, without blocking.
+     *
+     * @param states States to avoid.
+     * @param callback The callback to notify.
+     * @param handler The handler to notify it on, or {@code null} to notify it
+     *                on the thread changing the state.
+     * @see #whenStates(int, StateCallback, Handler)
+     */
+    public void whenAvoidingStates(int states, StateCallback callback, Handler handler) {
+        addCallbackWaiter(new Waiter(states, true, callback, handler));
+    }
+
+    private void addCallbackWaiter(Waiter waiter) {
+        if (waiter.mCallback == null) {
+            throw new IllegalArgumentException("null state callback");
+        }
+        boolean registered;
+        int state;
+        boolean invalid;
+        synchronized (this) {
+            registered = registerLocked(waiter);
+            state = mState;
+            invalid = mInvalid;
+        }
+        // Outside the lock, as the callback may be dispatched right here
+        if (!registered) {
+            waiter.wake(invalid ? 0 : state, invalid);
+        }
+    }
+
+    /**
+     * Unregisters every pending registration of {@code callback}.
+     *
+     * @param callback The callback passed to {@link #whenStates} or
+     *                 {@link #whenAvoidingStates}.
+     */
+    public synchronized void removeStateCallback(StateCallback callback) {
+        for (Iterator<Waiter> it = mWaiters.iterator(); it.hasNext(); ) {
+            if (it.next().mCallback == callback) {
+                it.remove();
             }
-        }, CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
+        }
     }
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.content.Context;
+import android.os.Build;
+
+import com.android.ex.camera2.portability.debug.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An on-disk cache of the static facts about each camera device, so that
+ * they needn't be queried from the camera service and parsed again every time
+ * the app starts.
+ *
+ * <p>Entries are keyed by framework API and camera ID, and the whole cache is
+ * discarded whenever the build fingerprint changes. The file is read once, on
+ * first use, and entries are kept in serialized form until asked for; it's up
+ * to the agents to validate an entry against the live device once they have
+ * to talk to it anyway, and to {@link #put} a corrected one if it's stale.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class CapabilitiesCache {
+    private static final Log.Tag TAG = new Log.Tag("CapabsCache");
+
+    private static final String FILE_NAME = "camera2-portability-capabilities";
+    /** Bumped whenever the file format or the {@link CameraCapabilities} encoding changes. */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The cached facts about a single camera device.
+     */
+    static class Entry {
+        /** The API-specific constant for the direction the lens faces. */
+        final int mLensFacing;
+        final int mSensorOrientation;
+        final boolean mCanDisableShutterSound;
+        /** As written by {@link CameraCapabilities#writeTo}, or {@code null} if unknown yet. */
+        private final byte[] mCapabilities;
+
+        Entry(int lensFacing, int sensorOrientation, boolean canDisableShutterSound,
+                CameraCapabilities capabilities) {
+            mLensFacing = lensFacing;
+            mSensorOrientation = sensorOrientation;
+            mCanDisableShutterSound = canDisableShutterSound;
+            mCapabilities = capabilities != null ? encode(capabilities) : null;
+        }
+
+        private Entry(int lensFacing, int sensorOrientation, boolean canDisableShutterSound,
+                byte[] capabilities) {
+            mLensFacing = lensFacing;
+            mSensorOrientation = sensorOrientation;
+            mCanDisableShutterSound = canDisableShutterSound;
+            mCapabilities = capabilities;
+        }
+
+        /**
+         * @return Whether the capabilities of the device are cached as well.
+         */
+        boolean hasCapabilities() {
+            return mCapabilities != null;
+        }
+
+        /**
+         * @return A stream over the serialized capabilities, for the
+         *         API-specific {@link CameraCapabilities} subclass to read.
+         */
+        DataInputStream openCapabilities() {
+            return new DataInputStream(new ByteArrayInputStream(mCapabilities));
+        }
+
+        /**
+         * @return Whether this entry records the same facts as {@code other}.
+         */
+        boolean sameAs(Entry other) {
+            return other != null && mLensFacing == other.mLensFacing &&
+                    mSensorOrientation == other.mSensorOrientation &&
+                    mCanDisableShutterSound == other.mCanDisableShutterSound &&
+                    Arrays.equals(mCapabilities, other.mCapabilities);
+        }
+
+        private static byte[] encode(CameraCapabilities capabilities) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+            try {
+                capabilities.writeTo(new DataOutputStream(bytes));
+            } catch (IOException ex) {
+                // Can't happen when writing to memory
+                throw new IllegalStateException(ex);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static CapabilitiesCache sInstance;
+
+    private final File mFile;
+    private final String mFingerprint;
+    // Guarded by this; null until the file has been read:
+    private Map<String, Entry> mEntries;
+    private boolean mDirty;
+
+    /**
+     * @param context The application context, whose cache directory holds the file.
+     * @return The process-wide cache, which all agents share so as not to
+     *         overwrite each other's entries.
+     */
+    static synchronized CapabilitiesCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CapabilitiesCache(new File(context.getCacheDir(), FILE_NAME),
+                    Build.FINGERPRINT);
+        }
+        return sInstance;
+    }
+
+    CapabilitiesCache(File file, String fingerprint) {
+        mFile = file;
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * @param api Which camera framework the camera ID belongs to: 1 or 2.
+     * @param cameraId The framework's ID for the camera device.
+     * @return The key of the camera device's entry.
+     */
+    static String key(int api, String cameraId) {
+        return api + ":" + cameraId;
+    }
+
+    /**
+     * @return The cached entry, or {@code null} if there is none.
+     */
+    synchronized Entry get(String key) {
+        return getEntriesLocked().get(key);
+    }
+
+    /**
+     * Records an entry, to be written out by the next {@link #save}.
+     */
+    synchronized void put(String key, Entry entry) {
+        Entry previous = getEntriesLocked().put(key, entry);
+        if (!entry.sameAs(previous)) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Writes the cache out if it was changed since it was last read or
+     * written. Meant to be called off the main thread.
+     */
+    synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(mFingerprint);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> mapping : mEntries.entrySet()) {
+                Entry entry = mapping.getValue();
+                out.writeUTF(mapping.getKey());
+                out.writeInt(entry.mLensFacing);
+                out.writeInt(entry.mSensorOrientation);
+                out.writeBoolean(entry.mCanDisableShutterSound);
+                if (entry.mCapabilities != null) {
+                    out.writeInt(entry.mCapabilities.length);
+                    out.write(entry.mCapabilities);
+                } else {
+                    out.writeInt(-1);
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Unable to rename " + temp + " to " + mFile);
+            }
+            mDirty = false;
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to write camera capabilities cache", ex);
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private Map<String, Entry> getEntriesLocked() {
+        if (mEntries == null) {
+            mEntries = new HashMap<String, Entry>();
+            load();
+        }
+        return mEntries;
+    }
+
+    private void load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FORMAT_VERSION || !mFingerprint.equals(in.readUTF())) {
+                Log.i(TAG, "Discarding camera capabilities cache from another build");
+                mDirty = true;
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                String key = in.readUTF();
+                int lensFacing = in.readInt();
+                int sensorOrientation = in.readInt();
+                boolean canDisableShutterSound = in.readBoolean();
+                byte[] capabilities = null;
+                int length = in.readInt();
+                if (length >= 0) {
+                    capabilities = new byte[length];
+                    in.readFully(capabilities);
+                }
+                mEntries.put(key, new Entry(lensFacing, sensorOrientation,
+                        canDisableShutterSound, capabilities));
+            }
+        } catch (FileNotFoundException ex) {
+            // Nothing cached yet
+        } catch (IOException ex) {
+            Log.w(TAG, "Discarding corrupt camera capabilities cache", ex);
+            mEntries.clear();
+            mDirty = true;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException ex) {
+                Log.w(TAG, "Unable to close camera capabilities cache", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the load on a camera job dispatcher.
+ *
+ * <p>All values are updated without locking and may be read from any thread;
+ * a set of values read back to back is not guaranteed to be consistent.</p>
+ */
+public class DispatchMetrics {
+    private final AtomicLong mQueuedJobs = new AtomicLong();
+    private final AtomicLong mCompletedJobs = new AtomicLong();
+    private final AtomicLong mMaxQueueDepth = new AtomicLong();
+    private final AtomicLong mTotalLatencyNs = new AtomicLong();
+    private final AtomicLong mMaxLatencyNs = new AtomicLong();
+    private final AtomicLong mCoalescedJobs = new AtomicLong();
+    private final AtomicLong mRejectedJobs = new AtomicLong();
+
+    DispatchMetrics() {
+    }
+
+    void onJobQueued(long queueDepth) {
+        mQueuedJobs.incrementAndGet();
+        updateMax(mMaxQueueDepth, queueDepth);
+    }
+
+    void onJobCompleted(long latencyNs) {
+        mCompletedJobs.incrementAndGet();
+        mTotalLatencyNs.addAndGet(latencyNs);
+        updateMax(mMaxLatencyNs, latencyNs);
+    }
+
+    void onJobCoalesced() {
+        mCoalescedJobs.incrementAndGet();
+    }
+
+    void onJobRejected() {
+        mRejectedJobs.incrementAndGet();
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The number of jobs accepted into the queue so far.
+     */
+    public long getQueuedJobCount() {
+        return mQueuedJobs.get();
+    }
+
+    /**
+     * @return The number of jobs whose camera handler work has finished.
+     */
+    public long getCompletedJobCount() {
+        return mCompletedJobs.get();
+    }
+
+    /**
+     * @return The largest number of jobs seen waiting in the queue at once.
+     */
+    public long getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * @return The mean time, in nanoseconds, from a job being queued to the
+     *         camera handler having processed everything the job posted, or
+     *         {@code 0} if no job has completed yet.
+     */
+    public long getAverageJobLatencyNs() {
+        long completed = mCompletedJobs.get();
+        return completed == 0 ? 0 : mTotalLatencyNs.get() / completed;
+    }
+
+    /**
+     * @return The longest queue-to-completion time seen, in nanoseconds.
+     */
+    public long getMaxJobLatencyNs() {
+        return mMaxLatencyNs.get();
+    }
+
+    /**
+     * @return The number of queued jobs discarded because a newer job with
+     *         the same coalescing key superseded them.
+     */
+    public long getCoalescedJobCount() {
+        return mCoalescedJobs.get();
+    }
+
+    /**
+     * @return The number of jobs refused or dropped because the queue was full.
+     */
+    public long getRejectedJobCount() {
+        return mRejectedJobs.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DispatchMetrics{queued=" + getQueuedJobCount() +
+                ", completed=" + getCompletedJobCount() +
+                ", coalesced=" + getCoalescedJobCount() +
+                ", rejected=" + getRejectedJobCount() +
+                ", maxDepth=" + getMaxQueueDepth() +
+                ", avgLatencyUs=" + getAverageJobLatencyNs() / 1000 +
+                ", maxLatencyUs=" + getMaxJobLatencyNs() / 1000 + "}";
+    }
+}
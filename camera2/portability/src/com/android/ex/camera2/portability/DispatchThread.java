@@ -23,43 +23,199 @@ import android.os.SystemClock;
 import com.android.ex.camera2.portability.debug.Log;
 
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ListIterator;
 
 public class DispatchThread extends Thread {
     private static final Log.Tag TAG = new Log.Tag("DispatchThread");
     private static final long MAX_MESSAGE_QUEUE_LENGTH = 256;
 
-    private final Queue<Runnable> mJobQueue;
+    /**
+     * What to do with a new job when the queue already holds
+     * {@code MAX_MESSAGE_QUEUE_LENGTH} pending jobs.
+     */
+    public static enum BackPressurePolicy {
+        /** Throw a {@link RuntimeException} back to the caller. */
+        FAIL,
+        /**
+         * Block the caller until there is room in the queue, failing as
+         * {@link #FAIL} does if none frees up within
+         * {@link CameraAgent#CAMERA_OPERATION_TIMEOUT_MS}.
+         */
+        BLOCK,
+        /** Discard the new job, reporting it to the caller as not queued. */
+        DROP,
+    }
+
+    private static class PendingJob {
+        final Runnable mJob;
+        final Object mCoalesceKey;
+        final long mQueuedNs;
+
+        PendingJob(Runnable job, Object coalesceKey) {
+            this(job, coalesceKey, System.nanoTime());
+        }
+
+        /**
+         * @param queuedNs When the job, or the one it supersedes, was queued.
+         */
+        PendingJob(Runnable job, Object coalesceKey, long queuedNs) {
+            mJob = job;
+            mCoalesceKey = coalesceKey;
+            mQueuedNs = queuedNs;
+        }
+    }
+
+    private final LinkedList<PendingJob> mJobQueue;
+    private final DispatchMetrics mMetrics;
+    private volatile BackPressurePolicy mBackPressurePolicy;
     private Boolean mIsEnded;
     private Handler mCameraHandler;
     private HandlerThread mCameraHandlerThread;
 
     public DispatchThread(Handler cameraHandler, HandlerThread cameraHandlerThread) {
         super("Camera Job Dispatch Thread");
-        mJobQueue = new LinkedList<Runnable>();
+        mJobQueue = new LinkedList<PendingJob>();
+        mMetrics = new DispatchMetrics();
+        mBackPressurePolicy = BackPressurePolicy.FAIL;
         mIsEnded = new Boolean(false);
         mCameraHandler = cameraHandler;
         mCameraHandlerThread = cameraHandlerThread;
     }
 
+    /**
+     * Sets how {@link #runJob} behaves when the job queue is full. The
+     * default is {@link BackPressurePolicy#FAIL}.
+     *
+     * @param policy The policy to apply to subsequently queued jobs.
+     */
+    public void setBackPressurePolicy(BackPressurePolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("null back-pressure policy");
+        }
+        mBackPressurePolicy = policy;
+    }
+
+    /**
+     * @return The policy applied when the job queue is full.
+     */
+    public BackPressurePolicy getBackPressurePolicy() {
+        return mBackPressurePolicy;
+    }
+
+    /**
+     * @return The queue, coalescing and latency counters of this dispatcher.
+     */
+    public DispatchMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Queues up the job.
      *
      * @param job The job to run.
+     * @return Whether the job was queued, rather than dropped by
+     *         {@link BackPressurePolicy#DROP}.
      */
-    public void runJob(Runnable job) {
+    public boolean runJob(Runnable job) {
+        return runJob(job, null);
+    }
+
+    /**
+     * Queues up the job, replacing a pending job with the same coalescing key
+     * if no job without a key has been queued since. The new job then takes
+     * the place of the one it supersedes, so it is never reordered against
+     * ordinary jobs such as taking a picture.
+     *
+     * @param job The job to run.
+     * @param coalesceKey The key identifying jobs that supersede each other,
+     *                    or {@code null} if the job must always run.
+     * @return Whether the job was queued, rather than dropped by
+     *         {@link BackPressurePolicy#DROP}.
+     */
+    public boolean runJob(Runnable job, Object coalesceKey) {
+        return enqueue(job, coalesceKey);
+    }
+
+    /**
+     * Queues up a latency-critical job in the urgent lane. The job keeps its
+     * FIFO place among all queued jobs, including settings updates, so a
+     * capture or focus run always sees the settings requested before it.
+     * Coalescing already keeps at most one pending settings job per key in
+     * front of it. The messages the job sends may still be prioritized on
+     * the camera handler.
+     *
+     * @param job The job to run.
+     * @return Whether the job was queued, rather than dropped by
+     *         {@link BackPressurePolicy#DROP}.
+     */
+    public boolean runUrgentJob(Runnable job) {
+        return enqueue(job, null);
+    }
+
+    private boolean enqueue(Runnable job, Object coalesceKey) {
         if (isEnded()) {
             throw new IllegalStateException(
                     "Trying to run job on interrupted dispatcher thread");
         }
         synchronized (mJobQueue) {
-            if (mJobQueue.size() == MAX_MESSAGE_QUEUE_LENGTH) {
+            if (coalesceKey != null) {
+                // Only look back as far as the newest job that must keep its place
+                ListIterator<PendingJob> it = mJobQueue.listIterator(mJobQueue.size());
+                while (it.hasPrevious()) {
+                    PendingJob queued = it.previous();
+                    if (queued.mCoalesceKey == null) {
+                        break;
+                    }
+                    if (coalesceKey.equals(queued.mCoalesceKey)) {
+                        // Latency counts from when the superseded update was queued
+                        it.set(new PendingJob(job, coalesceKey, queued.mQueuedNs));
+                        mMetrics.onJobCoalesced();
+                        mMetrics.onJobQueued(mJobQueue.size());
+                        mJobQueue.notifyAll();
+                        return true;
+                    }
+                }
+            }
+
+            if (mJobQueue.size() >= MAX_MESSAGE_QUEUE_LENGTH && !awaitRoomLocked()) {
+                mMetrics.onJobRejected();
+                if (mBackPressurePolicy == BackPressurePolicy.DROP) {
+                    Log.w(TAG, "Camera master thread job queue full, dropping job");
+                    return false;
+                }
                 throw new RuntimeException("Camera master thread job queue full");
             }
 
-            mJobQueue.add(job);
+            mJobQueue.add(new PendingJob(job, coalesceKey));
+            mMetrics.onJobQueued(mJobQueue.size());
             mJobQueue.notifyAll();
         }
+        return true;
+    }
+
+    /**
+     * Waits for the dispatcher to drain the job queue below its limit if the
+     * back-pressure policy allows it.
+     *
+     * @return Whether there is room for another job.
+     */
+    private boolean awaitRoomLocked() {
+        if (mBackPressurePolicy != BackPressurePolicy.BLOCK) {
+            return false;
+        }
+        long timeoutBound = SystemClock.uptimeMillis() + CameraAgent.CAMERA_OPERATION_TIMEOUT_MS;
+        while (mJobQueue.size() >= MAX_MESSAGE_QUEUE_LENGTH && !isEnded()) {
+            long remainingMs = timeoutBound - SystemClock.uptimeMillis();
+            if (remainingMs <= 0) {
+                return false;
+            }
+            try {
+                mJobQueue.wait(remainingMs);
+            } catch (InterruptedException ex) {
+                return false;
+            }
+        }
+        return mJobQueue.size() < MAX_MESSAGE_QUEUE_LENGTH;
     }
 
     /**
@@ -71,11 +227,33 @@ public class DispatchThread extends Thread {
      * @return Whether the job finishes before timeout.
      */
     public void runJobSync(final Runnable job, Object waitLock, long timeoutMs, String jobMsg) {
+        runJobSync(job, false, waitLock, timeoutMs, jobMsg);
+    }
+
+    /**
+     * Queues up the job in the urgent lane and wait for it to be done.
+     *
+     * @param job The job to run.
+     * @param timeoutMs Timeout limit in milliseconds.
+     * @param jobMsg The message to log when the job runs timeout.
+     * @see #runUrgentJob(Runnable)
+     */
+    public void runUrgentJobSync(final Runnable job, Object waitLock, long timeoutMs,
+            String jobMsg) {
+        runJobSync(job, true, waitLock, timeoutMs, jobMsg);
+    }
+
+    private void runJobSync(final Runnable job, boolean urgent, Object waitLock, long timeoutMs,
+            String jobMsg) {
         String timeoutMsg = "Timeout waiting " + timeoutMs + "ms for " + jobMsg;
         synchronized (waitLock) {
             long timeoutBound = SystemClock.uptimeMillis() + timeoutMs;
             try {
-                runJob(job);
+                boolean queued = urgent ? runUrgentJob(job) : runJob(job);
+                if (!queued) {
+                    // Nobody is going to notify us, and the caller expects the job to have run
+                    throw new RuntimeException("Camera master thread job queue full");
+                }
                 waitLock.wait(timeoutMs);
                 if (SystemClock.uptimeMillis() > timeoutBound) {
                     throw new IllegalStateException(timeoutMsg);
@@ -109,7 +287,7 @@ public class DispatchThread extends Thread {
     @Override
     public void run() {
         while(true) {
-            Runnable job = null;
+            PendingJob job = null;
             synchronized (mJobQueue) {
                 while (mJobQueue.size() == 0 && !isEnded()) {
                     try {
@@ -121,6 +299,8 @@ public class DispatchThread extends Thread {
                 }
 
                 job = mJobQueue.poll();
+                // Wake up any producers blocked on a full queue.
+                mJobQueue.notifyAll();
             }
 
             if (job == null) {
@@ -132,7 +312,7 @@ public class DispatchThread extends Thread {
                 continue;
             }
 
-            job.run();
+            job.mJob.run();
 
             synchronized (DispatchThread.this) {
                 mCameraHandler.post(new Runnable() {
@@ -149,6 +329,7 @@ public class DispatchThread extends Thread {
                     // TODO: do something here.
                 }
             }
+            mMetrics.onJobCompleted(System.nanoTime() - job.mQueuedNs);
         }
         mCameraHandlerThread.quitSafely();
     }
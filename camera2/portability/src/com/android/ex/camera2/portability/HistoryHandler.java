@@ -19,34 +19,208 @@ package com.android.ex.camera2.portability;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
-import java.util.LinkedList;
+import com.android.ex.camera2.utils.SysTrace;
 
+/**
+ * A {@link Handler} which keeps a bounded history of the camera messages it
+ * handled, together with when each of them was due, started and finished.
+ *
+ * <p>The history lives in preallocated primitive arrays so that recording a
+ * message does not allocate, which keeps it cheap enough to leave on in
+ * production.</p>
+ *
+ * <p>Every message is also timed into a {@link CameraActionMetrics} and
+ * traced as a {@link SysTrace} section named after its action.</p>
+ */
 class HistoryHandler extends Handler {
     private static final int MAX_HISTORY_SIZE = 400;
+    /** Marks the very beginning of the history. */
+    private static final int HISTORY_START = -1;
 
-    final LinkedList<Integer> mMsgHistory;
+    private final Object mHistoryLock = new Object();
+    private final int[] mCodes = new int[MAX_HISTORY_SIZE];
+    private final long[] mEnqueueMs = new long[MAX_HISTORY_SIZE];
+    private final long[] mStartMs = new long[MAX_HISTORY_SIZE];
+    private final long[] mEndMs = new long[MAX_HISTORY_SIZE];
+    /** Total number of entries ever recorded; the next slot is this modulo the size. */
+    private long mRecorded;
+    private final CameraActionMetrics mActionMetrics = new CameraActionMetrics();
 
     HistoryHandler(Looper looper) {
         super(looper);
-        mMsgHistory = new LinkedList<Integer>();
-        // We add a -1 at the beginning to mark the very beginning of the
-        // history.
-        mMsgHistory.offerLast(-1);
+        long now = SystemClock.uptimeMillis();
+        record(HISTORY_START, now, now);
+        finishLast(now);
+    }
+
+    private void record(int what, long enqueueMs, long startMs) {
+        synchronized (mHistoryLock) {
+            int slot = (int) (mRecorded++ % MAX_HISTORY_SIZE);
+            mCodes[slot] = what;
+            mEnqueueMs[slot] = enqueueMs;
+            mStartMs[slot] = startMs;
+            mEndMs[slot] = -1;
+        }
     }
 
+    private void finishLast(long endMs) {
+        synchronized (mHistoryLock) {
+            mEndMs[(int) ((mRecorded - 1) % MAX_HISTORY_SIZE)] = endMs;
+        }
+    }
+
+    /** @return The index of the oldest entry still held. Call with the lock held. */
+    private long firstRetainedLocked() {
+        return Math.max(0, mRecorded - MAX_HISTORY_SIZE);
+    }
+
+    /**
+     * @return The latency histograms of the messages handled so far.
+     */
+    CameraActionMetrics getActionMetrics() {
+        return mActionMetrics;
+    }
+
+    /**
+     * @return The ID of the camera currently served by this handler, or
+     *         {@code -1} if there is none. Used to key the action metrics.
+     */
+    protected int getMetricsCameraId() {
+        return -1;
+    }
+
+    /**
+     * @return The code of the message being, or most recently, handled.
+     */
     Integer getCurrentMessage() {
-        return mMsgHistory.peekLast();
+        synchronized (mHistoryLock) {
+            return mCodes[(int) ((mRecorded - 1) % MAX_HISTORY_SIZE)];
+        }
     }
 
     String generateHistoryString(int cameraId) {
-        String info = new String("HIST");
-        info += "_ID" + cameraId;
-        for (Integer msg : mMsgHistory) {
-            info = info + '_' + msg.toString();
+        StringBuilder info = new StringBuilder(16 + 4 * MAX_HISTORY_SIZE);
+        info.append("HIST_ID").append(cameraId);
+        synchronized (mHistoryLock) {
+            for (long i = firstRetainedLocked(); i < mRecorded; i++) {
+                info.append('_').append(mCodes[(int) (i % MAX_HISTORY_SIZE)]);
+            }
+        }
+        return info.append("_HEND").toString();
+    }
+
+    /**
+     * Dumps the history with timings. Each entry reads
+     * {@code code@enqueueMs+waitMs+runMs}, where {@code enqueueMs} is the
+     * uptime at which the message became due, and {@code runMs} is {@code ?}
+     * for a message which is still being handled.
+     *
+     * @param cameraId The ID of the camera this handler serves.
+     * @return The dump.
+     */
+    String generateTimedHistoryString(int cameraId) {
+        StringBuilder info = new StringBuilder(16 + 24 * MAX_HISTORY_SIZE);
+        info.append("HIST_ID").append(cameraId);
+        synchronized (mHistoryLock) {
+            for (long i = firstRetainedLocked(); i < mRecorded; i++) {
+                int slot = (int) (i % MAX_HISTORY_SIZE);
+                info.append('_').append(mCodes[slot])
+                        .append('@').append(mEnqueueMs[slot])
+                        .append('+').append(mStartMs[slot] - mEnqueueMs[slot])
+                        .append('+');
+                if (mEndMs[slot] < 0) {
+                    info.append('?');
+                } else {
+                    info.append(mEndMs[slot] - mStartMs[slot]);
+                }
+            }
+        }
+        return info.append("_HEND").toString();
+    }
+
+    /**
+     * Copies the latencies of the retained, finished messages with the given
+     * code, oldest first.
+     *
+     * @param what The {@link CameraActions} code to look for.
+     * @param waitMs Receives the time each message spent queued, or
+     *               {@code null}.
+     * @param runMs Receives the time each message took to handle, or
+     *              {@code null}.
+     * @return The number of entries copied, bounded by the arrays' lengths.
+     */
+    int getLatencies(int what, long[] waitMs, long[] runMs) {
+        int capacity = Integer.MAX_VALUE;
+        if (waitMs != null) {
+            capacity = waitMs.length;
+        }
+        if (runMs != null) {
+            capacity = Math.min(capacity, runMs.length);
+        }
+        int count = 0;
+        synchronized (mHistoryLock) {
+            for (long i = firstRetainedLocked(); i < mRecorded && count < capacity; i++) {
+                int slot = (int) (i % MAX_HISTORY_SIZE);
+                if (mCodes[slot] != what || mEndMs[slot] < 0) {
+                    continue;
+                }
+                if (waitMs != null) {
+                    waitMs[count] = mStartMs[slot] - mEnqueueMs[slot];
+                }
+                if (runMs != null) {
+                    runMs[count] = mEndMs[slot] - mStartMs[slot];
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sends a latency-critical message ahead of everything already queued on
+     * this handler. Since the dispatch thread waits for the handler to catch up
+     * with one job before running the next, at most one urgent message is
+     * pending at a time and urgent messages keep their relative order.
+     *
+     * @param msg The message to send.
+     * @return Whether the message was placed in the queue.
+     */
+    boolean sendUrgentMessage(Message msg) {
+        return sendMessageAtFrontOfQueue(msg);
+    }
+
+    /**
+     * Records the timing of every message, but not of posted
+     * {@link Runnable}s, around its handling.
+     */
+    @Override
+    public void dispatchMessage(Message msg) {
+        if (msg.getCallback() != null) {
+            super.dispatchMessage(msg);
+            return;
+        }
+        int cameraId = getMetricsCameraId();
+        long startMs = SystemClock.uptimeMillis();
+        // Messages sent to the front of the queue are due at time 0; treat
+        // them as not having waited at all.
+        long when = msg.getWhen();
+        long enqueueMs = when > 0 && when <= startMs ? when : startMs;
+        record(msg.what, enqueueMs, startMs);
+        SysTrace.beginSection(CameraActions.stringify(msg.what));
+        try {
+            super.dispatchMessage(msg);
+        } finally {
+            SysTrace.endSection();
+            long endMs = SystemClock.uptimeMillis();
+            finishLast(endMs);
+            if (cameraId == -1) {
+                // Attribute OPEN_CAMERA to the camera it opened.
+                cameraId = getMetricsCameraId();
+            }
+            mActionMetrics.record(cameraId, msg.what, startMs - enqueueMs, endMs - startMs);
         }
-        info += "_HEND";
-        return info;
     }
 
     /**
@@ -54,9 +228,5 @@ class HistoryHandler extends Handler {
      */
     @Override
     public void handleMessage(Message msg) {
-        mMsgHistory.offerLast(msg.what);
-        while (mMsgHistory.size() > MAX_HISTORY_SIZE) {
-            mMsgHistory.pollFirst();
-        }
     }
 }
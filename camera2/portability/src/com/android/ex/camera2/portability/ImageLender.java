@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.ex.camera2.portability;
+
+import android.media.Image;
+import android.media.ImageReader;
+
+import com.android.ex.camera2.portability.debug.Log;
+
+/**
+ * Keeps track of the {@link Image}s of an {@link ImageReader} that have been
+ * lent out beyond the camera handler thread, e.g. to a client callback.
+ *
+ * <p>An {@link ImageReader} refuses to hand out more than its maximum number
+ * of images, and closing it invalidates every image it has handed out. This
+ * class therefore reports when lending one more image would starve the
+ * reader, and defers closing the reader until the last lent image has come
+ * back.</p>
+ *
+ * <p>The reader must only be closed through {@link #close}. Images may be
+ * returned from any thread.</p>
+ */
+class ImageLender {
+    private static final Log.Tag TAG = new Log.Tag("ImageLender");
+
+    private final ImageReader mReader;
+    private final int mMaxLent;
+    private int mLent;
+    private boolean mClosed;
+
+    /**
+     * @param reader The reader whose images will be lent.
+     * @param maxLent How many images may be out at once. Must leave the reader
+     *                at least one image to acquire while that many are out.
+     */
+    ImageLender(ImageReader reader, int maxLent) {
+        mReader = reader;
+        mMaxLent = maxLent;
+    }
+
+    ImageReader getReader() {
+        return mReader;
+    }
+
+    /**
+     * @return Whether another image may be lent out.
+     */
+    synchronized boolean canLend() {
+        return !mClosed && mLent < mMaxLent;
+    }
+
+    /**
+     * Records that an image acquired from the reader is being lent out.
+     *
+     * @param image An image of this lender's reader.
+     * @return The action returning the image, which must be run exactly once.
+     */
+    synchronized Runnable lend(final Image image) {
+        ++mLent;
+        return new Runnable() {
+            @Override
+            public void run() {
+                image.close();
+                onReturned();
+            }
+        };
+    }
+
+    private void onReturned() {
+        boolean closeReader;
+        synchronized (this) {
+            closeReader = --mLent == 0 && mClosed;
+        }
+        if (closeReader) {
+            mReader.close();
+        }
+    }
+
+    /**
+     * Closes the reader, or schedules it to be closed once every lent image
+     * has been returned.
+     */
+    void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mLent > 0) {
+                Log.v(TAG, "Deferring reader close until " + mLent + " lent images return");
+                return;
+            }
+        }
+        mReader.close();
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.android.ex.camera2.portability.debug.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link DispatchThread} backed by a bounded lock-free queue.
+ *
+ * <p>Producers never take a monitor: jobs go into a fixed-size ring that any
+ * number of threads may publish into while the dispatch thread alone drains
+ * it. Instead of posting a runnable to the camera handler and {@code wait()}ing
+ * after every job, each job gets a completion future which the camera handler
+ * fulfils once it has processed everything the job posted. The dispatch thread
+ * only parks on that future when another job is ready to run, so jobs that
+ * arrive while the handler is idle cost a single thread hop.</p>
+ *
+ * <p>Coalescing is tracked by giving every job the sequence number of the
+ * ring slot it claims, so sequence order always matches dispatch order, and
+ * remembering the newest accepted job for each key. When a keyed job is
+ * accepted and no ordinary job has been queued since the previous job with its
+ * key, that previous job is marked as superseded; it is skipped and its future
+ * cancelled once it reaches the head of the queue. A keyed job followed by an
+ * ordinary one is never skipped, so it can't be reordered against it.</p>
+ *
+ * <p>Urgent jobs share the ring with every other job and keep their FIFO
+ * place, so they are never reordered against settings updates.</p>
+ */
+public class LockFreeDispatchThread extends DispatchThread {
+    private static final Log.Tag TAG = new Log.Tag("LFDispatchThread");
+    private static final int QUEUE_CAPACITY = 256;
+    private static final long BLOCKED_RETRY_NS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final JobQueue mJobQueue = new JobQueue(QUEUE_CAPACITY);
+    private final AtomicBoolean mParked = new AtomicBoolean(false);
+    /** Sequence number of the newest queued job without a coalescing key. */
+    private final AtomicLong mLastOrdinarySequence = new AtomicLong(-1);
+    /**
+     * Jobs without a coalescing key being queued, which may have claimed a slot
+     * without being recorded in {@link #mLastOrdinarySequence} yet.
+     */
+    private final AtomicInteger mOrdinaryInFlight = new AtomicInteger();
+    private final ConcurrentHashMap<Object, Job> mLatestJobs =
+            new ConcurrentHashMap<Object, Job>();
+    private final Handler mCameraHandler;
+    private final HandlerThread mCameraHandlerThread;
+    private volatile boolean mIsEnded;
+
+    public LockFreeDispatchThread(Handler cameraHandler, HandlerThread cameraHandlerThread) {
+        super(cameraHandler, cameraHandlerThread);
+        mCameraHandler = cameraHandler;
+        mCameraHandlerThread = cameraHandlerThread;
+    }
+
+    /**
+     * Queues up the job.
+     *
+     * @param job The job to run.
+     */
+    @Override
+    public boolean runJob(Runnable job) {
+        return enqueue(job, null) != null;
+    }
+
+    @Override
+    public boolean runJob(Runnable job, Object coalesceKey) {
+        return enqueue(job, coalesceKey) != null;
+    }
+
+    @Override
+    public boolean runUrgentJob(Runnable job) {
+        return enqueue(job, null) != null;
+    }
+
+    /**
+     * Queues up the job in the urgent lane and returns its completion future.
+     *
+     * @param job The job to run.
+     * @return The completion future of the job.
+     * @see #runUrgentJob(Runnable)
+     */
+    public Future<Void> runUrgentJobAsync(Runnable job) {
+        return completionOf(enqueue(job, null));
+    }
+
+    /**
+     * Queues up the job and returns a future which completes once the camera
+     * handler has processed every message the job sent to it.
+     *
+     * @param job The job to run.
+     * @return The completion future of the job.
+     */
+    public Future<Void> runJobAsync(Runnable job) {
+        return runJobAsync(job, null);
+    }
+
+    /**
+     * Queues up the job as {@link #runJob(Runnable, Object)} does and returns
+     * its completion future. The future is cancelled if the job is superseded
+     * by a newer job with the same key or dropped by
+     * {@link BackPressurePolicy#DROP}.
+     *
+     * @param job The job to run.
+     * @param coalesceKey The key identifying jobs that supersede each other,
+     *                    or {@code null} if the job must always run.
+     * @return The completion future of the job.
+     */
+    public Future<Void> runJobAsync(Runnable job, Object coalesceKey) {
+        return completionOf(enqueue(job, coalesceKey));
+    }
+
+    private static Future<Void> completionOf(Job entry) {
+        if (entry != null) {
+            return entry.mCompletion;
+        }
+        FutureTask<Void> dropped = new FutureTask<Void>(NO_RESULT);
+        dropped.cancel(false);
+        return dropped;
+    }
+
+    /**
+     * @return The queued job, or {@code null} if it was dropped.
+     */
+    private Job enqueue(Runnable job, Object coalesceKey) {
+        if (mIsEnded) {
+            throw new IllegalStateException(
+                    "Trying to run job on interrupted dispatcher thread");
+        }
+        Job entry = new Job(job, coalesceKey);
+        if (coalesceKey == null) {
+            mOrdinaryInFlight.incrementAndGet();
+        }
+        boolean queued;
+        try {
+            queued = mJobQueue.offer(entry) || offerBlocking(entry);
+            if (queued && coalesceKey == null) {
+                updateMax(mLastOrdinarySequence, entry.mSequence);
+            }
+        } finally {
+            if (coalesceKey == null) {
+                mOrdinaryInFlight.decrementAndGet();
+            }
+        }
+        if (!queued) {
+            getMetrics().onJobRejected();
+            if (getBackPressurePolicy() == BackPressurePolicy.DROP) {
+                Log.w(TAG, "Camera master thread job queue full, dropping job");
+                return null;
+            }
+            throw new RuntimeException("Camera master thread job queue full");
+        }
+        if (coalesceKey != null) {
+            // Only supersede once the job is actually queued, so a rejected job
+            // never causes an older one to be skipped.
+            supersede(coalesceKey, entry);
+        }
+        getMetrics().onJobQueued(getQueueDepth());
+        wakeUp();
+        return entry;
+    }
+
+    /**
+     * Records {@code entry} as the newest job with its key, and marks the
+     * previous one as superseded unless an ordinary job was queued in between.
+     * Must be called once {@code entry} has been queued.
+     */
+    private void supersede(Object coalesceKey, Job entry) {
+        // An ordinary job still being queued may sit between the two in the
+        // ring without being recorded yet, so don't skip anything then. Check
+        // that before reading the barrier, as such a job records itself there
+        // before it stops counting as in flight.
+        boolean ordinaryPending = mOrdinaryInFlight.get() > 0;
+        long barrier = mLastOrdinarySequence.get();
+        while (true) {
+            Job previous = mLatestJobs.get(coalesceKey);
+            if (previous == null) {
+                if (mLatestJobs.putIfAbsent(coalesceKey, entry) == null) {
+                    return;
+                }
+            } else if (previous.mSequence > entry.mSequence) {
+                // A concurrent producer already queued a newer job; let both run.
+                return;
+            } else if (mLatestJobs.replace(coalesceKey, previous, entry)) {
+                if (!ordinaryPending && previous.mSequence > barrier) {
+                    previous.mSuperseded = true;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Retries queueing the job until it fits if the back-pressure policy
+     * allows blocking.
+     *
+     * @return Whether the job was queued.
+     */
+    private boolean offerBlocking(Job entry) {
+        if (getBackPressurePolicy() != BackPressurePolicy.BLOCK) {
+            return false;
+        }
+        long deadline = System.nanoTime() +
+                TimeUnit.MILLISECONDS.toNanos(CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
+        while (!mIsEnded && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(this, BLOCKED_RETRY_NS);
+            if (mJobQueue.offer(entry)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The current number of jobs waiting to be dispatched.
+     */
+    public int getQueueDepth() {
+        return mJobQueue.size();
+    }
+
+    /**
+     * Gracefully ends this thread. Will stop after all jobs are processed.
+     */
+    @Override
+    public void end() {
+        mIsEnded = true;
+        LockSupport.unpark(this);
+    }
+
+    private void wakeUp() {
+        if (mParked.get()) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        Job previous = null;
+        while (true) {
+            Job job = mJobQueue.poll();
+            if (job == null) {
+                if (mIsEnded) {
+                    break;
+                }
+                // Publish the parked flag before re-checking the queue so that
+                // a producer either sees it and unparks us, or we see its job.
+                mParked.set(true);
+                job = mJobQueue.poll();
+                if (job == null && !mIsEnded) {
+                    LockSupport.park(this);
+                }
+                mParked.set(false);
+                if (job == null) {
+                    continue;
+                }
+            }
+
+            if (job.mSuperseded) {
+                getMetrics().onJobCoalesced();
+                job.mCompletion.cancel(false);
+                continue;
+            }
+
+            // Jobs inspect camera state before posting, so they must not run
+            // until the handler has caught up with the previous job.
+            if (previous != null) {
+                previous.awaitHandler(this);
+            }
+
+            try {
+                job.mRunnable.run();
+            } finally {
+                mCameraHandler.post(job.mCompletion);
+            }
+            previous = job;
+        }
+        mCameraHandlerThread.quitSafely();
+    }
+
+    private static final Callable<Void> NO_RESULT = new Callable<Void>() {
+        @Override
+        public Void call() {
+            return null;
+        }
+    };
+
+    private class Job {
+        final Runnable mRunnable;
+        final Object mCoalesceKey;
+        /** The position of this job in the ring, set when it is queued. */
+        long mSequence;
+        /** Whether a newer job with the same key replaces this one. */
+        volatile boolean mSuperseded;
+        final CompletionFuture mCompletion;
+        final long mQueuedNs;
+
+        Job(Runnable runnable, Object coalesceKey) {
+            mRunnable = runnable;
+            mCoalesceKey = coalesceKey;
+            mCompletion = new CompletionFuture(this);
+            mQueuedNs = System.nanoTime();
+        }
+
+        void awaitHandler(Thread waiter) {
+            while (!mCompletion.isDone()) {
+                mCompletion.mWaiter = waiter;
+                if (!mCompletion.isDone()) {
+                    LockSupport.park(this);
+                }
+                if (mIsEnded && !mCameraHandlerThread.isAlive()) {
+                    Log.w(TAG, "Camera handler thread died while waiting for a job");
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Completed on the camera handler thread once the messages posted by the
+     * owning job have been handled.
+     */
+    private class CompletionFuture extends FutureTask<Void> {
+        private final Job mJob;
+        volatile Thread mWaiter;
+
+        CompletionFuture(Job job) {
+            super(NO_RESULT);
+            mJob = job;
+        }
+
+        @Override
+        protected void done() {
+            if (!isCancelled()) {
+                getMetrics().onJobCompleted(System.nanoTime() - mJob.mQueuedNs);
+            }
+            Thread waiter = mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer ring buffer. Each slot carries a
+     * sequence number telling producers and the consumer whose turn it is, so
+     * publishing and draining a slot never need a lock.
+     */
+    private static class JobQueue {
+        private final int mMask;
+        private final AtomicReferenceArray<Job> mSlots;
+        private final AtomicLongArray mSequences;
+        private final AtomicLong mTail = new AtomicLong();
+        private volatile long mHead;
+
+        JobQueue(int capacity) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Capacity must be a power of two");
+            }
+            mMask = capacity - 1;
+            mSlots = new AtomicReferenceArray<Job>(capacity);
+            mSequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                mSequences.set(i, i);
+            }
+        }
+
+        boolean offer(Job job) {
+            while (true) {
+                long tail = mTail.get();
+                int index = (int) tail & mMask;
+                long sequence = mSequences.get(index);
+                if (sequence == tail) {
+                    if (mTail.compareAndSet(tail, tail + 1)) {
+                        // Published to the consumer by the release below
+                        job.mSequence = tail;
+                        mSlots.lazySet(index, job);
+                        mSequences.set(index, tail + 1);
+                        return true;
+                    }
+                } else if (sequence < tail) {
+                    // The consumer hasn't freed this slot yet: the ring is full.
+                    return false;
+                }
+            }
+        }
+
+        /** Must only be called from the consumer thread. */
+        Job poll() {
+            long head = mHead;
+            int index = (int) head & mMask;
+            if (mSequences.get(index) != head + 1) {
+                return null;
+            }
+            Job job = mSlots.get(index);
+            mSlots.lazySet(index, null);
+            mSequences.set(index, head + mMask + 1);
+            mHead = head + 1;
+            return job;
+        }
+
+        int size() {
+            long size = mTail.get() - mHead;
+            return size < 0 ? 0 : (int) size;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Picture data lent to a {@link CameraAgent.CameraPictureBufferCallback}
+ * without being copied.
+ *
+ * <p>The data may live in memory owned by the camera pipeline, which cannot
+ * capture further pictures into it until it is handed back, so clients must
+ * call {@link #release} as soon as they are done with it, e.g. once it has
+ * been written out through a {@link java.nio.channels.FileChannel}.</p>
+ *
+ * <p>A buffer stays valid until it is released, even if the camera is
+ * reconfigured or closed in the meantime. Only a limited number of buffers
+ * can be outstanding at once; while that many are held, further pictures are
+ * delivered as copies instead.</p>
+ */
+public class PictureBuffer {
+    /** Marks a released buffer. */
+    private static final Runnable RELEASED = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final ByteBuffer mBuffer;
+    private Runnable mReleaser;
+
+    /**
+     * @param buffer The picture data.
+     * @param releaser Invoked once when the buffer is released, or
+     *                 {@code null} if there is nothing to hand back.
+     */
+    PictureBuffer(ByteBuffer buffer, Runnable releaser) {
+        mBuffer = buffer.asReadOnlyBuffer();
+        mReleaser = releaser;
+    }
+
+    /**
+     * @return A read-only view of the picture data, positioned at its start.
+     *
+     * @throws IllegalStateException If the buffer has been released.
+     */
+    public synchronized ByteBuffer getBuffer() {
+        if (isReleasedLocked()) {
+            throw new IllegalStateException("Picture buffer already released");
+        }
+        return mBuffer;
+    }
+
+    /**
+     * Hands the data back to the camera. The buffer must not be used after
+     * this. Releasing more than once has no further effect.
+     */
+    public void release() {
+        Runnable releaser;
+        synchronized (this) {
+            if (isReleasedLocked()) {
+                return;
+            }
+            releaser = mReleaser;
+            mReleaser = RELEASED;
+        }
+        if (releaser != null) {
+            releaser.run();
+        }
+    }
+
+    /**
+     * @return Whether {@link #release} has been called.
+     */
+    public synchronized boolean isReleased() {
+        return isReleasedLocked();
+    }
+
+    private boolean isReleasedLocked() {
+        return mReleaser == RELEASED;
+    }
+}
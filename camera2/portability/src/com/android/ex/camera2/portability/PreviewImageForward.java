@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+
+import com.android.ex.camera2.portability.CameraAgent.CameraPreviewDataCallback;
+import com.android.ex.camera2.portability.CameraAgent.CameraPreviewImageCallback;
+import com.android.ex.camera2.portability.CameraAgent.CameraProxy;
+import com.android.ex.camera2.portability.debug.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forwards YUV preview frames from an {@link ImageReader} to the preview
+ * callbacks of a camera2-backed {@link CameraProxy}, following the semantics
+ * of the legacy {@link android.hardware.Camera} preview callbacks.
+ *
+ * <p>At most one frame is on its way to the client at any time. Frames that
+ * arrive while the client is still busy with the previous one, or while no
+ * callback buffer is available in buffered mode, are dropped rather than
+ * queued, and counted. A callback buffer too small for a frame is removed
+ * from the pool and reported by delivering {@code null} data, as the legacy
+ * API does.</p>
+ *
+ * <p>Frames handed to an image callback belong to the reader of the
+ * {@link ImageLender} given to {@link #setLender}, which keeps that reader
+ * open until the client's handler is done with the frame.</p>
+ *
+ * <p>Everything but the delivery itself happens on the camera handler
+ * thread, which is also where {@link #onImageAvailable} must be called.</p>
+ */
+class PreviewImageForward implements ImageReader.OnImageAvailableListener {
+    private static final Log.Tag TAG = new Log.Tag("PrevImgForward");
+
+    /** Delivers a fresh copy of every frame. */
+    static final int MODE_COPY = 0;
+    /** Delivers a copy of the next frame only. */
+    static final int MODE_ONE_SHOT = 1;
+    /** Delivers frames into buffers supplied with {@link #addCallbackBuffer}. */
+    static final int MODE_WITH_BUFFER = 2;
+
+    /** A callback registration, to be handed to the camera handler. */
+    static class Target {
+        final Handler mHandler;
+        final CameraPreviewDataCallback mDataCallback;
+        final CameraPreviewImageCallback mImageCallback;
+        final int mMode;
+
+        Target(Handler handler, CameraPreviewDataCallback dataCallback, int mode) {
+            mHandler = handler;
+            mDataCallback = dataCallback;
+            mImageCallback = null;
+            mMode = mode;
+        }
+
+        Target(Handler handler, CameraPreviewImageCallback imageCallback) {
+            mHandler = handler;
+            mDataCallback = null;
+            mImageCallback = imageCallback;
+            mMode = MODE_COPY;
+        }
+    }
+
+    private final CameraProxy mCamera;
+    private final ArrayDeque<byte[]> mCallbackBuffers = new ArrayDeque<byte[]>();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private Target mTarget;
+    private ImageLender mLender;
+
+    /** Set while a frame is posted but not yet delivered; cleared by the client's thread. */
+    private volatile boolean mFrameInFlight;
+    // The frame in flight, handed over to the client's thread by posting:
+    private Target mPendingTarget;
+    private byte[] mPendingData;
+    private Image mPendingImage;
+    private Runnable mPendingImageReturn;
+
+    private final Runnable mDeliverFrame = new Runnable() {
+        @Override
+        public void run() {
+            Target target = mPendingTarget;
+            byte[] data = mPendingData;
+            Image image = mPendingImage;
+            Runnable imageReturn = mPendingImageReturn;
+            mPendingTarget = null;
+            mPendingData = null;
+            mPendingImage = null;
+            mPendingImageReturn = null;
+            try {
+                if (image != null) {
+                    target.mImageCallback.onPreviewImage(image, mCamera);
+                } else {
+                    target.mDataCallback.onPreviewFrame(data, mCamera);
+                }
+            } finally {
+                if (imageReturn != null) {
+                    imageReturn.run();
+                }
+                mFrameInFlight = false;
+            }
+        }
+    };
+
+    PreviewImageForward(CameraProxy camera) {
+        mCamera = camera;
+    }
+
+    /**
+     * Replaces the current callback, or removes it if {@code target} is
+     * {@code null} or has no callback.
+     */
+    void setTarget(Target target) {
+        if (target != null && target.mDataCallback == null && target.mImageCallback == null) {
+            target = null;
+        }
+        mTarget = target;
+    }
+
+    /**
+     * @return Whether a callback wants frames, so that the preview needs to
+     *         stream into this forwarder's reader.
+     */
+    boolean hasTarget() {
+        return mTarget != null;
+    }
+
+    /**
+     * Sets the lender of the reader frames are acquired from from now on.
+     * Frames of any other reader are recycled without being delivered.
+     */
+    void setLender(ImageLender lender) {
+        mLender = lender;
+    }
+
+    void addCallbackBuffer(byte[] buffer) {
+        if (buffer != null) {
+            mCallbackBuffers.addLast(buffer);
+        }
+    }
+
+    /**
+     * @return The number of frames dropped so far.
+     */
+    long getDroppedFrameCount() {
+        return mDroppedFrames.get();
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        Target target = mTarget;
+        ImageLender lender = mLender;
+        if (target == null || lender == null || lender.getReader() != reader) {
+            image.close();
+            return;
+        }
+        if (mFrameInFlight) {
+            mDroppedFrames.incrementAndGet();
+            image.close();
+            return;
+        }
+
+        if (target.mImageCallback != null) {
+            if (!lender.canLend()) {
+                mDroppedFrames.incrementAndGet();
+                image.close();
+                return;
+            }
+            post(target, null, image, lender.lend(image));
+            return;
+        }
+
+        byte[] data;
+        try {
+            int size = YuvConversions.getNv21Size(image.getWidth(), image.getHeight());
+            if (target.mMode == MODE_WITH_BUFFER) {
+                data = mCallbackBuffers.pollFirst();
+                if (data == null) {
+                    mDroppedFrames.incrementAndGet();
+                    return;
+                }
+                if (data.length < size) {
+                    Log.w(TAG, "Discarding callback buffer of " + data.length +
+                            " bytes, too small for " + size);
+                    mDroppedFrames.incrementAndGet();
+                    post(target, null, null, null);
+                    return;
+                }
+            } else {
+                data = new byte[size];
+            }
+            YuvConversions.copyToNv21(image, data);
+        } finally {
+            image.close();
+        }
+        if (target.mMode == MODE_ONE_SHOT) {
+            mTarget = null;
+        }
+        post(target, data, null, null);
+    }
+
+    private void post(Target target, byte[] data, Image image, Runnable imageReturn) {
+        mFrameInFlight = true;
+        mPendingTarget = target;
+        mPendingData = data;
+        mPendingImage = image;
+        mPendingImageReturn = imageReturn;
+        target.mHandler.post(mDeliverFrame);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable index over a list of supported sizes, answering the usual
+ * "best size for this aspect ratio and pixel budget" questions without
+ * scanning the whole list.
+ *
+ * <p>Sizes are grouped by their aspect ratio in lowest terms, and each group
+ * is sorted by area, so an exact-ratio query is a hash lookup followed by a
+ * binary search. Queries with a tolerance also have to visit each distinct
+ * aspect ratio, of which there are only a handful in practice. Query results
+ * are memoized.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public final class SizeIndex {
+    private static final Comparator<Size> AREA_ORDER = new Comparator<Size>() {
+        @Override
+        public int compare(Size size1, Size size2) {
+            long area1 = area(size1);
+            long area2 = area(size2);
+            if (area1 != area2) {
+                return area1 < area2 ? -1 : 1;
+            }
+            return size1.width() - size2.width();
+        }
+    };
+
+    /** Sentinel for memoized queries which found nothing. */
+    private static final Size NO_SIZE = new Size(0, 0);
+    /** Past this many distinct queries, the memo starts over. */
+    private static final int MAX_MEMOIZED_QUERIES = 64;
+
+    private static final int QUERY_LARGEST_AT_MOST = 0;
+    private static final int QUERY_SMALLEST_AT_LEAST = 1;
+    private static final int QUERY_LARGEST_NEAR_RATIO = 2;
+
+    /** By aspect ratio, as packed by {@link #ratioKey}; each sorted by ascending area. */
+    private final Map<Long, Size[]> mGroups;
+    /** For each group, the same sizes' areas, for binary searching. */
+    private final Map<Long, long[]> mGroupAreas;
+    private final Map<Query, Size> mMemo = new ConcurrentHashMap<Query, Size>();
+
+    /**
+     * @param sizes The sizes to index, in any order.
+     */
+    public SizeIndex(List<Size> sizes) {
+        Map<Long, List<Size>> groups = new HashMap<Long, List<Size>>();
+        for (Size size : sizes) {
+            if (size.width() <= 0 || size.height() <= 0) {
+                continue;
+            }
+            Long key = ratioKey(size.width(), size.height());
+            List<Size> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Size>();
+                groups.put(key, group);
+            }
+            group.add(size);
+        }
+
+        mGroups = new HashMap<Long, Size[]>(groups.size() * 2);
+        mGroupAreas = new HashMap<Long, long[]>(groups.size() * 2);
+        for (Map.Entry<Long, List<Size>> group : groups.entrySet()) {
+            Size[] sorted = group.getValue().toArray(new Size[group.getValue().size()]);
+            Arrays.sort(sorted, AREA_ORDER);
+            long[] areas = new long[sorted.length];
+            for (int i = 0; i < sorted.length; ++i) {
+                areas[i] = area(sorted[i]);
+            }
+            mGroups.put(group.getKey(), sorted);
+            mGroupAreas.put(group.getKey(), areas);
+        }
+    }
+
+    /**
+     * @param aspectRatio A size with the desired aspect ratio.
+     * @return The indexed sizes with exactly that aspect ratio, by ascending area.
+     */
+    public List<Size> getSizes(Size aspectRatio) {
+        Size[] group = mGroups.get(ratioKey(aspectRatio.width(), aspectRatio.height()));
+        if (group == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(group));
+    }
+
+    /**
+     * @param aspectRatio A size with the desired aspect ratio.
+     * @param maxArea The largest acceptable number of pixels.
+     * @return The largest size with exactly that aspect ratio and at most
+     *         {@code maxArea} pixels, or {@code null} if there is none.
+     */
+    public Size getLargest(Size aspectRatio, long maxArea) {
+        Query query = new Query(QUERY_LARGEST_AT_MOST, aspectRatio, maxArea, 0.0);
+        Size result = mMemo.get(query);
+        if (result == null) {
+            result = largestAtMost(ratioKey(aspectRatio.width(), aspectRatio.height()), maxArea);
+            memoize(query, result);
+        }
+        return result != NO_SIZE ? result : null;
+    }
+
+    /**
+     * @param aspectRatio A size with the desired aspect ratio.
+     * @param minArea The smallest acceptable number of pixels.
+     * @return The smallest size with exactly that aspect ratio and at least
+     *         {@code minArea} pixels, or {@code null} if there is none.
+     */
+    public Size getSmallest(Size aspectRatio, long minArea) {
+        Query query = new Query(QUERY_SMALLEST_AT_LEAST, aspectRatio, minArea, 0.0);
+        Size result = mMemo.get(query);
+        if (result == null) {
+            Long key = ratioKey(aspectRatio.width(), aspectRatio.height());
+            Size[] group = mGroups.get(key);
+            if (group != null) {
+                int index = ceilingIndex(mGroupAreas.get(key), minArea);
+                result = index < group.length ? group[index] : null;
+            }
+            memoize(query, result);
+        }
+        return result != NO_SIZE ? result : null;
+    }
+
+    /**
+     * @param aspectRatio A size with the desired aspect ratio.
+     * @param tolerance The largest acceptable relative difference between the
+     *                  aspect ratios, e.g. {@code 0.01} for 1%.
+     * @param maxArea The largest acceptable number of pixels.
+     * @return The largest size with about that aspect ratio and at most
+     *         {@code maxArea} pixels, or {@code null} if there is none.
+     */
+    public Size getLargest(Size aspectRatio, double tolerance, long maxArea) {
+        Query query = new Query(QUERY_LARGEST_NEAR_RATIO, aspectRatio, maxArea, tolerance);
+        Size result = mMemo.get(query);
+        if (result == null) {
+            double desired = aspectRatio.height() > 0 ?
+                    (double) aspectRatio.width() / aspectRatio.height() : Double.NaN;
+            for (Long key : mGroups.keySet()) {
+                double ratio = (double) (key >>> 32) / (key & 0xffffffffL);
+                if (!(Math.abs(ratio - desired) <= tolerance * desired)) {
+                    continue;
+                }
+                Size candidate = largestAtMost(key, maxArea);
+                if (candidate != null &&
+                        (result == null || AREA_ORDER.compare(candidate, result) > 0)) {
+                    result = candidate;
+                }
+            }
+            memoize(query, result);
+        }
+        return result != NO_SIZE ? result : null;
+    }
+
+    private void memoize(Query query, Size result) {
+        if (mMemo.size() >= MAX_MEMOIZED_QUERIES) {
+            mMemo.clear();
+        }
+        mMemo.put(query, result != null ? result : NO_SIZE);
+    }
+
+    private Size largestAtMost(Long key, long maxArea) {
+        Size[] group = mGroups.get(key);
+        if (group == null) {
+            return null;
+        }
+        int index = ceilingIndex(mGroupAreas.get(key), maxArea + 1) - 1;
+        return index >= 0 ? group[index] : null;
+    }
+
+    /**
+     * @return The index of the first area not less than {@code area}, or
+     *         {@code areas.length} if there is none.
+     */
+    private static int ceilingIndex(long[] areas, long area) {
+        int low = 0;
+        int high = areas.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (areas[mid] < area) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long area(Size size) {
+        return (long) size.width() * size.height();
+    }
+
+    /**
+     * @return The aspect ratio in lowest terms, numerator in the high word.
+     */
+    private static long ratioKey(int width, int height) {
+        int gcd = gcd(width, height);
+        if (gcd == 0) {
+            return 0;
+        }
+        return ((long) (width / gcd) << 32) | (height / gcd);
+    }
+
+    private static int gcd(int a, int b) {
+        a = Math.abs(a);
+        b = Math.abs(b);
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static final class Query {
+        private final int mKind;
+        private final long mRatio;
+        private final long mArea;
+        private final double mTolerance;
+
+        Query(int kind, Size aspectRatio, long area, double tolerance) {
+            mKind = kind;
+            mRatio = ratioKey(aspectRatio.width(), aspectRatio.height());
+            mArea = area;
+            mTolerance = tolerance;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Query)) {
+                return false;
+            }
+            Query other = (Query) o;
+            return mKind == other.mKind && mRatio == other.mRatio && mArea == other.mArea &&
+                    Double.compare(mTolerance, other.mTolerance) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(mTolerance);
+            int result = mKind;
+            result = 31 * result + (int) (mRatio ^ (mRatio >>> 32));
+            result = 31 * result + (int) (mArea ^ (mArea >>> 32));
+            result = 31 * result + (int) (bits ^ (bits >>> 32));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+
+import com.android.ex.camera2.portability.debug.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Conversions between the YUV layouts of the camera2 API and those of the
+ * legacy camera API.
+ */
+class YuvConversions {
+    private static final Log.Tag TAG = new Log.Tag("YuvConversions");
+
+    private static final int JPEG_SOI_LENGTH = 2;
+    private static final int EXIF_SEGMENT_LENGTH = 36;
+    private static final int EXIF_ORIENTATION_NORMAL = 1;
+    private static final int EXIF_ORIENTATION_ROTATE_180 = 3;
+    private static final int EXIF_ORIENTATION_ROTATE_90 = 6;
+    private static final int EXIF_ORIENTATION_ROTATE_270 = 8;
+
+    /**
+     * @return The size of an NV21 frame of the given dimensions.
+     */
+    static int getNv21Size(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Copies a {@link ImageFormat#YUV_420_888} image into a tightly packed
+     * NV21 array, honouring each plane's row and pixel strides.
+     */
+    static byte[] copyToNv21(Image image) {
+        byte[] nv21 = new byte[getNv21Size(image.getWidth(), image.getHeight())];
+        copyToNv21(image, nv21);
+        return nv21;
+    }
+
+    /**
+     * Copies a {@link ImageFormat#YUV_420_888} image into the start of a
+     * caller-supplied array, which must hold at least
+     * {@link #getNv21Size} bytes.
+     */
+    static void copyToNv21(Image image, byte[] nv21) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+
+        ByteBuffer luma = planes[0].getBuffer();
+        int lumaRowStride = planes[0].getRowStride();
+        for (int row = 0; row < height; ++row) {
+            luma.position(row * lumaRowStride);
+            luma.get(nv21, row * width, width);
+        }
+
+        // NV21 interleaves V before U.
+        ByteBuffer u = planes[1].getBuffer();
+        ByteBuffer v = planes[2].getBuffer();
+        int chromaRowStride = planes[1].getRowStride();
+        int chromaPixelStride = planes[1].getPixelStride();
+        int offset = width * height;
+        for (int row = 0; row < height / 2; ++row) {
+            for (int col = 0; col < width / 2; ++col) {
+                int index = row * chromaRowStride + col * chromaPixelStride;
+                nv21[offset++] = v.get(index);
+                nv21[offset++] = u.get(index);
+            }
+        }
+    }
+
+    /**
+     * Compresses an NV21 frame as produced by {@link #copyToNv21}.
+     *
+     * @param orientation The clockwise rotation in degrees, a multiple of 90,
+     *                    which the picture needs to be displayed upright.
+     * @return The JPEG data, whose only EXIF metadata is the orientation tag
+     *         matching {@code orientation}.
+     */
+    static byte[] compressNv21(byte[] nv21, int width, int height, int quality,
+            int orientation) {
+        YuvImage yuv = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(nv21.length / 4);
+        if (!yuv.compressToJpeg(new Rect(0, 0, width, height), quality, compressed)) {
+            Log.e(TAG, "Failed to compress zero shutter lag frame");
+            return compressed.toByteArray();
+        }
+        byte[] data = compressed.toByteArray();
+
+        // Insert an APP1 segment right after the start of image marker
+        byte[] exif = buildExifOrientationSegment(orientation);
+        byte[] jpeg = new byte[data.length + exif.length];
+        System.arraycopy(data, 0, jpeg, 0, JPEG_SOI_LENGTH);
+        System.arraycopy(exif, 0, jpeg, JPEG_SOI_LENGTH, exif.length);
+        System.arraycopy(data, JPEG_SOI_LENGTH, jpeg, JPEG_SOI_LENGTH + exif.length,
+                data.length - JPEG_SOI_LENGTH);
+        return jpeg;
+    }
+
+    /**
+     * @return A big-endian EXIF APP1 segment whose IFD0 holds nothing but the
+     *         orientation tag.
+     */
+    private static byte[] buildExifOrientationSegment(int orientation) {
+        final int exifOrientation;
+        switch ((orientation % 360 + 360) % 360) {
+            case 90:
+                exifOrientation = EXIF_ORIENTATION_ROTATE_90;
+                break;
+            case 180:
+                exifOrientation = EXIF_ORIENTATION_ROTATE_180;
+                break;
+            case 270:
+                exifOrientation = EXIF_ORIENTATION_ROTATE_270;
+                break;
+            default:
+                exifOrientation = EXIF_ORIENTATION_NORMAL;
+                break;
+        }
+
+        ByteBuffer segment = ByteBuffer.allocate(EXIF_SEGMENT_LENGTH).order(ByteOrder.BIG_ENDIAN);
+        segment.putShort((short) 0xffe1);                       // APP1 marker
+        segment.putShort((short) (EXIF_SEGMENT_LENGTH - 2));    // Length, excluding the marker
+        segment.put(new byte[] { 'E', 'x', 'i', 'f', 0, 0 });
+        segment.put(new byte[] { 'M', 'M' });                   // TIFF header
+        segment.putShort((short) 42);
+        segment.putInt(8);                                      // Offset of IFD0
+        segment.putShort((short) 1);                            // IFD0 entry count
+        segment.putShort((short) 0x0112);                       // Orientation tag
+        segment.putShort((short) 3);                            // SHORT
+        segment.putInt(1);                                      // Value count
+        segment.putShort((short) exifOrientation);
+        segment.putShort((short) 0);                            // Value padding
+        segment.putInt(0);                                      // No further IFD
+        return segment.array();
+    }
+
+    private YuvConversions() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A ring of the most recent preview-sized YUV frames, each paired
+ * with the {@link TotalCaptureResult} describing it, from which a picture can
+ * be taken without waiting for a new capture.
+ *
+ * <p>Images and results arrive independently and are matched by sensor
+ * timestamp. Not thread-safe: it is meant to be fed and drained on the camera
+ * handler thread.</p>
+ */
+class ZslRingBuffer {
+    /** A matched image and capture result. The caller must close the image. */
+    static class Frame {
+        final Image mImage;
+        final TotalCaptureResult mResult;
+
+        Frame(Image image, TotalCaptureResult result) {
+            mImage = image;
+            mResult = result;
+        }
+    }
+
+    private final int mCapacity;
+    /** Oldest first. */
+    private final ArrayDeque<Image> mImages;
+    /** Oldest first. */
+    private final ArrayDeque<TotalCaptureResult> mResults;
+
+    /**
+     * @param capacity The number of images to retain. The {@link
+     *                 android.media.ImageReader} feeding the ring must allow
+     *                 at least one more image than this to be acquired.
+     */
+    ZslRingBuffer(int capacity) {
+        mCapacity = capacity;
+        mImages = new ArrayDeque<Image>(capacity);
+        // Results may run somewhat ahead of, or behind, their images.
+        mResults = new ArrayDeque<TotalCaptureResult>(2 * capacity);
+    }
+
+    /**
+     * Takes ownership of an image, closing the oldest retained one if the
+     * ring is full.
+     */
+    void addImage(Image image) {
+        if (mImages.size() == mCapacity) {
+            mImages.pollFirst().close();
+        }
+        mImages.addLast(image);
+    }
+
+    void addResult(TotalCaptureResult result) {
+        if (mResults.size() == 2 * mCapacity) {
+            mResults.pollFirst();
+        }
+        mResults.addLast(result);
+    }
+
+    /**
+     * Removes and returns the newest frame which has a matching result and
+     * was captured with settled exposure and focus, so that it makes a good
+     * picture. Frames older than it are discarded, since they are no longer
+     * useful for zero shutter lag. Newer frames, which were only skipped
+     * because their results haven't arrived yet, are kept.
+     *
+     * @return The frame, or {@code null} if there is none.
+     */
+    Frame takeNewestUsable() {
+        Iterator<Image> images = mImages.descendingIterator();
+        while (images.hasNext()) {
+            Image image = images.next();
+            TotalCaptureResult result = findResult(image.getTimestamp());
+            if (result != null && isUsable(result)) {
+                images.remove();
+                discardOlderThan(image.getTimestamp());
+                return new Frame(image, result);
+            }
+        }
+        return null;
+    }
+
+    private void discardOlderThan(long timestamp) {
+        while (!mImages.isEmpty() && mImages.peekFirst().getTimestamp() < timestamp) {
+            mImages.pollFirst().close();
+        }
+        while (!mResults.isEmpty()) {
+            Long resultTimestamp = mResults.peekFirst().get(CaptureResult.SENSOR_TIMESTAMP);
+            if (resultTimestamp != null && resultTimestamp > timestamp) {
+                break;
+            }
+            mResults.pollFirst();
+        }
+    }
+
+    private TotalCaptureResult findResult(long timestamp) {
+        Iterator<TotalCaptureResult> results = mResults.descendingIterator();
+        while (results.hasNext()) {
+            TotalCaptureResult result = results.next();
+            Long resultTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (resultTimestamp != null && resultTimestamp == timestamp) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isUsable(TotalCaptureResult result) {
+        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        if (aeState != null && aeState != CaptureResult.CONTROL_AE_STATE_CONVERGED &&
+                aeState != CaptureResult.CONTROL_AE_STATE_LOCKED) {
+            return false;
+        }
+        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+        return afState == null || (afState != CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN &&
+                afState != CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN);
+    }
+
+    /**
+     * Closes all retained images and forgets all results.
+     */
+    void clear() {
+        for (Image image : mImages) {
+            image.close();
+        }
+        mImages.clear();
+        mResults.clear();
+    }
+}
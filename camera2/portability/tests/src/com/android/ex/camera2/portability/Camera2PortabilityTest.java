@@ -18,10 +18,12 @@ package com.android.ex.camera2.portability;
 
 import static android.hardware.camera2.CaptureRequest.*;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import android.content.Context;
 import android.graphics.Rect;
+import android.hardware.Camera;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
@@ -34,10 +36,14 @@ import com.android.ex.camera2.portability.CameraCapabilities.SceneMode;
 import com.android.ex.camera2.portability.CameraCapabilities.Stringifier;
 import com.android.ex.camera2.portability.CameraCapabilities.WhiteBalance;
 import com.android.ex.camera2.utils.Camera2DeviceTester;
+import com.android.ex.camera2.utils.Camera2RequestSettingsSet;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
+import java.util.Arrays;
 
 public class Camera2PortabilityTest extends Camera2DeviceTester {
     /**
@@ -234,4 +240,83 @@ public class Camera2PortabilityTest extends Camera2DeviceTester {
         assertEquals(intstr.whiteBalanceFromInt(CONTROL_AWB_MODE_WARM_FLUORESCENT),
                 WhiteBalance.WARM_FLUORESCENT);
     }
+
+    /**
+     * Ensure that {@link CapabilitiesCache} restores the capabilities and
+     * device facts it saved, and ignores a file written by another build.
+     */
+    @Test
+    public void capabilitiesCacheRoundTrip() throws IOException {
+        CameraCapabilities caps = new CameraCapabilities(new Stringifier()) {{
+            mSupportedPreviewSizes.add(new Size(640, 480));
+            mSupportedPreviewFpsRange.add(new int[] { 15000, 30000 });
+            mSupportedFlashModes.add(FlashMode.AUTO);
+            mMaxZoomRatio = 4.0f;
+        }};
+        File file = File.createTempFile("capabilities", null);
+        file.delete();
+        try {
+            CapabilitiesCache cache = new CapabilitiesCache(file, "build");
+            cache.put("2:0", new CapabilitiesCache.Entry(1, 90, true, caps));
+            cache.save();
+
+            CapabilitiesCache.Entry entry = new CapabilitiesCache(file, "build").get("2:0");
+            assertEquals(90, entry.mSensorOrientation);
+            CameraCapabilities restored =
+                    new CameraCapabilities(new Stringifier(), entry.openCapabilities());
+            assertEquals(caps.getSupportedPreviewSizes(), restored.getSupportedPreviewSizes());
+            assertEquals(caps.getSupportedFlashModes(), restored.getSupportedFlashModes());
+            assertEquals(30000, restored.getSupportedPreviewFpsRange().get(0)[1]);
+            assertEquals(caps.getMaxZoomRatio(), restored.getMaxZoomRatio(), 0.0f);
+
+            assertEquals(null, new CapabilitiesCache(file, "other build").get("2:0"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Ensure that {@link SizeIndex} picks sizes by exact and approximate
+     * aspect ratio within the given pixel budgets.
+     */
+    @Test
+    public void sizeIndexQueries() {
+        SizeIndex index = new SizeIndex(Arrays.asList(new Size(1920, 1080), new Size(1280, 720),
+                new Size(640, 480), new Size(1440, 1080), new Size(1920, 1088)));
+        assertEquals(new Size(1280, 720), index.getLargest(new Size(16, 9), 1000000));
+        assertEquals(new Size(1920, 1080), index.getLargest(new Size(3840, 2160), 3000000));
+        assertEquals(null, index.getLargest(new Size(16, 9), 100000));
+        assertEquals(new Size(1440, 1080), index.getSmallest(new Size(4, 3), 500000));
+        assertEquals(new Size(1920, 1088), index.getLargest(new Size(16, 9), 0.01, 3000000));
+        assertEquals(Arrays.asList(new Size(640, 480), new Size(1440, 1080)),
+                index.getSizes(new Size(4, 3)));
+    }
+
+    @Test
+    public void camera2SettingsSnapshotIsolation() throws CameraAccessException {
+        AndroidCamera2Settings set = new AndroidCamera2Settings(
+                mCamera, CameraDevice.TEMPLATE_PREVIEW, /*activeArray*/new Rect(0, 0, 640, 480),
+                /*previewSize*/new Size(640, 480), /*photoSize*/new Size(640, 480));
+        set.setFocusMode(FocusMode.AUTO);
+        set.setZoomRatio(2.0f);
+        CameraSettings.Snapshot snapshot = set.snapshot();
+
+        set.setFocusMode(FocusMode.MACRO);
+        set.setZoomRatio(4.0f);
+        assertEquals(FocusMode.AUTO, snapshot.getCurrentFocusMode());
+        assertEquals(2.0f, snapshot.getCurrentZoomRatio(), 0.0f);
+        Camera2RequestSettingsSet frozen =
+                ((AndroidCamera2Settings) snapshot.getSettings()).getRequestSettings();
+        long revision = frozen.getRevision();
+        assertSame(frozen, ((AndroidCamera2Settings) snapshot.getSettings()).getRequestSettings());
+        assertEquals(revision, frozen.getRevision());
+        assertEquals((Integer) CONTROL_AF_MODE_AUTO, frozen.get(CONTROL_AF_MODE));
+
+        CameraSettings edited = snapshot.edit();
+        edited.setFocusAreas(Arrays.asList(new Camera.Area(new Rect(-100, -100, 100, 100), 1)));
+        assertEquals(0, snapshot.getFocusAreas().size());
+        assertEquals(1, edited.getFocusAreas().size());
+        camera2SettingsCheckSingleOption((AndroidCamera2Settings) edited,
+                CONTROL_AF_MODE, CONTROL_AF_MODE_AUTO);
+    }
 }
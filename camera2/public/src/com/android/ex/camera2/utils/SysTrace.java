@@ -15,8 +15,15 @@
  */
 package com.android.ex.camera2.utils;
 
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.Log;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
 /**
  * Writes trace events to the system trace buffer.  These trace events can be
  * collected and visualized using the Systrace tool.
@@ -30,14 +37,38 @@ import android.util.Log;
  * <p>
  * All traces are written using the <pre>APP</pre> tag.
  * </p>
+ *
+ * <p>
+ * Events can additionally be captured in memory between
+ * {@link #startRecording} and {@link #stopRecording}, and exported in the
+ * Chrome trace event JSON format understood by {@code chrome://tracing} and
+ * Perfetto with {@link #writeChromeTrace}.
+ * </p>
  */
 public final class SysTrace {
 
     private static final String TAG = "SysTrace";
     private static final boolean VERBOSE = Log.isLoggable(TAG, Log.VERBOSE);
 
+    private static final char PHASE_BEGIN = 'B';
+    private static final char PHASE_END = 'E';
+    private static final char PHASE_ASYNC_BEGIN = 'b';
+    private static final char PHASE_ASYNC_END = 'e';
+    private static final char PHASE_COUNTER = 'C';
+
     private static int sNestingLevel = 0;
 
+    /** Guards the recording buffer below. */
+    private static final Object sRecordingLock = new Object();
+    private static volatile boolean sRecording = false;
+    private static char[] sPhases;
+    private static String[] sNames;
+    private static long[] sTimestampsUs;
+    private static long[] sThreadIds;
+    private static long[] sValues;
+    private static int sRecordedCount;
+    private static int sDroppedCount;
+
     /**
      * Writes trace message to indicate the value of a given counter.
      *
@@ -49,6 +80,7 @@ public final class SysTrace {
         if (VERBOSE) {
             Log.v(TAG, "traceCounter " + counterName + " " + counterValue);
         }
+        record(PHASE_COUNTER, counterName, counterValue);
     }
 
     /**
@@ -67,6 +99,8 @@ public final class SysTrace {
             Log.v(TAG, String.format("beginSection[%d] %s", sNestingLevel, sectionName));
             sNestingLevel++;
         }
+        Trace.beginSection(sectionName);
+        record(PHASE_BEGIN, sectionName, 0);
     }
 
     /**
@@ -85,6 +119,8 @@ public final class SysTrace {
             sNestingLevel--;
             Log.v(TAG, String.format("endSection[%d]", sNestingLevel));
         }
+        Trace.endSection();
+        record(PHASE_END, null, 0);
     }
 
     /**
@@ -103,6 +139,7 @@ public final class SysTrace {
         if (VERBOSE) {
             Log.v(TAG, "beginSectionAsync " + methodName + " " + cookie);
         }
+        record(PHASE_ASYNC_BEGIN, methodName, cookie);
     }
 
     /**
@@ -117,5 +154,152 @@ public final class SysTrace {
         if (VERBOSE) {
             Log.v(TAG, "endSectionAsync " + methodName + " " + cookie);
         }
+        record(PHASE_ASYNC_END, methodName, cookie);
+    }
+
+    /**
+     * Starts capturing trace events in memory, discarding anything captured
+     * before. Once the buffer is full, further events are dropped.
+     *
+     * @param maxEvents The capacity of the buffer.
+     */
+    public static void startRecording(int maxEvents) {
+        if (maxEvents <= 0) {
+            throw new IllegalArgumentException("maxEvents must be positive");
+        }
+        synchronized (sRecordingLock) {
+            sPhases = new char[maxEvents];
+            sNames = new String[maxEvents];
+            sTimestampsUs = new long[maxEvents];
+            sThreadIds = new long[maxEvents];
+            sValues = new long[maxEvents];
+            sRecordedCount = 0;
+            sDroppedCount = 0;
+            sRecording = true;
+        }
+    }
+
+    /**
+     * Stops capturing trace events. Events captured so far are kept until
+     * the next {@link #startRecording}.
+     */
+    public static void stopRecording() {
+        sRecording = false;
+    }
+
+    /**
+     * @return Whether trace events are being captured in memory.
+     */
+    public static boolean isRecording() {
+        return sRecording;
+    }
+
+    /**
+     * @return The number of events that did not fit in the recording buffer.
+     */
+    public static int getDroppedEventCount() {
+        synchronized (sRecordingLock) {
+            return sDroppedCount;
+        }
+    }
+
+    private static void record(char phase, String name, long value) {
+        if (!sRecording) {
+            return;
+        }
+        long timestampUs = SystemClock.elapsedRealtimeNanos() / 1000;
+        long threadId = Thread.currentThread().getId();
+        synchronized (sRecordingLock) {
+            if (!sRecording) {
+                return;
+            }
+            if (sRecordedCount == sPhases.length) {
+                sDroppedCount++;
+                return;
+            }
+            int i = sRecordedCount++;
+            sPhases[i] = phase;
+            sNames[i] = name;
+            sTimestampsUs[i] = timestampUs;
+            sThreadIds[i] = threadId;
+            sValues[i] = value;
+        }
+    }
+
+    /**
+     * Writes the events captured by the last recording as a Chrome trace
+     * event JSON document.
+     *
+     * @param out The writer to write to. It is not closed.
+     * @throws IOException If writing fails.
+     */
+    public static void writeChromeTrace(Writer out) throws IOException {
+        int pid = Process.myPid();
+        out.write("{\"traceEvents\":[");
+        synchronized (sRecordingLock) {
+            for (int i = 0; i < sRecordedCount; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write("{\"ph\":\"");
+                out.write(sPhases[i]);
+                out.write("\",\"ts\":");
+                out.write(Long.toString(sTimestampsUs[i]));
+                out.write(",\"pid\":");
+                out.write(Integer.toString(pid));
+                out.write(",\"tid\":");
+                out.write(Long.toString(sThreadIds[i]));
+                if (sNames[i] != null) {
+                    out.write(",\"name\":");
+                    writeJsonString(out, sNames[i]);
+                }
+                switch (sPhases[i]) {
+                    case PHASE_ASYNC_BEGIN:
+                    case PHASE_ASYNC_END:
+                        out.write(",\"cat\":\"async\",\"id\":");
+                        out.write(Long.toString(sValues[i]));
+                        break;
+                    case PHASE_COUNTER:
+                        out.write(",\"args\":{\"value\":");
+                        out.write(Long.toString(sValues[i]));
+                        out.write('}');
+                        break;
+                }
+                out.write('}');
+            }
+        }
+        out.write("],\"displayTimeUnit\":\"ms\"}");
+    }
+
+    /**
+     * @return The events captured by the last recording as a Chrome trace
+     *         event JSON document.
+     * @see #writeChromeTrace
+     */
+    public static String getChromeTrace() {
+        StringWriter out = new StringWriter();
+        try {
+            writeChromeTrace(out);
+        } catch (IOException e) {
+            // StringWriter does not throw.
+            throw new AssertionError(e);
+        }
+        return out.toString();
+    }
+
+    private static void writeJsonString(Writer out, String s) throws IOException {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
     }
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.utils;
+
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureRequest.Builder;
+import android.hardware.camera2.CaptureRequest.Key;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A {@link Camera2RequestSettingsSet} which remembers the revision at which
+ * each individual setting last changed.
+ *
+ * <p>This makes it possible to tell which settings changed since a past
+ * revision, and to bring an existing {@link CaptureRequest.Builder} up to
+ * date by setting only those. Unlike the base class, {@link #union} leaves
+ * the revision untouched when the argument does not change any setting, so
+ * merging the same settings again does not defeat revision-based caching.
+ * Values are compared with {@link Objects#deepEquals}, so array-valued
+ * settings such as metering regions are compared by content.</p>
+ */
+public class Camera2DeltaRequestSettingsSet extends Camera2RequestSettingsSet {
+    /**
+     * The revision at which each setting was last set or unset. Settings
+     * that have been unset keep their entry so that the removal shows up in
+     * {@link #getChangedKeys}.
+     */
+    private final Map<Key<?>, Long> mKeyRevisions;
+
+    /**
+     * Create a new instance with no settings defined.
+     */
+    public Camera2DeltaRequestSettingsSet() {
+        super();
+        mKeyRevisions = new HashMap<>();
+    }
+
+    /**
+     * Perform a deep copy of the defined settings and revision number. If
+     * {@code other} does not track the revisions of individual settings, all
+     * of them are considered to have changed at its current revision.
+     *
+     * @param other The reference instance.
+     *
+     * @throws NullPointerException If {@code other} is {@code null}.
+     */
+    public Camera2DeltaRequestSettingsSet(Camera2RequestSettingsSet other) {
+        super(other);
+        if (other instanceof Camera2DeltaRequestSettingsSet) {
+            mKeyRevisions = new HashMap<>(((Camera2DeltaRequestSettingsSet) other).mKeyRevisions);
+        } else {
+            mKeyRevisions = new HashMap<>();
+            for (Key<?> key : other.getDefinedSettings().keySet()) {
+                mKeyRevisions.put(key, other.getRevision());
+            }
+        }
+    }
+
+    @Override
+    public <T> boolean set(Key<T> key, T value) {
+        if (contains(key) && Objects.deepEquals(get(key), value)) {
+            return false;
+        }
+        if (super.set(key, value)) {
+            mKeyRevisions.put(key, getRevision());
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean unset(Key<?> key) {
+        if (super.unset(key)) {
+            mKeyRevisions.put(key, getRevision());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add all settings choices defined by {@code moreSettings} to this object.
+     *
+     * <p>This has the same effect on the settings as
+     * {@link Camera2RequestSettingsSet#union}, but only the settings whose
+     * values actually change are recorded as modified, and the revision is
+     * left untouched if there are none.</p>
+     *
+     * @param moreSettings The source of the additional settings ({@code null}
+     *                     is allowed here).
+     * @return Whether any setting was updated.
+     */
+    @Override
+    public boolean union(Camera2RequestSettingsSet moreSettings) {
+        if (moreSettings == null || moreSettings == this) {
+            return false;
+        }
+
+        boolean changed = false;
+        for (Map.Entry<Key<?>, Object> entry : moreSettings.getDefinedSettings().entrySet()) {
+            changed |= setUnchecked(entry.getKey(), entry.getValue());
+        }
+        return changed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> boolean setUnchecked(Key<T> key, Object value) {
+        return set(key, (T) value);
+    }
+
+    /**
+     * @param key Which setting to check.
+     * @return The revision at which that setting was last set or unset, or
+     *         {@code 0} if it never was.
+     *
+     * @throws NullPointerException If {@code key} is {@code null}.
+     */
+    public long getRevision(Key<?> key) {
+        if (key == null) {
+            throw new NullPointerException("Received a null key");
+        }
+        Long revision = mKeyRevisions.get(key);
+        return revision != null ? revision : 0;
+    }
+
+    /**
+     * @param sinceRevision A revision previously returned by
+     *                      {@link #getRevision()}.
+     * @return The settings set or unset after that revision.
+     */
+    public Set<Key<?>> getChangedKeys(long sinceRevision) {
+        Set<Key<?>> changed = new HashSet<>();
+        for (Map.Entry<Key<?>, Long> entry : mKeyRevisions.entrySet()) {
+            if (entry.getValue() > sinceRevision) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Compute the settings in which this set and another one differ.
+     *
+     * <p>A setting differs if it is defined in only one of the sets, or has
+     * different values in the two, so that a setting forced to default in one
+     * set and unset in the other is considered different.</p>
+     *
+     * @param other The set to compare against.
+     * @return The differing settings.
+     *
+     * @throws NullPointerException If {@code other} is {@code null}.
+     */
+    public Set<Key<?>> diff(Camera2RequestSettingsSet other) {
+        if (other == null) {
+            throw new NullPointerException("Tried to diff against null Camera2RequestSettingsSet");
+        }
+
+        Map<Key<?>, Object> ours = getDefinedSettings();
+        Map<Key<?>, Object> theirs = other.getDefinedSettings();
+        Set<Key<?>> differing = new HashSet<>();
+        for (Map.Entry<Key<?>, Object> entry : ours.entrySet()) {
+            Key<?> key = entry.getKey();
+            if (!theirs.containsKey(key) ||
+                    !Objects.deepEquals(entry.getValue(), theirs.get(key))) {
+                differing.add(key);
+            }
+        }
+        for (Key<?> key : theirs.keySet()) {
+            if (!ours.containsKey(key)) {
+                differing.add(key);
+            }
+        }
+        return differing;
+    }
+
+    /**
+     * Bring a builder that reflected this set at a past revision up to date,
+     * setting only the settings changed since then.
+     *
+     * <p>A builder cannot be told to go back to its template's default for a
+     * setting, so if any setting changed since {@code sinceRevision} was unset
+     * or forced to default, nothing is applied and the caller must build a
+     * fresh request instead, e.g. with {@link #createRequest}.</p>
+     *
+     * @param builder The builder to update.
+     * @param sinceRevision The revision of this set the builder reflects.
+     * @return Whether the builder was brought up to date.
+     *
+     * @throws NullPointerException If {@code builder} is {@code null}.
+     */
+    public boolean applyChanges(Builder builder, long sinceRevision) {
+        if (builder == null) {
+            throw new NullPointerException("Tried to apply changes to null Builder");
+        }
+
+        Set<Key<?>> changed = getChangedKeys(sinceRevision);
+        for (Key<?> key : changed) {
+            if (get(key) == null) {
+                return false;
+            }
+        }
+        for (Key<?> key : changed) {
+            applyTo(builder, key);
+        }
+        return true;
+    }
+
+    private <T> void applyTo(Builder builder, Key<T> key) {
+        builder.set(key, get(key));
+    }
+}
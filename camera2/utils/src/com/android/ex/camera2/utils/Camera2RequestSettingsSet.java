@@ -23,16 +23,53 @@ import android.hardware.camera2.CaptureRequest.Builder;
 import android.hardware.camera2.CaptureRequest.Key;
 import android.view.Surface;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
 /**
  * A set of settings to be used when filing a {@link CaptureRequest}.
+ *
+ * <p>Requests are memoized: asking for the same template and targets again
+ * without modifying the settings in between returns the request built the
+ * first time, rather than building an identical one. Remembered requests
+ * keep their camera and target surfaces reachable, so owners should call
+ * {@link #clearCachedRequests} once those are torn down.</p>
  */
 public class Camera2RequestSettingsSet {
+    /** How many distinct template/target combinations to remember. */
+    private static final int MAX_CACHED_REQUESTS = 4;
+
+    private static class CachedRequest {
+        final long mRevision;
+        final CameraDevice mCamera;
+        final int mTemplate;
+        final Surface[] mTargets;
+        final CaptureRequest mRequest;
+
+        CachedRequest(long revision, CameraDevice camera, int template, Surface[] targets,
+                CaptureRequest request) {
+            mRevision = revision;
+            mCamera = camera;
+            mTemplate = template;
+            mTargets = targets;
+            mRequest = request;
+        }
+
+        boolean matches(long revision, CameraDevice camera, int template, Surface[] targets) {
+            return mRevision == revision && mCamera == camera && mTemplate == template &&
+                    Arrays.equals(mTargets, targets);
+        }
+    }
+
     private final Map<Key<?>, Object> mDictionary;
     private long mRevision;
+    /** Most recently used first; never copied between instances. */
+    private final List<CachedRequest> mCachedRequests = new ArrayList<>(MAX_CACHED_REQUESTS);
 
     /**
      * Create a new instance with no settings defined.
@@ -89,7 +126,7 @@ public class Camera2RequestSettingsSet {
         // Only save the value if it's different from the one we already have
         if (!mDictionary.containsKey(key) || !Objects.equals(value, currentValue)) {
             mDictionary.put(key, value);
-            ++mRevision;
+            onModified();
             return true;
         }
         return false;
@@ -115,7 +152,7 @@ public class Camera2RequestSettingsSet {
 
         if (mDictionary.containsKey(key)) {
             mDictionary.remove(key);
-            ++mRevision;
+            onModified();
             return true;
         }
         return false;
@@ -208,14 +245,41 @@ public class Camera2RequestSettingsSet {
         }
 
         mDictionary.putAll(moreSettings.mDictionary);
-        ++mRevision;
+        onModified();
         return true;
     }
 
+    /**
+     * @return A read-only view of the settings defined in this set, including
+     *         those forced to default, which map to {@code null}.
+     */
+    Map<Key<?>, Object> getDefinedSettings() {
+        return Collections.unmodifiableMap(mDictionary);
+    }
+
+    /**
+     * Forgets every memoized request, along with the camera and surfaces it
+     * references, without changing the settings or their revision. Call this
+     * when the camera device or the target surfaces are torn down.
+     */
+    public void clearCachedRequests() {
+        mCachedRequests.clear();
+    }
+
+    private void onModified() {
+        ++mRevision;
+        // Requests built from the previous revision can never be returned again.
+        mCachedRequests.clear();
+    }
+
     /**
      * Create a {@link CaptureRequest} specialized for the specified
      * {@link CameraDevice} and targeting the given {@link Surface}s.
      *
+     * <p>If a request was already created for the same camera, template and
+     * targets at the current {@link #getRevision revision}, that same request
+     * is returned.</p>
+     *
      * @param camera The camera from which to capture.
      * @param template A {@link CaptureRequest} template defined in
      *                 {@link CameraDevice}.
@@ -231,6 +295,17 @@ public class Camera2RequestSettingsSet {
             throw new NullPointerException("Tried to create request using null CameraDevice");
         }
 
+        for (int i = 0; i < mCachedRequests.size(); ++i) {
+            CachedRequest cached = mCachedRequests.get(i);
+            if (cached.matches(mRevision, camera, template, targets)) {
+                if (i > 0) {
+                    mCachedRequests.remove(i);
+                    mCachedRequests.add(0, cached);
+                }
+                return cached.mRequest;
+            }
+        }
+
         Builder reqBuilder = camera.createCaptureRequest(template);
         for (Key<?> key : mDictionary.keySet()) {
             setRequestFieldIfNonNull(reqBuilder, key);
@@ -241,7 +316,14 @@ public class Camera2RequestSettingsSet {
             }
             reqBuilder.addTarget(target);
         }
-        return reqBuilder.build();
+        CaptureRequest request = reqBuilder.build();
+
+        if (mCachedRequests.size() == MAX_CACHED_REQUESTS) {
+            mCachedRequests.remove(MAX_CACHED_REQUESTS - 1);
+        }
+        mCachedRequests.add(0,
+                new CachedRequest(mRevision, camera, template, targets.clone(), request));
+        return request;
     }
 
     private <T> void setRequestFieldIfNonNull(Builder requestBuilder, Key<T> key) {
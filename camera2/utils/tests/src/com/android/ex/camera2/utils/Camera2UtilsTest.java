@@ -19,6 +19,7 @@ package com.android.ex.camera2.utils;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -362,6 +363,40 @@ public class Camera2UtilsTest extends Camera2DeviceTester {
                 r4.get(CaptureRequest.CONTROL_CAPTURE_INTENT));
     }
 
+    @Test
+    public void requestSettingsSetRequestsReusedUntilModified() throws Exception {
+        Camera2RequestSettingsSet s = new Camera2RequestSettingsSet();
+        CaptureRequest r1 = s.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+        assertSame(r1, s.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW));
+
+        CaptureRequest still = s.createRequest(mCamera, CameraDevice.TEMPLATE_STILL_CAPTURE);
+        assertNotSame(r1, still);
+        assertSame(r1, s.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW));
+
+        requestSettingsSetAndForget(s, CaptureRequest.CONTROL_CAPTURE_INTENT,
+                CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE);
+        CaptureRequest r2 = s.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+        assertNotSame(r1, r2);
+        assertEquals((Object) CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE,
+                r2.get(CaptureRequest.CONTROL_CAPTURE_INTENT));
+    }
+
+    @Test
+    public void requestSettingsSetClearingCacheKeepsSettings() throws Exception {
+        Camera2RequestSettingsSet s = new Camera2RequestSettingsSet();
+        requestSettingsSetAndForget(s, CaptureRequest.CONTROL_CAPTURE_INTENT,
+                CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE);
+        long revision = s.getRevision();
+        CaptureRequest r1 = s.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+
+        s.clearCachedRequests();
+        CaptureRequest r2 = s.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+        assertNotSame(r1, r2);
+        assertEquals(revision, s.getRevision());
+        assertEquals((Object) CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE,
+                r2.get(CaptureRequest.CONTROL_CAPTURE_INTENT));
+    }
+
     @Test
     public void requestSettingsSetNullPreservedByUnions() {
         Camera2RequestSettingsSet master = new Camera2RequestSettingsSet();
@@ -408,6 +443,34 @@ public class Camera2UtilsTest extends Camera2DeviceTester {
         assertEquals(0, sets[1].getRevision());
     }
 
+    @Test
+    public void deltaRequestSettingsSetUnionOnlyRecordsChanges() {
+        Camera2DeltaRequestSettingsSet master = new Camera2DeltaRequestSettingsSet();
+        Camera2RequestSettingsSet slave = new Camera2RequestSettingsSet();
+        requestSettingsSetAndForget(slave, CaptureRequest.CONTROL_AE_LOCK, true);
+        requestSettingsSetAndForget(slave, CaptureRequest.SENSOR_TEST_PATTERN_DATA,
+                new int[] {1});
+
+        assertTrue(master.union(slave));
+        long revision = master.getRevision();
+        assertFalse(master.union(slave));
+        assertFalse(master.union(new Camera2RequestSettingsSet(slave)));
+        assertEquals(revision, master.getRevision());
+        assertTrue(master.diff(slave).isEmpty());
+
+        requestSettingsSetAndForget(slave, CaptureRequest.CONTROL_AE_LOCK, false);
+        assertEquals(1, master.diff(slave).size());
+        assertTrue(master.union(slave));
+        assertEquals(1, master.getChangedKeys(revision).size());
+        assertTrue(master.getChangedKeys(revision).contains(CaptureRequest.CONTROL_AE_LOCK));
+        assertEquals(master.getRevision(), master.getRevision(CaptureRequest.CONTROL_AE_LOCK));
+
+        revision = master.getRevision();
+        master.unset(CaptureRequest.SENSOR_TEST_PATTERN_DATA);
+        assertTrue(master.getChangedKeys(revision).contains(
+                CaptureRequest.SENSOR_TEST_PATTERN_DATA));
+    }
+
     private <T> void requestSettingsSetsCheckPairOfProperties(Camera2RequestSettingsSet firstSet,
                                                               Camera2RequestSettingsSet secondSet,
                                                               Key<T> firstKey,
@@ -21,7 +21,7 @@ include $(CLEAR_VARS)
 
 LOCAL_STATIC_LIBRARIES = libgif
 
-LOCAL_LDFLAGS := -llog -ljnigraphics
+LOCAL_LDFLAGS := -llog -ljnigraphics -landroid
 
 LOCAL_C_INCLUDES := \
 	external/giflib
@@ -40,11 +40,16 @@ ifeq ($(FRAMESEQUENCE_INCLUDE_WEBP),true)
 	LOCAL_C_INCLUDES += external/webp/include
 	LOCAL_SRC_FILES += FrameSequence_webp.cpp
 	LOCAL_STATIC_LIBRARIES += libwebp-decode
+ifeq ($(FRAMESEQUENCE_INCLUDE_WEBP_ENCODER),true)
+	LOCAL_SRC_FILES += WebPTranscoder.cpp
+	LOCAL_STATIC_LIBRARIES += libwebp-encode libwebpmux
+	LOCAL_CFLAGS += -DRASTERMILL_WEBP_ENCODER
+endif
 endif
 
 LOCAL_CFLAGS += -Wall -Wno-unused-parameter -Wno-unused-variable -Wno-overloaded-virtual
 LOCAL_CFLAGS += -fvisibility=hidden
 
-LOCAL_SDK_VERSION := 8
+LOCAL_SDK_VERSION := 9
 
 include $(BUILD_SHARED_LIBRARY)
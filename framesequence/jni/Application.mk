@@ -1,4 +1,4 @@
-APP_PLATFORM := android-8
+APP_PLATFORM := android-9
 APP_ABI := armeabi-v7a
 LOCAL_ARM_NEON=true
 ARCH_ARM_HAVE_NEON=true
@@ -15,12 +15,18 @@
  */
 
 #include <android/bitmap.h>
+#include <android/native_window_jni.h>
+#include <string.h>
 #include "JNIHelpers.h"
 #include "utils/log.h"
 #include "FrameSequence.h"
 
 #include "FrameSequenceJNI.h"
 
+#ifdef RASTERMILL_WEBP_ENCODER
+#include "WebPTranscoder.h"
+#endif
+
 #define JNI_PACKAGE "android/support/rastermill"
 
 static struct {
@@ -91,6 +97,30 @@ static void nativeDestroyFrameSequence(JNIEnv* env, jobject clazz,
     delete frameSequence;
 }
 
+static jbyteArray nativeEncodeWebP(JNIEnv* env, jobject clazz, jlong frameSequenceLong,
+        jboolean lossless, jfloat quality) {
+#ifdef RASTERMILL_WEBP_ENCODER
+    FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
+    WebPData webpData;
+    WebPDataInit(&webpData);
+    if (!transcodeToWebP(*frameSequence, lossless, quality, &webpData)) {
+        jniThrowException(env, ILLEGAL_STATE_EXEPTION, "couldn't encode WebP");
+        return NULL;
+    }
+    jbyteArray result = env->NewByteArray(webpData.size);
+    if (result != NULL) {
+        env->SetByteArrayRegion(result, 0, webpData.size,
+                reinterpret_cast<const jbyte*>(webpData.bytes));
+    }
+    WebPDataClear(&webpData);
+    return result;
+#else
+    jniThrowException(env, UNSUPPORTED_OPERATION_EXCEPTION,
+            "libframesequence was built without WebP encoding support");
+    return NULL;
+#endif
+}
+
 static jlong nativeCreateState(JNIEnv* env, jobject clazz, jlong frameSequenceLong) {
     FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
     FrameSequenceState* state = frameSequence->createState();
@@ -141,6 +171,206 @@ static jlong JNICALL nativeGetFrame(
     return delayMs;
 }
 
+////////////////////////////////////////////////////////////////////////////////
+// Alpha mask
+////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * Masking is destructive, so a masked buffer can't be the base for drawing the next frame. The
+ * mask owns an unmasked canvas that frames are composited into, tracking which frame it holds,
+ * and only the output buffer is masked.
+ */
+struct AlphaMask {
+    uint8_t* alpha;
+    Color8888* canvas;
+    int canvasFrame;
+    int width;
+    int height;
+};
+
+// Scales all four (premultiplied) channels of color by alpha / 255, rounding.
+static inline Color8888 applyAlpha(Color8888 color, uint32_t alpha) {
+    if (alpha == 0xff) return color;
+    if (alpha == 0) return TRANSPARENT;
+    uint32_t rb = (color & 0x00ff00ff) * alpha + 0x00800080;
+    rb = ((rb + ((rb >> 8) & 0x00ff00ff)) >> 8) & 0x00ff00ff;
+    uint32_t ga = ((color >> 8) & 0x00ff00ff) * alpha + 0x00800080;
+    ga = (ga + ((ga >> 8) & 0x00ff00ff)) & 0xff00ff00;
+    return rb | ga;
+}
+
+static jlong nativeCreateAlphaMask(JNIEnv* env, jobject clazz, jobject maskBitmap) {
+    int ret;
+    AndroidBitmapInfo info;
+    void* pixels;
+
+    if ((ret = AndroidBitmap_getInfo(env, maskBitmap, &info)) < 0) {
+        throwIae(env, "Couldn't get info from mask Bitmap", ret);
+        return 0;
+    }
+    if (info.format != ANDROID_BITMAP_FORMAT_A_8
+            && info.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+        throwIae(env, "Mask Bitmap must be ALPHA_8 or ARGB_8888", info.format);
+        return 0;
+    }
+    if ((ret = AndroidBitmap_lockPixels(env, maskBitmap, &pixels)) < 0) {
+        throwIae(env, "Mask Bitmap pixels couldn't be locked", ret);
+        return 0;
+    }
+
+    AlphaMask* mask = new AlphaMask;
+    mask->width = info.width;
+    mask->height = info.height;
+    mask->alpha = new uint8_t[info.width * info.height];
+    mask->canvas = new Color8888[info.width * info.height];
+    mask->canvasFrame = -1;
+    for (uint32_t y = 0; y < info.height; y++) {
+        const uint8_t* src = reinterpret_cast<const uint8_t*>(pixels) + y * info.stride;
+        uint8_t* dst = mask->alpha + y * info.width;
+        if (info.format == ANDROID_BITMAP_FORMAT_A_8) {
+            memcpy(dst, src, info.width);
+        } else {
+            const Color8888* srcColor = reinterpret_cast<const Color8888*>(src);
+            for (uint32_t x = 0; x < info.width; x++) {
+                dst[x] = srcColor[x] >> 24;
+            }
+        }
+    }
+
+    AndroidBitmap_unlockPixels(env, maskBitmap);
+    return reinterpret_cast<jlong>(mask);
+}
+
+static void nativeDestroyAlphaMask(JNIEnv* env, jobject clazz, jlong alphaMaskLong) {
+    AlphaMask* mask = reinterpret_cast<AlphaMask*>(alphaMaskLong);
+    delete[] mask->alpha;
+    delete[] mask->canvas;
+    delete mask;
+}
+
+static jlong JNICALL nativeGetFrameMasked(
+        JNIEnv* env, jobject clazz, jlong frameSequenceStateLong, jint frameNr,
+        jobject bitmap, jlong alphaMaskLong) {
+    FrameSequenceState* frameSequenceState =
+            reinterpret_cast<FrameSequenceState*>(frameSequenceStateLong);
+    AlphaMask* mask = reinterpret_cast<AlphaMask*>(alphaMaskLong);
+    int ret;
+    AndroidBitmapInfo info;
+    void* pixels;
+
+    if ((ret = AndroidBitmap_getInfo(env, bitmap, &info)) < 0) {
+        throwIae(env, "Couldn't get info from Bitmap", ret);
+        return 0;
+    }
+
+    int previousFrameNr = mask->canvasFrame < frameNr ? mask->canvasFrame : -1;
+    jlong delayMs = frameSequenceState->drawFrame(frameNr,
+            mask->canvas, mask->width, previousFrameNr);
+    mask->canvasFrame = delayMs < 0 ? -1 : frameNr;
+
+    if ((ret = AndroidBitmap_lockPixels(env, bitmap, &pixels)) < 0) {
+        throwIae(env, "Bitmap pixels couldn't be locked", ret);
+        return 0;
+    }
+
+    const int pixelStride = info.stride >> 2;
+    Color8888* dst = reinterpret_cast<Color8888*>(pixels);
+    const Color8888* src = mask->canvas;
+    const uint8_t* alpha = mask->alpha;
+    for (int y = 0; y < mask->height; y++) {
+        for (int x = 0; x < mask->width; x++) {
+            dst[x] = applyAlpha(src[x], alpha[x]);
+        }
+        dst += pixelStride;
+        src += mask->width;
+        alpha += mask->width;
+    }
+
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return delayMs;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Surface target
+////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * Window buffers are recycled through a queue, so a locked buffer holds an arbitrarily old frame.
+ * Frames are therefore composited into a canvas owned by the target, which always holds the last
+ * frame drawn, and only the finished frame is copied into the window.
+ */
+struct SurfaceTarget {
+    ANativeWindow* window;
+    Color8888* canvas;
+    int width;
+    int height;
+};
+
+static jlong nativeCreateSurfaceTarget(JNIEnv* env, jobject clazz,
+        jobject surface, jint width, jint height) {
+    ANativeWindow* window = ANativeWindow_fromSurface(env, surface);
+    if (!window) {
+        jniThrowException(env, ILLEGAL_STATE_EXEPTION, "couldn't get window from Surface");
+        return 0;
+    }
+    int ret = ANativeWindow_setBuffersGeometry(window, width, height, WINDOW_FORMAT_RGBA_8888);
+    if (ret < 0) {
+        ANativeWindow_release(window);
+        throwIae(env, "Couldn't set Surface buffer geometry", ret);
+        return 0;
+    }
+
+    SurfaceTarget* target = new SurfaceTarget;
+    target->window = window;
+    target->canvas = new Color8888[width * height];
+    target->width = width;
+    target->height = height;
+    return reinterpret_cast<jlong>(target);
+}
+
+static void nativeDestroySurfaceTarget(JNIEnv* env, jobject clazz, jlong surfaceTargetLong) {
+    SurfaceTarget* target = reinterpret_cast<SurfaceTarget*>(surfaceTargetLong);
+    ANativeWindow_release(target->window);
+    delete[] target->canvas;
+    delete target;
+}
+
+static jlong JNICALL nativeGetFrameToSurface(
+        JNIEnv* env, jobject clazz, jlong frameSequenceStateLong, jint frameNr,
+        jlong surfaceTargetLong, jint previousFrameNr) {
+    FrameSequenceState* frameSequenceState =
+            reinterpret_cast<FrameSequenceState*>(frameSequenceStateLong);
+    SurfaceTarget* target = reinterpret_cast<SurfaceTarget*>(surfaceTargetLong);
+
+    jlong delayMs = frameSequenceState->drawFrame(frameNr,
+            target->canvas, target->width, previousFrameNr);
+    if (delayMs < 0) {
+        // The canvas may hold a partially drawn frame, so don't post it
+        jniThrowException(env, ILLEGAL_STATE_EXEPTION, "couldn't draw frame");
+        return 0;
+    }
+
+    ANativeWindow_Buffer buffer;
+    int ret;
+    if ((ret = ANativeWindow_lock(target->window, &buffer, NULL)) < 0) {
+        throwIae(env, "Surface couldn't be locked", ret);
+        return 0;
+    }
+
+    const int copyWidth = buffer.width < target->width ? buffer.width : target->width;
+    const int copyHeight = buffer.height < target->height ? buffer.height : target->height;
+    Color8888* dst = reinterpret_cast<Color8888*>(buffer.bits);
+    const Color8888* src = target->canvas;
+    for (int y = 0; y < copyHeight; y++) {
+        memcpy(dst, src, copyWidth * sizeof(Color8888));
+        dst += buffer.stride;
+        src += target->width;
+    }
+
+    ANativeWindow_unlockAndPost(target->window);
+    return delayMs;
+}
+
 static JNINativeMethod gMethods[] = {
     {   "nativeDecodeByteArray",
         "([BII)L" JNI_PACKAGE "/FrameSequence;",
@@ -158,6 +388,10 @@ static JNINativeMethod gMethods[] = {
         "(J)V",
         (void*) nativeDestroyFrameSequence
     },
+    {   "nativeEncodeWebP",
+        "(JZF)[B",
+        (void*) nativeEncodeWebP
+    },
     {   "nativeCreateState",
         "(J)J",
         (void*) nativeCreateState
@@ -170,6 +404,30 @@ static JNINativeMethod gMethods[] = {
         "(J)V",
         (void*) nativeDestroyState
     },
+    {   "nativeCreateAlphaMask",
+        "(Landroid/graphics/Bitmap;)J",
+        (void*) nativeCreateAlphaMask
+    },
+    {   "nativeDestroyAlphaMask",
+        "(J)V",
+        (void*) nativeDestroyAlphaMask
+    },
+    {   "nativeGetFrameMasked",
+        "(JILandroid/graphics/Bitmap;J)J",
+        (void*) nativeGetFrameMasked
+    },
+    {   "nativeCreateSurfaceTarget",
+        "(Landroid/view/Surface;II)J",
+        (void*) nativeCreateSurfaceTarget
+    },
+    {   "nativeDestroySurfaceTarget",
+        "(J)V",
+        (void*) nativeDestroySurfaceTarget
+    },
+    {   "nativeGetFrameToSurface",
+        "(JIJI)J",
+        (void*) nativeGetFrameToSurface
+    },
 };
 
 jint FrameSequence_OnLoad(JNIEnv* env) {
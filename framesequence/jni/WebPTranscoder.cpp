@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "utils/log.h"
+#include "webp/encode.h"
+#include "webp/mux.h"
+
+#include "WebPTranscoder.h"
+
+#define TRANSCODE_DEBUG 0
+
+// Mirrors FrameSequenceDrawable's MIN_DELAY_MS/DEFAULT_DELAY_MS, so the transcoded animation
+// plays back with the same timing as the source did.
+static const long MIN_DELAY_MS = 20;
+static const long DEFAULT_DELAY_MS = 100;
+
+static long sanitizeDelayMs(long delayMs) {
+    return delayMs < MIN_DELAY_MS ? DEFAULT_DELAY_MS : delayMs;
+}
+
+bool transcodeToWebP(const FrameSequence& frameSequence, bool lossless, float quality,
+        WebPData* output) {
+    const int width = frameSequence.getWidth();
+    const int height = frameSequence.getHeight();
+    const int frameCount = frameSequence.getFrameCount();
+    if (width <= 0 || height <= 0 || frameCount <= 0) {
+        ALOGW("Cannot transcode empty frame sequence");
+        return false;
+    }
+
+    WebPConfig config;
+    if (!WebPConfigInit(&config)) {
+        ALOGE("WebP encoder version mismatch");
+        return false;
+    }
+    config.lossless = lossless ? 1 : 0;
+    config.quality = quality;
+    if (!WebPValidateConfig(&config)) {
+        ALOGW("Invalid WebP encoder config, quality %f", quality);
+        return false;
+    }
+
+    WebPAnimEncoderOptions options;
+    if (!WebPAnimEncoderOptionsInit(&options)) {
+        ALOGE("WebP mux version mismatch");
+        return false;
+    }
+    // Both GIF and WebP use 0 for infinite looping.
+    options.anim_params.loop_count = frameSequence.getDefaultLoopCount();
+
+    WebPAnimEncoder* encoder = WebPAnimEncoderNew(width, height, &options);
+    if (!encoder) {
+        ALOGE("Couldn't create WebP animation encoder");
+        return false;
+    }
+
+    FrameSequenceState* state = frameSequence.createState();
+    Color8888* canvas = new Color8888[width * height];
+    WebPPicture picture;
+    bool success = WebPPictureInit(&picture);
+    picture.width = width;
+    picture.height = height;
+    picture.use_argb = 1;
+
+    // drawFrame() returns the delay of the frame preceding the one drawn, so frame i's timestamp
+    // is known once it has been drawn, and the final frame's duration comes from frame 0.
+    int timestampMs = 0;
+    long lastFrameDelayMs = DEFAULT_DELAY_MS;
+    for (int i = 0; success && i < frameCount; i++) {
+        long delayMs = state->drawFrame(i, canvas, width, i - 1);
+        if (delayMs < 0) {
+            ALOGW("Failed to draw frame %d for transcoding", i);
+            success = false;
+            break;
+        }
+        if (i == 0) {
+            lastFrameDelayMs = sanitizeDelayMs(delayMs);
+        } else {
+            timestampMs += sanitizeDelayMs(delayMs);
+        }
+
+        // Color8888 is laid out as R, G, B, A bytes in memory.
+        if (!WebPPictureImportRGBA(&picture, (const uint8_t*) canvas, width * sizeof(Color8888))
+                || !WebPAnimEncoderAdd(encoder, &picture, timestampMs, &config)) {
+            ALOGW("Failed to encode frame %d: %s", i, WebPAnimEncoderGetError(encoder));
+            success = false;
+        }
+#if TRANSCODE_DEBUG
+        ALOGD("    transcoded frame %d at %d ms", i, timestampMs);
+#endif
+    }
+
+    if (success) {
+        // A NULL frame marks the end of the animation, timestamped with the last frame's end.
+        success = WebPAnimEncoderAdd(encoder, NULL, timestampMs + lastFrameDelayMs, NULL)
+                && WebPAnimEncoderAssemble(encoder, output);
+        if (!success) {
+            ALOGW("Failed to assemble WebP animation: %s", WebPAnimEncoderGetError(encoder));
+        }
+    }
+
+    WebPPictureFree(&picture);
+    delete[] canvas;
+    delete state;
+    WebPAnimEncoderDelete(encoder);
+    return success;
+}
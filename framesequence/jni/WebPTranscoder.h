@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef RASTERMILL_WEBP_TRANSCODER_H
+#define RASTERMILL_WEBP_TRANSCODER_H
+
+#include "webp/mux_types.h"
+
+#include "FrameSequence.h"
+
+/**
+ * Encodes every frame of frameSequence into an animated WebP bitstream.
+ *
+ * Frames are composited by the sequence's own FrameSequenceState, so the encoder only ever sees
+ * full canvases and disposal/blending rules of the source format are preserved exactly.
+ *
+ * On success, returns true and output owns the encoded bytes (release with WebPDataClear).
+ */
+bool transcodeToWebP(const FrameSequence& frameSequence, bool lossless, float quality,
+        WebPData* output);
+
+#endif //RASTERMILL_WEBP_TRANSCODER_H
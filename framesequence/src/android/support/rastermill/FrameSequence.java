@@ -17,6 +17,7 @@
 package android.support.rastermill;
 
 import android.graphics.Bitmap;
+import android.view.Surface;
 import java.nio.ByteBuffer;
 
 import java.io.InputStream;
@@ -43,10 +44,20 @@ public class FrameSequence {
     private static native FrameSequence nativeDecodeStream(InputStream is, byte[] tempStorage);
     private static native FrameSequence nativeDecodeByteBuffer(ByteBuffer buffer, int offset, int capacity);
     private static native void nativeDestroyFrameSequence(long nativeFrameSequence);
+    private static native byte[] nativeEncodeWebP(long nativeFrameSequence,
+            boolean lossless, float quality);
     private static native long nativeCreateState(long nativeFrameSequence);
     private static native void nativeDestroyState(long nativeState);
     private static native long nativeGetFrame(long nativeState, int frameNr,
             Bitmap output, int previousFrameNr);
+    private static native long nativeCreateAlphaMask(Bitmap mask);
+    private static native void nativeDestroyAlphaMask(long nativeAlphaMask);
+    private static native long nativeGetFrameMasked(long nativeState, int frameNr,
+            Bitmap output, long nativeAlphaMask);
+    private static native long nativeCreateSurfaceTarget(Surface surface, int width, int height);
+    private static native void nativeDestroySurfaceTarget(long nativeSurfaceTarget);
+    private static native long nativeGetFrameToSurface(long nativeState, int frameNr,
+            long nativeSurfaceTarget, int previousFrameNr);
 
     @SuppressWarnings("unused") // called by native
     private FrameSequence(long nativeFrameSequence, int width, int height,
@@ -90,6 +101,29 @@ public class FrameSequence {
         return nativeDecodeStream(stream, tempStorage);
     }
 
+    /**
+     * Encodes every frame of this sequence as an animated WebP, preserving frame timing and
+     * default loop count. Intended for converting GIF sequences into a form that is smaller and
+     * faster to decode.
+     *
+     * This is a blocking, CPU-heavy call: see {@link WebPTranscoder} to run it in the background.
+     *
+     * @param lossless true to encode losslessly, in which case quality trades encoding speed
+     *                 for output size
+     * @param quality encoder quality, from 0 to 100
+     * @return the encoded WebP file contents
+     * @throws UnsupportedOperationException if the native library lacks WebP encoding support
+     */
+    public byte[] encodeWebP(boolean lossless, float quality) {
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("quality must be in the range [0, 100]");
+        }
+        if (mNativeFrameSequence == 0) {
+            throw new IllegalStateException("attempted to use incorrectly built FrameSequence");
+        }
+        return nativeEncodeWebP(mNativeFrameSequence, lossless, quality);
+    }
+
     State createState() {
         if (mNativeFrameSequence == 0) {
             throw new IllegalStateException("attempted to use incorrectly built FrameSequence");
@@ -102,6 +136,24 @@ public class FrameSequence {
         return new State(nativeState);
     }
 
+    AlphaMask createAlphaMask(Bitmap mask) {
+        if (mask == null || (mask.getConfig() != Bitmap.Config.ALPHA_8
+                && mask.getConfig() != Bitmap.Config.ARGB_8888)) {
+            throw new IllegalArgumentException("Mask passed must be non-null and ALPHA_8 or ARGB_8888");
+        }
+        if (mask.getWidth() != mWidth || mask.getHeight() != mHeight) {
+            throw new IllegalArgumentException("Mask must have the same size as the frame sequence");
+        }
+        return new AlphaMask(nativeCreateAlphaMask(mask));
+    }
+
+    SurfaceTarget createSurfaceTarget(Surface surface) {
+        if (surface == null || !surface.isValid()) {
+            throw new IllegalArgumentException("Surface passed must be non-null and valid");
+        }
+        return new SurfaceTarget(nativeCreateSurfaceTarget(surface, mWidth, mHeight));
+    }
+
     @Override
     protected void finalize() throws Throwable {
         try {
@@ -137,7 +189,6 @@ public class FrameSequence {
             }
         }
 
-        // TODO: consider adding alternate API for drawing into a SurfaceTexture
         public long getFrame(int frameNr, Bitmap output, int previousFrameNr) {
             if (output == null || output.getConfig() != Bitmap.Config.ARGB_8888) {
                 throw new IllegalArgumentException("Bitmap passed must be non-null and ARGB_8888");
@@ -147,5 +198,78 @@ public class FrameSequence {
             }
             return nativeGetFrame(mNativeState, frameNr, output, previousFrameNr);
         }
+
+        /**
+         * Draws a frame into the canvas of mask, then writes it to output with the mask's alpha
+         * applied. The previous frame is tracked by mask, so output may hold any content.
+         */
+        public long getFrame(int frameNr, Bitmap output, AlphaMask mask) {
+            if (output == null || output.getConfig() != Bitmap.Config.ARGB_8888) {
+                throw new IllegalArgumentException("Bitmap passed must be non-null and ARGB_8888");
+            }
+            if (mask == null || mask.mNativeAlphaMask == 0) {
+                throw new IllegalArgumentException("AlphaMask passed must be non-null and live");
+            }
+            if (mNativeState == 0) {
+                throw new IllegalStateException("attempted to draw destroyed FrameSequenceState");
+            }
+            return nativeGetFrameMasked(mNativeState, frameNr, output, mask.mNativeAlphaMask);
+        }
+
+        /**
+         * Draws a frame into the canvas of output, then posts it to output's Surface. As with
+         * Bitmaps, previousFrameNr must be the frame last drawn into output, or negative.
+         */
+        public long getFrame(int frameNr, SurfaceTarget output, int previousFrameNr) {
+            if (output == null || output.mNativeSurfaceTarget == 0) {
+                throw new IllegalArgumentException("SurfaceTarget passed must be non-null and live");
+            }
+            if (mNativeState == 0) {
+                throw new IllegalStateException("attempted to draw destroyed FrameSequenceState");
+            }
+            return nativeGetFrameToSurface(mNativeState, frameNr, output.mNativeSurfaceTarget,
+                    previousFrameNr);
+        }
+    }
+
+    /**
+     * Alpha mask baked into frames as they're drawn, with the unmasked canvas frames are
+     * composited in.
+     *
+     * Note: {@link #destroy()} *must* be called before the object is GC'd to free native resources
+     */
+    static class AlphaMask {
+        private long mNativeAlphaMask;
+
+        AlphaMask(long nativeAlphaMask) {
+            mNativeAlphaMask = nativeAlphaMask;
+        }
+
+        public void destroy() {
+            if (mNativeAlphaMask != 0) {
+                nativeDestroyAlphaMask(mNativeAlphaMask);
+                mNativeAlphaMask = 0;
+            }
+        }
+    }
+
+    /**
+     * Native window connection and compositing canvas used to post frames to a Surface.
+     *
+     * Note: {@link #destroy()} *must* be called before the object is GC'd to free native resources
+     */
+    static class SurfaceTarget {
+        private long mNativeSurfaceTarget;
+
+        SurfaceTarget(long nativeSurfaceTarget) {
+            mNativeSurfaceTarget = nativeSurfaceTarget;
+        }
+
+        public void destroy() {
+            if (mNativeSurfaceTarget != 0) {
+                nativeDestroySurfaceTarget(mNativeSurfaceTarget);
+                mNativeSurfaceTarget = 0;
+            }
+        }
     }
 }
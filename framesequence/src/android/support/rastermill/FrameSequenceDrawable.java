@@ -145,8 +145,7 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     private final FrameSequence.State mFrameSequenceState;
 
     private final Paint mPaint;
-    private BitmapShader mFrontBitmapShader;
-    private BitmapShader mBackBitmapShader;
+    private final BitmapShader[] mBitmapShaders;
     private final Rect mSrcRect;
     private boolean mCircleMaskEnabled;
 
@@ -155,16 +154,32 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
 
     private final BitmapProvider mBitmapProvider;
     private boolean mDestroyed = false;
-    private Bitmap mFrontBitmap;
-    private Bitmap mBackBitmap;
+
+    /**
+     * Ring of frame buffers. mBitmaps[mFrontIndex] is being displayed, the mReadyCount buffers
+     * following it hold decoded frames waiting to be swapped in, in order, and the rest are free
+     * for the decoder. A front buffer is only freed by the swap in draw().
+     */
+    private final Bitmap[] mBitmaps;
+    // Frame number held by each buffer, or -1 if unknown
+    private final int[] mBufferFrames;
+    // Delay before each buffer may be swapped in, relative to the previous swap
+    private final long[] mBufferDelays;
+    private int mFrontIndex;
+    private int mReadyCount;
+    private int mDecodingIndex = -1;
+    private FrameSequence.AlphaMask mAlphaMask;
 
     private static final int STATE_SCHEDULED = 1;
     private static final int STATE_DECODING = 2;
-    private static final int STATE_WAITING_TO_SWAP = 3;
-    private static final int STATE_READY_TO_SWAP = 4;
+
+    private static final int MIN_BUFFER_COUNT = 2;
+    private static final int MAX_BUFFER_COUNT = 4;
 
     private int mState;
+    private boolean mReadyToSwap;
     private int mCurrentLoop;
+    private int mDecodeLoop;
     private int mLoopBehavior = LOOP_DEFAULT;
     private int mLoopCount = 1;
 
@@ -176,13 +191,16 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     private RectF mTempRectF = new RectF();
 
     /**
-     * Runs on decoding thread, only modifies mBackBitmap's pixels
+     * Runs on decoding thread, only modifies the pixels of the first free buffer
      */
     private Runnable mDecodeRunnable = new Runnable() {
         @Override
         public void run() {
             int nextFrame;
+            int lastFrame;
+            int bufferIndex;
             Bitmap bitmap;
+            FrameSequence.AlphaMask alphaMask;
             synchronized (mLock) {
                 if (mDestroyed) return;
 
@@ -190,14 +208,25 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
                 if (nextFrame < 0) {
                     return;
                 }
-                bitmap = mBackBitmap;
+                bufferIndex = (mFrontIndex + mReadyCount + 1) % mBitmaps.length;
+                bitmap = mBitmaps[bufferIndex];
+                alphaMask = mAlphaMask;
+                lastFrame = mBufferFrames[bufferIndex];
+                if (lastFrame >= nextFrame) {
+                    lastFrame = -1;
+                }
+                mBufferFrames[bufferIndex] = -1;
+                mDecodingIndex = bufferIndex;
                 mState = STATE_DECODING;
             }
-            int lastFrame = nextFrame - 2;
             boolean exceptionDuringDecode = false;
             long invalidateTimeMs = 0;
             try {
-                invalidateTimeMs = mFrameSequenceState.getFrame(nextFrame, bitmap, lastFrame);
+                if (alphaMask != null) {
+                    invalidateTimeMs = mFrameSequenceState.getFrame(nextFrame, bitmap, alphaMask);
+                } else {
+                    invalidateTimeMs = mFrameSequenceState.getFrame(nextFrame, bitmap, lastFrame);
+                }
             } catch(Exception e) {
                 // Exception during decode: continue, but delay next frame indefinitely.
                 Log.e(TAG, "exception during decode: " + e);
@@ -211,13 +240,30 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
             boolean schedule = false;
             Bitmap bitmapToRelease = null;
             synchronized (mLock) {
+                mDecodingIndex = -1;
                 if (mDestroyed) {
-                    bitmapToRelease = mBackBitmap;
-                    mBackBitmap = null;
+                    bitmapToRelease = mBitmaps[bufferIndex];
+                    mBitmaps[bufferIndex] = null;
                 } else if (mNextFrameToDecode >= 0 && mState == STATE_DECODING) {
-                    schedule = true;
-                    mNextSwap = exceptionDuringDecode ? Long.MAX_VALUE : invalidateTimeMs + mLastSwap;
-                    mState = STATE_WAITING_TO_SWAP;
+                    mState = 0;
+                    mBufferFrames[bufferIndex] = exceptionDuringDecode ? -1 : nextFrame;
+                    mBufferDelays[bufferIndex] =
+                            exceptionDuringDecode ? Long.MAX_VALUE : invalidateTimeMs;
+                    mReadyCount++;
+                    if (mReadyCount == 1) {
+                        // nothing else is waiting to swap, so this frame is next on screen
+                        schedule = true;
+                        mNextSwap = computeNextSwapLocked(bufferIndex);
+                    }
+
+                    if (nextFrame == mFrameSequence.getFrameCount() - 1) {
+                        mDecodeLoop++;
+                    }
+                    if (!exceptionDuringDecode && !isLoopLimitReachedLocked(mDecodeLoop)
+                            && hasFreeBufferLocked()) {
+                        // decode ahead while buffers are available
+                        scheduleDecodeLocked();
+                    }
                 }
             }
             if (schedule) {
@@ -237,6 +283,8 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
             synchronized (mLock) {
                 mNextFrameToDecode = -1;
                 mState = 0;
+                mReadyCount = 0;
+                mReadyToSwap = false;
             }
             if (mOnFinishedListener != null) {
                 mOnFinishedListener.onFinished(FrameSequenceDrawable.this);
@@ -262,7 +310,26 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     }
 
     public FrameSequenceDrawable(FrameSequence frameSequence, BitmapProvider bitmapProvider) {
+        this(frameSequence, bitmapProvider, MIN_BUFFER_COUNT);
+    }
+
+    /**
+     * Creates a drawable that decodes into a ring of bufferCount Bitmaps.
+     *
+     * <p> With the default of 2 buffers, the next frame can only be decoded once the current one
+     * has been swapped in by draw(). Each additional buffer lets decoding run one more frame
+     * ahead, so a late draw() doesn't stall decoding, at the cost of one more width * height
+     * ARGB_8888 Bitmap.
+     *
+     * @param bufferCount number of Bitmaps to acquire from bitmapProvider, from 2 to 4
+     */
+    public FrameSequenceDrawable(FrameSequence frameSequence, BitmapProvider bitmapProvider,
+            int bufferCount) {
         if (frameSequence == null || bitmapProvider == null) throw new IllegalArgumentException();
+        if (bufferCount < MIN_BUFFER_COUNT || bufferCount > MAX_BUFFER_COUNT) {
+            throw new IllegalArgumentException("bufferCount must be between "
+                    + MIN_BUFFER_COUNT + " and " + MAX_BUFFER_COUNT);
+        }
 
         mFrameSequence = frameSequence;
         mFrameSequenceState = frameSequence.createState();
@@ -270,21 +337,26 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         final int height = frameSequence.getHeight();
 
         mBitmapProvider = bitmapProvider;
-        mFrontBitmap = acquireAndValidateBitmap(bitmapProvider, width, height);
-        mBackBitmap = acquireAndValidateBitmap(bitmapProvider, width, height);
+        mBitmaps = new Bitmap[bufferCount];
+        mBitmapShaders = new BitmapShader[bufferCount];
+        mBufferFrames = new int[bufferCount];
+        mBufferDelays = new long[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            mBitmaps[i] = acquireAndValidateBitmap(bitmapProvider, width, height);
+            mBitmapShaders[i]
+                = new BitmapShader(mBitmaps[i], Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            mBufferFrames[i] = -1;
+        }
         mSrcRect = new Rect(0, 0, width, height);
         mPaint = new Paint();
         mPaint.setFilterBitmap(true);
 
-        mFrontBitmapShader
-            = new BitmapShader(mFrontBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
-        mBackBitmapShader
-            = new BitmapShader(mBackBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
-
         mLastSwap = 0;
 
         mNextFrameToDecode = -1;
-        mFrameSequenceState.getFrame(0, mFrontBitmap, -1);
+        mFrontIndex = 0;
+        mFrameSequenceState.getFrame(0, mBitmaps[mFrontIndex], -1);
+        mBufferFrames[mFrontIndex] = 0;
         initializeDecodingThread();
     }
 
@@ -307,6 +379,79 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         return mCircleMaskEnabled;
     }
 
+    /**
+     * Pass true to bake a circular mask into frames as they're decoded, so they are drawn with a
+     * plain drawBitmap() instead of the per-draw shader and anti-aliased oval used by
+     * {@link #setCircleMaskEnabled(boolean)}.
+     *
+     * <p> The masking circle will be the largest circle contained in the intrinsic bounds, and
+     * is scaled along with the content, so it is only round if the Drawable's bounds keep the
+     * intrinsic aspect ratio.
+     *
+     * @throws IllegalStateException if the drawable is running
+     */
+    public final void setBakedCircleMaskEnabled(boolean bakedCircleMaskEnabled) {
+        if (!bakedCircleMaskEnabled) {
+            setBakedAlphaMask(null);
+            return;
+        }
+        Bitmap mask = createCircleMask(getIntrinsicWidth(), getIntrinsicHeight());
+        try {
+            setBakedAlphaMask(mask);
+        } finally {
+            mask.recycle();
+        }
+    }
+
+    /**
+     * Sets a mask whose alpha channel is applied to frames as they're decoded, or null for none.
+     *
+     * <p> The mask must be an ALPHA_8 or ARGB_8888 Bitmap of the intrinsic size. It is copied, so
+     * the Bitmap may be reused once this returns. The current frame is redrawn immediately.
+     *
+     * @throws IllegalStateException if the drawable is running
+     */
+    public final void setBakedAlphaMask(Bitmap mask) {
+        FrameSequence.AlphaMask alphaMask = mask == null ? null : mFrameSequence.createAlphaMask(mask);
+        FrameSequence.AlphaMask alphaMaskToDestroy;
+        synchronized (mLock) {
+            if (mDestroyed || isRunning() || mDecodingIndex >= 0) {
+                if (alphaMask != null) alphaMask.destroy();
+                checkDestroyedLocked();
+                throw new IllegalStateException("Cannot change mask while running");
+            }
+            alphaMaskToDestroy = mAlphaMask;
+            mAlphaMask = alphaMask;
+
+            // Buffer contents were drawn with the old mask, so can't be drawn upon incrementally
+            int frontFrame = Math.max(mBufferFrames[mFrontIndex], 0);
+            for (int i = 0; i < mBufferFrames.length; i++) {
+                mBufferFrames[i] = -1;
+            }
+            if (alphaMask != null) {
+                mFrameSequenceState.getFrame(frontFrame, mBitmaps[mFrontIndex], alphaMask);
+            } else {
+                mFrameSequenceState.getFrame(frontFrame, mBitmaps[mFrontIndex], -1);
+            }
+            mBufferFrames[mFrontIndex] = frontFrame;
+        }
+        if (alphaMaskToDestroy != null) {
+            alphaMaskToDestroy.destroy();
+        }
+        invalidateSelf();
+    }
+
+    private static Bitmap createCircleMask(int width, int height) {
+        Bitmap mask = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+        final float diameter = Math.min(width, height);
+        new Canvas(mask).drawOval(new RectF(
+                (width - diameter) / 2.0f,
+                (height - diameter) / 2.0f,
+                (width + diameter) / 2.0f,
+                (height + diameter) / 2.0f), new Paint(Paint.ANTI_ALIAS_FLAG));
+        return mask;
+    }
+
     private void checkDestroyedLocked() {
         if (mDestroyed) {
             throw new IllegalStateException("Cannot perform operation on recycled drawable");
@@ -330,26 +475,26 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
             throw new IllegalStateException("BitmapProvider must be non-null");
         }
 
-        Bitmap bitmapToReleaseA;
-        Bitmap bitmapToReleaseB = null;
+        Bitmap[] bitmapsToRelease = new Bitmap[mBitmaps.length];
         synchronized (mLock) {
             checkDestroyedLocked();
 
-            bitmapToReleaseA = mFrontBitmap;
-            mFrontBitmap = null;
-
-            if (mState != STATE_DECODING) {
-                bitmapToReleaseB = mBackBitmap;
-                mBackBitmap = null;
+            for (int i = 0; i < mBitmaps.length; i++) {
+                // the buffer being decoded into is released by the decoding thread when done
+                if (i != mDecodingIndex) {
+                    bitmapsToRelease[i] = mBitmaps[i];
+                    mBitmaps[i] = null;
+                }
             }
 
             mDestroyed = true;
         }
 
         // For simplicity and safety, we don't destroy the state object here
-        mBitmapProvider.releaseBitmap(bitmapToReleaseA);
-        if (bitmapToReleaseB != null) {
-            mBitmapProvider.releaseBitmap(bitmapToReleaseB);
+        for (Bitmap bitmap : bitmapsToRelease) {
+            if (bitmap != null) {
+                mBitmapProvider.releaseBitmap(bitmap);
+            }
         }
     }
 
@@ -357,6 +502,9 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     protected void finalize() throws Throwable {
         try {
             mFrameSequenceState.destroy();
+            if (mAlphaMask != null) {
+                mAlphaMask.destroy();
+            }
         } finally {
             super.finalize();
         }
@@ -366,38 +514,41 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     public void draw(Canvas canvas) {
         synchronized (mLock) {
             checkDestroyedLocked();
-            if (mState == STATE_WAITING_TO_SWAP) {
+            if (mReadyCount > 0 && !mReadyToSwap) {
                 // may have failed to schedule mark ready runnable,
                 // so go ahead and swap if swapping is due
                 if (mNextSwap - SystemClock.uptimeMillis() <= 0) {
-                    mState = STATE_READY_TO_SWAP;
+                    mReadyToSwap = true;
                 }
             }
 
-            if (isRunning() && mState == STATE_READY_TO_SWAP) {
+            if (isRunning() && mReadyToSwap) {
                 // Because draw has occurred, the view system is guaranteed to no longer hold a
-                // reference to the old mFrontBitmap, so we now use it to produce the next frame
-                Bitmap tmp = mBackBitmap;
-                mBackBitmap = mFrontBitmap;
-                mFrontBitmap = tmp;
-
-                BitmapShader tmpShader = mBackBitmapShader;
-                mBackBitmapShader = mFrontBitmapShader;
-                mFrontBitmapShader = tmpShader;
+                // reference to the old front Bitmap, so we now free it to produce a later frame
+                mFrontIndex = (mFrontIndex + 1) % mBitmaps.length;
+                mReadyCount--;
+                mReadyToSwap = false;
 
                 mLastSwap = SystemClock.uptimeMillis();
 
                 boolean continueLooping = true;
-                if (mNextFrameToDecode == mFrameSequence.getFrameCount() - 1) {
+                if (mBufferFrames[mFrontIndex] == mFrameSequence.getFrameCount() - 1) {
                     mCurrentLoop++;
-                    if ((mLoopBehavior == LOOP_FINITE && mCurrentLoop == mLoopCount) ||
-                            (mLoopBehavior == LOOP_DEFAULT && mCurrentLoop == mFrameSequence.getDefaultLoopCount())) {
+                    if (isLoopLimitReachedLocked(mCurrentLoop)) {
                         continueLooping = false;
                     }
                 }
 
                 if (continueLooping) {
-                    scheduleDecodeLocked();
+                    if (mReadyCount > 0) {
+                        mNextSwap = computeNextSwapLocked(
+                                (mFrontIndex + 1) % mBitmaps.length);
+                        scheduleSelf(this, mNextSwap);
+                    }
+                    if (mState == 0 && !isLoopLimitReachedLocked(mDecodeLoop)) {
+                        // decoder was waiting for the buffer just freed
+                        scheduleDecodeLocked();
+                    }
                 } else {
                     scheduleSelf(mFinishedCallbackRunnable, 0);
                 }
@@ -427,12 +578,12 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
                     (bitmapHeight - scaledDiameterY) / 2.0f,
                     (bitmapWidth + scaledDiameterX) / 2.0f,
                     (bitmapHeight + scaledDiameterY) / 2.0f);
-            mPaint.setShader(mFrontBitmapShader);
+            mPaint.setShader(mBitmapShaders[mFrontIndex]);
             canvas.drawOval(mTempRectF, mPaint);
             canvas.restore();
         } else {
             mPaint.setShader(null);
-            canvas.drawBitmap(mFrontBitmap, mSrcRect, getBounds(), mPaint);
+            canvas.drawBitmap(mBitmaps[mFrontIndex], mSrcRect, getBounds(), mPaint);
         }
     }
 
@@ -442,13 +593,29 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         sDecodingThreadHandler.post(mDecodeRunnable);
     }
 
+    private boolean hasFreeBufferLocked() {
+        // one buffer is on screen, and mReadyCount are waiting for it
+        return mReadyCount + 1 < mBitmaps.length;
+    }
+
+    private boolean isLoopLimitReachedLocked(int loop) {
+        // No loop has completed yet, and a default loop count of 0 means loop forever
+        return loop > 0 && ((mLoopBehavior == LOOP_FINITE && loop == mLoopCount)
+                || (mLoopBehavior == LOOP_DEFAULT && loop == mFrameSequence.getDefaultLoopCount()));
+    }
+
+    private long computeNextSwapLocked(int bufferIndex) {
+        long delay = mBufferDelays[bufferIndex];
+        return delay == Long.MAX_VALUE ? Long.MAX_VALUE : mLastSwap + delay;
+    }
+
     @Override
     public void run() {
         // set ready to swap as necessary
         boolean invalidate = false;
         synchronized (mLock) {
-            if (mNextFrameToDecode >= 0 && mState == STATE_WAITING_TO_SWAP) {
-                mState = STATE_READY_TO_SWAP;
+            if (mNextFrameToDecode >= 0 && mReadyCount > 0 && !mReadyToSwap) {
+                mReadyToSwap = true;
                 invalidate = true;
             }
         }
@@ -464,6 +631,7 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
                 checkDestroyedLocked();
                 if (mState == STATE_SCHEDULED) return; // already scheduled
                 mCurrentLoop = 0;
+                mDecodeLoop = 0;
                 scheduleDecodeLocked();
             }
         }
@@ -488,6 +656,9 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         synchronized (mLock) {
             mNextFrameToDecode = -1;
             mState = 0;
+            // drop frames decoded ahead, they'll be overwritten once restarted
+            mReadyCount = 0;
+            mReadyToSwap = false;
         }
         super.unscheduleSelf(what);
     }
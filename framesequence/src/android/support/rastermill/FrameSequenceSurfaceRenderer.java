@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.view.Surface;
+
+/**
+ * Renders the frames of a {@link FrameSequence} directly into the buffer queue of a
+ * {@link Surface}, e.g. one created from the SurfaceTexture of a TextureView, or the input
+ * Surface of a video encoder. Unlike {@link FrameSequenceDrawable}, no Bitmap is involved, so
+ * frames don't need to be uploaded as textures again when drawn.
+ *
+ * Frames are drawn synchronously on the calling thread; callers are responsible for pacing,
+ * using the delays returned by {@link #renderFrame(int)}.
+ */
+public class FrameSequenceSurfaceRenderer {
+    private final FrameSequence mFrameSequence;
+    private final FrameSequence.State mFrameSequenceState;
+    private FrameSequence.SurfaceTarget mSurfaceTarget;
+    private int mLastFrame = -1;
+    /** The frame held by the target's canvas, or -1 if it must be drawn from scratch. */
+    private int mCanvasFrame = -1;
+
+    /**
+     * @param surface target for rendered frames; its buffers will be resized to the intrinsic
+     *                size of frameSequence
+     */
+    public FrameSequenceSurfaceRenderer(FrameSequence frameSequence, Surface surface) {
+        if (frameSequence == null) throw new IllegalArgumentException();
+
+        mFrameSequence = frameSequence;
+        mFrameSequenceState = frameSequence.createState();
+        mSurfaceTarget = frameSequence.createSurfaceTarget(surface);
+    }
+
+    /**
+     * Renders frameNr and posts it to the Surface.
+     *
+     * Rendering frames in increasing order only draws what changed since the last one.
+     *
+     * @return the delay in milliseconds of the frame preceding frameNr, i.e. how long the
+     *         previously posted frame should have remained visible
+     * @throws IllegalStateException if the frame couldn't be drawn
+     * @throws IllegalArgumentException if the Surface couldn't be locked
+     */
+    public synchronized long renderFrame(int frameNr) {
+        if (frameNr < 0 || frameNr >= mFrameSequence.getFrameCount()) {
+            throw new IllegalArgumentException("invalid frame number " + frameNr);
+        }
+        if (mSurfaceTarget == null) {
+            throw new IllegalStateException("Cannot render with destroyed renderer");
+        }
+        int previousFrame = frameNr > mCanvasFrame ? mCanvasFrame : -1;
+        long delayMs;
+        try {
+            delayMs = mFrameSequenceState.getFrame(frameNr, mSurfaceTarget, previousFrame);
+        } catch (RuntimeException e) {
+            // The canvas may hold a partial or unposted frame, so redraw fully next time
+            mCanvasFrame = -1;
+            throw e;
+        }
+        mCanvasFrame = frameNr;
+        mLastFrame = frameNr;
+        return delayMs;
+    }
+
+    /**
+     * Renders the frame following the last one rendered, wrapping around at the end of the
+     * sequence.
+     *
+     * @see #renderFrame(int)
+     */
+    public synchronized long renderNextFrame() {
+        return renderFrame((mLastFrame + 1) % mFrameSequence.getFrameCount());
+    }
+
+    /**
+     * Returns the last frame rendered, or -1 if none has been.
+     */
+    public synchronized int getLastFrame() {
+        return mLastFrame;
+    }
+
+    /**
+     * Releases the Surface connection and native resources. The renderer can't be used after.
+     */
+    public synchronized void destroy() {
+        if (mSurfaceTarget != null) {
+            mSurfaceTarget.destroy();
+            mSurfaceTarget = null;
+            mFrameSequenceState.destroy();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Converts {@link FrameSequence}s (typically GIFs) into animated WebP on a shared background
+ * thread, so that callers such as caches can persist the smaller, faster decoding form.
+ */
+public class WebPTranscoder {
+    private static final String TAG = "FrameSequence";
+
+    private static final Object sLock = new Object();
+    private static HandlerThread sTranscodingThread;
+    private static Handler sTranscodingThreadHandler;
+    private static void initializeTranscodingThread() {
+        synchronized (sLock) {
+            if (sTranscodingThread != null) return;
+
+            sTranscodingThread = new HandlerThread("FrameSequence transcoding thread",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            sTranscodingThread.start();
+            sTranscodingThreadHandler = new Handler(sTranscodingThread.getLooper());
+        }
+    }
+
+    public static interface Callback {
+        /**
+         * Called on the callback handler once frameSequence has been encoded.
+         */
+        public abstract void onTranscoded(FrameSequence frameSequence, byte[] webpData);
+
+        /**
+         * Called on the callback handler if frameSequence couldn't be encoded.
+         */
+        public abstract void onTranscodeFailed(FrameSequence frameSequence, RuntimeException e);
+    }
+
+    private WebPTranscoder() {}
+
+    /**
+     * Schedules frameSequence to be encoded as an animated WebP in the background.
+     *
+     * Jobs are run one at a time, in the order they were scheduled.
+     *
+     * @param callbackHandler handler to deliver the result on
+     * @see FrameSequence#encodeWebP(boolean, float)
+     */
+    public static void transcodeAsync(final FrameSequence frameSequence, final boolean lossless,
+            final float quality, final Callback callback, final Handler callbackHandler) {
+        if (frameSequence == null || callback == null || callbackHandler == null) {
+            throw new IllegalArgumentException();
+        }
+        initializeTranscodingThread();
+        sTranscodingThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final byte[] webpData = frameSequence.encodeWebP(lossless, quality);
+                    callbackHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onTranscoded(frameSequence, webpData);
+                        }
+                    });
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "exception during transcode: " + e);
+                    callbackHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onTranscodeFailed(frameSequence, e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.test.AndroidTestCase;
+
+import android.support.rastermill.tests.R;
+
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class FrameSequenceDrawableTest extends AndroidTestCase {
+    private static final long SCHEDULE_TIMEOUT_MS = 2000;
+
+    /** Runs nothing on its own; the test drives scheduled swaps by hand. */
+    private static class RecordingCallback implements Drawable.Callback {
+        final LinkedBlockingQueue<Runnable> mScheduled = new LinkedBlockingQueue<Runnable>();
+
+        @Override
+        public void invalidateDrawable(Drawable who) {
+        }
+
+        @Override
+        public void scheduleDrawable(Drawable who, Runnable what, long when) {
+            mScheduled.add(what);
+        }
+
+        @Override
+        public void unscheduleDrawable(Drawable who, Runnable what) {
+            mScheduled.remove(what);
+        }
+    }
+
+    private FrameSequence decodeRawResource(int id) throws Exception {
+        InputStream is = getContext().getResources().openRawResource(id);
+        try {
+            return FrameSequence.decodeStream(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * A sequence whose default loop count is 0 must keep animating past its first loop when
+     * using LOOP_DEFAULT.
+     */
+    public void testDefaultLoopCountOfZeroLoopsForever() throws Exception {
+        FrameSequence frameSequence = decodeRawResource(R.raw.infinite_loop);
+        assertNotNull(frameSequence);
+        assertEquals(0, frameSequence.getDefaultLoopCount());
+        final int frameCount = frameSequence.getFrameCount();
+
+        FrameSequenceDrawable drawable = new FrameSequenceDrawable(frameSequence);
+        final boolean[] finished = new boolean[1];
+        drawable.setOnFinishedListener(new FrameSequenceDrawable.OnFinishedListener() {
+            @Override
+            public void onFinished(FrameSequenceDrawable drawable) {
+                finished[0] = true;
+            }
+        });
+        RecordingCallback callback = new RecordingCallback();
+        drawable.setCallback(callback);
+        drawable.setBounds(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
+        Bitmap target = Bitmap.createBitmap(
+                drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(),
+                Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(target);
+
+        try {
+            drawable.start();
+            // Each scheduled runnable marks the next decoded frame ready, and draw() swaps it in
+            int swaps = 3 * frameCount + 1;
+            for (int i = 0; i < swaps; i++) {
+                Runnable next = callback.mScheduled.poll(SCHEDULE_TIMEOUT_MS,
+                        TimeUnit.MILLISECONDS);
+                assertNotNull("Animation stalled after " + i + " frames", next);
+                next.run();
+                drawable.draw(canvas);
+                assertFalse("Animation finished after " + i + " frames", finished[0]);
+            }
+            assertTrue(drawable.isRunning());
+        } finally {
+            drawable.stop();
+            drawable.destroy();
+            target.recycle();
+        }
+    }
+}